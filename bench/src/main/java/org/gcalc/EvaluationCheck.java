@@ -0,0 +1,289 @@
+package org.gcalc;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Checks that compiled expressions give bit-for-bit the same results as
+ * walking their instructions directly, for the equations in the sample
+ * workspace and a corpus using every operation, over a sweep of x. Both
+ * ExpressionCompiler.Program and SharedProgram are checked, as is every
+ * branch of expressions with ±, which BranchProgram must return in branch
+ * order: branch b takes - at the k-th ± if bit k of b is set. Exits with
+ * status 1 if any check fails.
+ *
+ * This is in org.gcalc, rather than org.gcalc.bench, so that it can reach the
+ * compiler and the instruction lists.
+ *
+ * Usage: EvaluationCheck
+ */
+public class EvaluationCheck {
+    static final String[] CORPUS = {
+        "sin(x)^2+cos(x)^2",
+        "(x+1)*(x+1)-(x+1)/(x+1)",
+        "a*x^2+b*x+k",
+        "exp(0-x^2/2)/sqrt(2*3.14159)",
+        "x!",
+        "(x/2)!+ln(abs(x))",
+        "tan(x)*floor(x)-ceil(x)+round(x)",
+        "asin(x/10)+acos(x/10)+atan(x)",
+        "sinh(x)-cosh(x)+tanh(x)",
+        "log(x)+cbrt(x)",
+        "x^x-x^(1/3)",
+        "2x(x+1)-3(x-1)^2",
+        "1/(x-a)+1/(x-b)",
+        "y=x^3-2x",
+        "2*y+x=4",
+        "r=2+sin(3t)",
+        "(cos(t)^3,sin(t)*k)",
+    };
+
+    /** Expressions with more than one branch */
+    static final String[] BRANCHED = {
+        "x±1",
+        "x^2±2x±1",
+        "(1±x)*(2±x)/(3±a)",
+        "sin(x±a)±cos(x)±(x±2)!",
+        "y^2=x",
+        "x^2+y^2=16",
+        "x*y^2+y=1",
+    };
+
+    static boolean failed = false;
+
+    public static void main(String[] args) throws IOException {
+        List<String> raws = readWorkspaceResource();
+        for (String raw : CORPUS) raws.add(raw);
+
+        // Parameters other than their defaults, so a stale or missing slot shows
+        Parameters params = Parameters.get().copy();
+        params.set("a", 1.5);
+        params.set("b", -0.25);
+        params.set("k", 3);
+        Parameters.setThreadValues(params);
+
+        List<Equation.Expression> ofX = new ArrayList<>(), ofT = new ArrayList<>();
+        for (String raw : raws) {
+            Equation eq = new Equation(raw);
+            if (eq.isParametric()) {
+                ofT.add(eq.getParametricX());
+                ofT.add(eq.getParametricY());
+            } else {
+                ofX.add(eq.getRightHandSide());
+            }
+        }
+
+        double[] xs = sweep();
+        check("x", ofX, xs);
+        check("t", ofT, xs);
+
+        List<Equation.Expression> branched = new ArrayList<>();
+        for (String raw : BRANCHED) branched.add(new Equation(raw).getRightHandSide());
+        checkBranches(branched, xs);
+
+        System.exit(failed ? 1 : 0);
+    }
+
+    /**
+     * @return The equations in the workspace.txt copied into the benchmark
+     *         resources at build time
+     */
+    static List<String> readWorkspaceResource() throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                EvaluationCheck.class.getResourceAsStream("/workspace.txt"), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty()) lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * @return Values of the variable, over the range of a typical view and at
+     *         zero, integers and non-finite values
+     */
+    static double[] sweep() {
+        double[] xs = new double[4001 + 5];
+        for (int i = 0; i <= 4000; i++) xs[i] = -10 + i * (20.0 / 4000);
+        xs[4001] = -0.0;
+        xs[4002] = 1e300;
+        xs[4003] = Double.NaN;
+        xs[4004] = Double.POSITIVE_INFINITY;
+        xs[4005] = Double.NEGATIVE_INFINITY;
+        return xs;
+    }
+
+    /**
+     * Compares the compiled and shared programs of each expression with the
+     * reference over every value of the variable.
+     */
+    static void check(String variable, List<Equation.Expression> exprs, double[] xs) {
+        ExpressionCompiler.SharedProgram shared = ExpressionCompiler.compileShared(exprs, variable);
+        HashMap<String, Double> vars = new HashMap<>();
+        int compiledCount = 0, sharedCount = 0, compiledMismatches = 0, sharedMismatches = 0;
+
+        for (int e = 0; e < exprs.size(); e++) {
+            Equation.Expression expr = exprs.get(e);
+            ExpressionCompiler.Program program = ExpressionCompiler.compile(expr);
+            if (program != null) compiledCount++;
+            if (shared.contains(e)) sharedCount++;
+
+            for (double x : xs) {
+                vars.put(variable, x);
+                double expected = reference(expr, vars, 0, new int[1]);
+                if (program != null && !same(program.evaluate(vars), expected)) {
+                    if (compiledMismatches++ < 10) mismatch("compiled", expr, x, program.evaluate(vars), expected);
+                }
+                if (shared.contains(e)) {
+                    shared.evaluate(x);
+                    if (!same(shared.result(e), expected)) {
+                        if (sharedMismatches++ < 10) mismatch("shared", expr, x, shared.result(e), expected);
+                    }
+                }
+            }
+        }
+
+        report("compiled, " + variable, compiledCount + " expressions", compiledMismatches);
+        report("shared, " + variable, sharedCount + " expressions", sharedMismatches);
+    }
+
+    /**
+     * Compares every branch from BranchProgram, and from Expression.evaluate,
+     * with the reference for that branch.
+     */
+    static void checkBranches(List<Equation.Expression> exprs, double[] xs) {
+        HashMap<String, Double> vars = new HashMap<>();
+        int branchCount = 0, mismatches = 0;
+
+        for (Equation.Expression expr : exprs) {
+            BranchProgram program = expr.getBranchProgram();
+            if (program == null || program.branches != expr.getBranchCount()) {
+                report(expr.rawExpression, "no branch program", 1);
+                continue;
+            }
+            branchCount += program.branches;
+
+            double[] lanes = program.newLanes();
+            double[] byMap = new double[program.branches], byX = new double[program.branches];
+            for (double x : xs) {
+                vars.put("x", x);
+                program.evaluate(vars, lanes, byMap, 0, 1);
+                if (program.onlyX) program.evaluate(x, lanes, byX, 0, 1);
+                double[] evaluated = expr.evaluate(vars);
+
+                for (int b = 0; b < program.branches; b++) {
+                    double expected = reference(expr, vars, b, new int[1]);
+                    boolean ok = same(byMap[b], expected) && same(evaluated[b], expected) &&
+                            (!program.onlyX || same(byX[b], expected));
+                    if (!ok && mismatches++ < 10) {
+                        mismatch("branch " + b, expr, x, evaluated[b], expected);
+                    }
+                }
+            }
+        }
+
+        report("branches", branchCount + " branches", mismatches);
+    }
+
+    /**
+     * Evaluates one branch of an expression by walking its instructions, and
+     * those of any nested expressions, without compiling anything.
+     *
+     * @param branch Which branch to take: each ± subtracts if its bit is set
+     * @param plusMinus Number of ± seen so far, in instruction order with
+     *                  nested expressions inlined
+     */
+    static double reference(Equation.Expression expr, HashMap<String, Double> vars, int branch, int[] plusMinus) {
+        ArrayList<Double> stack = new ArrayList<>();
+        double n1, n2;
+
+        for (Instruction i : expr.ops) {
+            switch (i.instruction) {
+                case ADD:
+                    n1 = pop(stack);
+                    n2 = pop(stack);
+                    stack.add(n1 + n2);
+                    break;
+                case SUB:
+                    n1 = pop(stack);
+                    n2 = pop(stack);
+                    stack.add(n2 - n1);
+                    break;
+                case PLUSMINUS:
+                    n1 = pop(stack);
+                    n2 = pop(stack);
+                    if ((branch >> plusMinus[0]++ & 1) == 0) stack.add(n2 + n1);
+                    else stack.add(n2 - n1);
+                    break;
+                case MUL:
+                    n1 = pop(stack);
+                    n2 = pop(stack);
+                    stack.add(n1 * n2);
+                    break;
+                case DIV:
+                    n1 = pop(stack);
+                    n2 = pop(stack);
+                    stack.add(n2 / n1);
+                    break;
+                case FACT:
+                    stack.add(Factorial.fact(pop(stack)));
+                    break;
+                case NATIVEFUNC:
+                    if ("POW".equals(i.arg)) {
+                        n1 = pop(stack);
+                        n2 = pop(stack);
+                        stack.add(Math.pow(n2, n1));
+                    } else if ("QUADROOT".equals(i.arg)) {
+                        double sign = pop(stack), c = pop(stack), b = pop(stack), a = pop(stack);
+                        stack.add(Rearranger.quadraticRoot(a, b, c, sign));
+                    } else {
+                        stack.add(Equation.Expression.nativeFn((String) i.arg, pop(stack)));
+                    }
+                    break;
+                case EXPR:
+                    stack.add(reference((Equation.Expression) i.arg, vars, branch, plusMinus));
+                    break;
+                case PUSH:
+                    stack.add((Double) i.arg);
+                    break;
+                case PUSHVAR:
+                    if (Parameters.isParameter((String) i.arg)) stack.add(Parameters.get().value((String) i.arg));
+                    else stack.add(vars.get(i.arg));
+                    break;
+                default:
+                    throw new UnsupportedOperationException("Cannot evaluate " + i.instruction);
+            }
+        }
+
+        return pop(stack);
+    }
+
+    static double pop(ArrayList<Double> stack) {
+        return stack.remove(stack.size() - 1);
+    }
+
+    /**
+     * @return Whether two results have the same bits, treating every NaN as
+     *         the same
+     */
+    static boolean same(double a, double b) {
+        return Double.doubleToLongBits(a) == Double.doubleToLongBits(b);
+    }
+
+    static void mismatch(String path, Equation.Expression expr, double x, double actual, double expected) {
+        System.out.printf("  %s: %s at %s = %s, expected %s\n", path, expr.rawExpression, x, actual, expected);
+    }
+
+    static void report(String name, String detail, int mismatches) {
+        failed |= mismatches > 0;
+        System.out.printf("%-16s %-4s %s\n", name, mismatches == 0 ? "ok" : "FAIL", detail);
+    }
+}
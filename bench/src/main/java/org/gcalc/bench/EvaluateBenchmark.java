@@ -0,0 +1,60 @@
+package org.gcalc.bench;
+
+import org.gcalc.Equation;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures scalar evaluation cost, with one expression per instruction type.
+ * Each expression is as small as possible, so the cost of the named
+ * instruction dominates over the fixed PUSHVAR and result handling.
+ * SHARED and RATIONAL are larger expressions with repeated subexpressions,
+ * which common subexpression elimination only computes once.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EvaluateBenchmark {
+    @Param({"ADD", "SUB", "MUL", "DIV", "FACT", "NATIVEFUNC", "POW", "EXPR", "PUSH", "PUSHVAR", "SHARED", "RATIONAL"})
+    public String instruction;
+
+    Equation.Expression expr;
+    Map<String, Double> vars = new HashMap<>();
+    double x = 0;
+
+    @Setup
+    public void parse() {
+        String raw;
+        switch (this.instruction) {
+            case "ADD": raw = "x+1"; break;
+            case "SUB": raw = "x-1"; break;
+            case "MUL": raw = "x*3"; break;
+            case "DIV": raw = "x/3"; break;
+            case "FACT": raw = "x!"; break;
+            case "NATIVEFUNC": raw = "sin(x)"; break;
+            case "POW": raw = "x^3"; break;
+            case "EXPR": raw = "(x)"; break;
+            case "PUSH": raw = "2"; break;
+            case "PUSHVAR": raw = "x"; break;
+            case "SHARED": raw = "sin(x)^2+cos(x)*sin(x)"; break;
+            case "RATIONAL": raw = "(x^2+1)/(x^2-1)"; break;
+            default: throw new IllegalArgumentException(this.instruction);
+        }
+        this.expr = new Equation.Expression(raw);
+    }
+
+    @Benchmark
+    public double[] evaluate() {
+        // Sweep x over a plot-like range so that branches aren't trivially predicted
+        this.x += 0.01;
+        if (this.x > 10) this.x = -10;
+        this.vars.put("x", this.x);
+        return this.expr.evaluate(this.vars);
+    }
+}
@@ -0,0 +1,71 @@
+package org.gcalc.bench;
+
+import org.gcalc.Factorial;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures Factorial.fact over sweeps of different kinds of argument. Each
+ * invocation evaluates the whole sweep, so results are per 1024 calls.
+ * factUncached is the plain gamma() path, for comparison with the lookup
+ * table and argument cache used by fact, and factBatch is the array version.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FactorialBenchmark {
+    static final int SWEEP = 1024;
+
+    /**
+     * integer: whole numbers 0..170, as produced by (floor(x))!
+     * small: fractional values in [-0.5, 20], the recurrence branch
+     * large: fractional values in (20, 170], the Lanczos branch
+     * negative: fractional values in [-20, -0.5), the reflection branches
+     * repeated: 64 fractional values over and over, as when redrawing
+     */
+    @Param({"integer", "small", "large", "negative", "repeated"})
+    public String arguments;
+
+    double[] inputs = new double[SWEEP];
+    double[] outputs = new double[SWEEP];
+
+    @Setup
+    public void fillInputs() {
+        for (int i = 0; i < SWEEP; i++) {
+            double t = i / (double) SWEEP;
+            switch (this.arguments) {
+                case "integer": this.inputs[i] = i % 171; break;
+                case "small": this.inputs[i] = -0.5 + t * 20.5; break;
+                case "large": this.inputs[i] = 20.001 + t * 149.9; break;
+                case "negative": this.inputs[i] = -20 + t * 19.5 + 0.001; break;
+                case "repeated": this.inputs[i] = 0.37 + (i % 64) * 0.25; break;
+                default: throw new IllegalArgumentException(this.arguments);
+            }
+        }
+    }
+
+    @Benchmark
+    public void fact(Blackhole bh) {
+        for (double n : this.inputs) {
+            bh.consume(Factorial.fact(n));
+        }
+    }
+
+    @Benchmark
+    public void factUncached(Blackhole bh) {
+        for (double n : this.inputs) {
+            bh.consume(Factorial.factUncached(n));
+        }
+    }
+
+    @Benchmark
+    public double[] factBatch() {
+        Factorial.fact(this.inputs, this.outputs);
+        return this.outputs;
+    }
+}
@@ -0,0 +1,114 @@
+package org.gcalc.bench;
+
+import org.gcalc.Factorial;
+
+import java.util.Random;
+
+/**
+ * Checks that the lookup table and argument cache behind Factorial.fact give
+ * bit-for-bit the same results as Factorial.factUncached, and that the batch
+ * Factorial.fact(double[], double[]) agrees with the scalar one within 1 ulp,
+ * over arguments from every branch of gamma(), including when the input and
+ * output are the same array. Exits with status 1 if any check fails.
+ *
+ * Usage: FactorialCheck
+ */
+public class FactorialCheck {
+    static final int RANDOM_ARGUMENTS = 200000;
+
+    static boolean failed = false;
+
+    public static void main(String[] args) {
+        double[] inputs = arguments();
+
+        double[] whole = new double[171];
+        for (int n = 0; n < whole.length; n++) whole[n] = n;
+        report("table", compareExact(whole));
+        // Twice, so the second pass is served from the cache
+        report("scalar", compareExact(inputs));
+        report("scalar cached", compareExact(inputs));
+
+        double[] batch = new double[inputs.length];
+        Factorial.fact(inputs, batch);
+        report("batch", compare(inputs, batch));
+
+        double[] aliased = inputs.clone();
+        Factorial.fact(aliased, aliased);
+        report("batch in place", compare(inputs, aliased));
+
+        System.exit(failed ? 1 : 0);
+    }
+
+    /**
+     * @return Arguments covering the table, each branch of gamma(), the
+     *         boundaries between them, poles and non-finite values
+     */
+    static double[] arguments() {
+        double[] special = {
+            0, 1, 2, 170, 171, 171.5, 172, -1, -2, -20, -21, -170, -0.5, -0.0,
+            19, 19.5, 20, 20.5, 21, -19, -19.5, -20.5, -21.5, 0.5, 1e-300, -1e-300,
+            Double.MIN_VALUE, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY
+        };
+
+        Random random = new Random(1);
+        double[] inputs = new double[special.length + RANDOM_ARGUMENTS];
+        System.arraycopy(special, 0, inputs, 0, special.length);
+        for (int i = special.length; i < inputs.length; i++) {
+            switch (i % 5) {
+                // Whole numbers, from the table and past it
+                case 0: inputs[i] = random.nextInt(200); break;
+                // The recurrences
+                case 1: inputs[i] = -22 + random.nextDouble() * 44; break;
+                // Lanczos and reflection
+                case 2: inputs[i] = (random.nextBoolean() ? 1 : -1) * (20 + random.nextDouble() * 160); break;
+                // Near integers, where the recurrences step most
+                case 3: inputs[i] = random.nextInt(40) - 20 + (random.nextDouble() - 0.5) * 1e-9; break;
+                default: inputs[i] = random.nextGaussian() * 50; break;
+            }
+        }
+        return inputs;
+    }
+
+    /**
+     * @return The number of results more than 1 ulp from the scalar path
+     */
+    static int compare(double[] inputs, double[] batch) {
+        int mismatches = 0;
+        for (int i = 0; i < inputs.length; i++) {
+            double scalar = Factorial.fact(inputs[i]);
+            if (!withinUlp(batch[i], scalar)) {
+                if (mismatches++ < 10)
+                    System.out.printf("  %s! = %s, scalar %s\n", inputs[i], batch[i], scalar);
+            }
+        }
+        return mismatches;
+    }
+
+    /**
+     * @return The number of results from fact() which aren't bit-for-bit the
+     *         same as factUncached()
+     */
+    static int compareExact(double[] inputs) {
+        int mismatches = 0;
+        for (double n : inputs) {
+            double cached = Factorial.fact(n);
+            double uncached = Factorial.factUncached(n);
+            if (Double.compare(cached, uncached) != 0) {
+                if (mismatches++ < 10)
+                    System.out.printf("  %s! = %s, uncached %s\n", n, cached, uncached);
+            }
+        }
+        return mismatches;
+    }
+
+    static boolean withinUlp(double a, double b) {
+        if (Double.isNaN(a) || Double.isNaN(b)) return Double.isNaN(a) && Double.isNaN(b);
+        if (a == b) return true;
+        return Math.abs(a - b) <= Math.ulp(b);
+    }
+
+    static void report(String name, int mismatches) {
+        failed |= mismatches > 0;
+        System.out.printf("%-16s %s\n", name, mismatches == 0 ? "ok" : "FAIL, " + mismatches + " mismatches");
+    }
+}
@@ -0,0 +1,50 @@
+package org.gcalc.bench;
+
+import org.gcalc.Equation;
+import org.gcalc.GraphRenderer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the pairwise intersection search on its own, for N equations
+ * drawn in a 1024 pixel wide frame. The search is quadratic in N, since each
+ * equation is tested against every one drawn before it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IntersectionBenchmark {
+    static final int WIDTH = 1024;
+
+    @Param({"2", "4", "8", "16"})
+    public int equationCount;
+
+    GraphRenderer renderer;
+    Equation[] equations;
+
+    @Setup
+    public void setup() {
+        this.renderer = new GraphRenderer(WIDTH, 600);
+        this.equations = new Equation[this.equationCount];
+        for (int i = 0; i < this.equationCount; i++) {
+            // A family of curves which cross each other several times per frame
+            this.equations[i] = new Equation((i + 1) + "sin(x)+" + (i % 3) + "-x/" + (i + 2));
+            this.renderer.setEquation(i, this.equations[i]);
+        }
+    }
+
+    @Benchmark
+    public int findAllIntersections() {
+        // Measure the search itself, rather than the cached candidates
+        this.renderer.getSampleCache().clear();
+        this.renderer.getIntersectionPoints().clear();
+        for (int i = 0; i < this.equationCount; i++) {
+            this.renderer.findIntersections(i, this.equations[i], WIDTH);
+        }
+        return this.renderer.getIntersectionPoints().size();
+    }
+}
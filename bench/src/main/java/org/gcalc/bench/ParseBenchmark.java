@@ -0,0 +1,71 @@
+package org.gcalc.bench;
+
+import org.gcalc.Equation;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long it takes to parse expressions into instruction lists.
+ * The corpus is a fixed set of expressions covering each operator and native
+ * function, plus the contents of the sample workspace.txt.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+    static final String[] BUILTIN_CORPUS = {
+            "x", "2x", "2-2x", "x^2+3x-4", "(x+1)(x-1)", "1/(x^2+1)",
+            "sin(x)^2+cos(x)*sin(x)", "(x^2+1)/(x^2-1)", "sqrt(abs(x))",
+            "exp(-x^2/2)", "ln(x)+log(x)", "floor(x)!", "tanh(3x)-x/10",
+            "asin(x/4)+acos(x/4)+atan(x)", "cbrt(x^3-2x)", "round(2.5sin(x))",
+            "((((x+1)*2)-3)/4)^2", "sinh(x)/cosh(x)"
+    };
+
+    List<String> corpus = new ArrayList<>();
+
+    @Setup
+    public void loadCorpus() throws IOException {
+        for (String s : BUILTIN_CORPUS) this.corpus.add(s);
+        this.corpus.addAll(readWorkspaceResource());
+    }
+
+    /**
+     * @return The equations in the workspace.txt copied into the benchmark
+     *         resources at build time
+     */
+    static List<String> readWorkspaceResource() throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                ParseBenchmark.class.getResourceAsStream("/workspace.txt"), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty()) lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    @Benchmark
+    public void parseCorpus(Blackhole bh) {
+        for (String s : this.corpus) {
+            bh.consume(new Equation(s));
+        }
+    }
+
+    @Benchmark
+    public Equation.Expression parseLongExpression() {
+        return new Equation.Expression("sin(x)^2+cos(x)*sin(x)+(x^2+1)/(x^2-1)+exp(-x^2/2)*sqrt(abs(x))");
+    }
+}
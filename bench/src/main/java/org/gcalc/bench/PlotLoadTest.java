@@ -0,0 +1,85 @@
+package org.gcalc.bench;
+
+import org.gcalc.PlotServer;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Simple load generator for PlotServer. Starts a server on a free localhost
+ * port (unless a URL is given), fires requests from several client threads,
+ * then prints the throughput and client-side latency percentiles.
+ *
+ * Usage: PlotLoadTest [clients] [requests per client] [distinct viewports] [url]
+ *
+ * The number of distinct viewports controls the cache hit rate: with 1, every
+ * request after the first is a cache hit.
+ */
+public class PlotLoadTest {
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int perClient = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int viewports = args.length > 2 ? Math.max(1, Integer.parseInt(args[2])) : 16;
+
+        PlotServer server = null;
+        String base;
+        if (args.length > 3) {
+            base = args[3];
+        } else {
+            server = new PlotServer(0, 256);
+            server.start();
+            base = "http://localhost:" + server.getPort();
+        }
+
+        HttpClient http = HttpClient.newHttpClient();
+        PlotServer.LatencyRecorder latencies = new PlotServer.LatencyRecorder(clients * perClient);
+        AtomicInteger errors = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        List<Future<?>> futures = new ArrayList<>();
+
+        long start = System.nanoTime();
+        for (int c = 0; c < clients; c++) {
+            final int client = c;
+            futures.add(pool.submit(() -> {
+                for (int i = 0; i < perClient; i++) {
+                    int viewport = (client * perClient + i) % viewports;
+                    URI uri = URI.create(base + "/plot?eq=sin(x)&eq=2x&eq=x%5E2-2" +
+                            "&width=800&height=600&x=" + viewport * 0.5);
+                    long t = System.nanoTime();
+                    try {
+                        HttpResponse<byte[]> res = http.send(HttpRequest.newBuilder(uri).build(),
+                                HttpResponse.BodyHandlers.ofByteArray());
+                        if (res.statusCode() != 200) errors.incrementAndGet();
+                    } catch (Exception e) {
+                        errors.incrementAndGet();
+                    }
+                    latencies.record(System.nanoTime() - t);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> f : futures) f.get();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        pool.shutdown();
+
+        long[] sorted = latencies.snapshot();
+        System.out.printf("%d requests (%d errors) in %.3f s: %.1f req/s\n",
+                sorted.length, errors.get(), seconds, sorted.length / seconds);
+        System.out.printf("latency p50 %.3f ms, p90 %.3f ms, p99 %.3f ms\n",
+                PlotServer.LatencyRecorder.percentile(sorted, 50) / 1e6,
+                PlotServer.LatencyRecorder.percentile(sorted, 90) / 1e6,
+                PlotServer.LatencyRecorder.percentile(sorted, 99) / 1e6);
+
+        if (server != null) server.stop();
+    }
+}
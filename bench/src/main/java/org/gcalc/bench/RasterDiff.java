@@ -0,0 +1,95 @@
+package org.gcalc.bench;
+
+import org.gcalc.Equation;
+import org.gcalc.GraphRenderer;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Pixel difference check between the Graphics2D and RasterPlotter curve
+ * renderers. Renders the sample workspace both ways at a few viewports and
+ * compares the images channel by channel. The two can't match exactly, since
+ * they antialias differently, but the difference should stay small: exits
+ * with status 1 if any frame has a mean channel difference or share of
+ * visibly different pixels above the limits below.
+ *
+ * Usage: RasterDiff [output directory for diff images]
+ */
+public class RasterDiff {
+    // Mean absolute difference per channel, out of 255
+    static final double MAX_MEAN_DIFF = 2.0;
+    // Pixels where some channel differs by more than VISIBLE_DIFF
+    static final double MAX_VISIBLE_FRACTION = 0.01;
+    static final int VISIBLE_DIFF = 96;
+
+    static final String[] VIEWPORTS = {"1024x600 1 0 0", "1920x1080 2.5 1 -1", "320x240 0.4 -3 2"};
+
+    public static void main(String[] args) throws IOException {
+        File outDir = args.length > 0 ? new File(args[0]) : null;
+        if (outDir != null) outDir.mkdirs();
+        List<String> workspace = ParseBenchmark.readWorkspaceResource();
+
+        boolean failed = false;
+        for (String viewport : VIEWPORTS) {
+            String[] v = viewport.split(" ");
+            String[] size = v[0].split("x");
+            int width = Integer.parseInt(size[0]), height = Integer.parseInt(size[1]);
+
+            BufferedImage java2d = render(workspace, width, height, v, false);
+            BufferedImage raster = render(workspace, width, height, v, true);
+
+            long total = 0, visible = 0;
+            int max = 0;
+            BufferedImage diff = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int a = java2d.getRGB(x, y), b = raster.getRGB(x, y);
+                    int pixelMax = 0;
+                    for (int shift = 0; shift <= 16; shift += 8) {
+                        int d = Math.abs(((a >> shift) & 0xff) - ((b >> shift) & 0xff));
+                        total += d;
+                        pixelMax = Math.max(pixelMax, d);
+                    }
+                    max = Math.max(max, pixelMax);
+                    if (pixelMax > VISIBLE_DIFF) visible++;
+                    diff.setRGB(x, y, 0x010101 * (255 - pixelMax));
+                }
+            }
+
+            double mean = total / (3.0 * width * height);
+            double visibleFraction = visible / (double) (width * height);
+            boolean ok = mean <= MAX_MEAN_DIFF && visibleFraction <= MAX_VISIBLE_FRACTION;
+            failed |= !ok;
+            System.out.printf("%-22s mean %.3f  max %3d  visible %.3f%%  %s\n", viewport, mean, max,
+                    visibleFraction * 100, ok ? "ok" : "FAIL");
+
+            if (outDir != null) {
+                String name = v[0] + "-" + v[1];
+                ImageIO.write(java2d, "png", new File(outDir, name + "-java2d.png"));
+                ImageIO.write(raster, "png", new File(outDir, name + "-raster.png"));
+                ImageIO.write(diff, "png", new File(outDir, name + "-diff.png"));
+            }
+        }
+
+        System.exit(failed ? 1 : 0);
+    }
+
+    private static BufferedImage render(List<String> workspace, int width, int height, String[] viewport,
+                                        boolean raster) {
+        GraphRenderer renderer = new GraphRenderer(width, height);
+        renderer.setScale(Double.parseDouble(viewport[1]));
+        renderer.setOffset(Double.parseDouble(viewport[2]), Double.parseDouble(viewport[3]));
+        renderer.setRasterCurves(raster);
+        for (int i = 0; i < workspace.size(); i++) {
+            renderer.setEquation(i, new Equation(workspace.get(i)));
+        }
+
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        renderer.render(img).dispose();
+        return img;
+    }
+}
@@ -0,0 +1,101 @@
+package org.gcalc.bench;
+
+import org.gcalc.Equation;
+
+import java.security.InvalidParameterException;
+import java.util.Arrays;
+
+/**
+ * Checks equations which have to be rearranged for y: linear and quadratic
+ * ones are solved with the right roots, in the right order, and accurately
+ * where one root is near zero or the y^2 coefficient vanishes; other forms
+ * are rejected. Exits with status 1 if any check fails.
+ *
+ * Usage: RearrangeCheck
+ */
+public class RearrangeCheck {
+    // Relative error allowed in each root
+    static final double TOLERANCE = 1e-12;
+
+    static boolean failed = false;
+
+    public static void main(String[] args) {
+        // Linear in y
+        check("2*y+x=4", 2, 1);
+        check("x=y/3", 2, 6);
+        check("y-x=x", 1.5, 3);
+        check("y=x^2", 3, 9);
+
+        // Quadratic, with the larger root always first
+        check("y^2=x", 4, 2, -2);
+        check("x=y^2", 4, 2, -2);
+        check("x^2+y^2=4", 0, 2, -2);
+        check("x^2+y^2=4", 2, 0, 0);
+        check("x^2+y^2=4", 3, Double.NaN, Double.NaN);
+        check("y^2+2*y=x", 3, 1, -3);
+        check("y*y-x*y=0", 2, 2, 0);
+        check("y*y-x*y=0", -2, 0, -2);
+
+        // The y^2 coefficient changing sign doesn't swap the branches
+        check("x*y^2=1", 4, 0.5, -0.5);
+        check("x*y^2=1", -4, Double.NaN, Double.NaN);
+        check("x*y^2+y=1", 2, 0.5, -1);
+        check("x*y^2+y=1", -0.25, 2, 2);
+        check("x*y^2+y=1", -0.1, (1 + Math.sqrt(0.6)) / 0.2, (1 - Math.sqrt(0.6)) / 0.2);
+
+        // Where the y^2 coefficient is zero only the linear root is left, and
+        // near there the root close to 1 mustn't lose precision
+        check("x*y^2+y=1", 0, 1, Double.NaN);
+        check("x*y^2+y=1", 1e-9, 2 / (1 + Math.sqrt(1 + 4e-9)), -(1 + Math.sqrt(1 + 4e-9)) / 2e-9);
+        check("x*y^2+y=1", -1e-9, (1 + Math.sqrt(1 - 4e-9)) / 2e-9, 2 / (1 + Math.sqrt(1 - 4e-9)));
+        check("y^2+100000000*y=x", 1, 1 / (5e7 + Math.sqrt(2.5e15 + 1)), -5e7 - Math.sqrt(2.5e15 + 1));
+
+        // Forms which can't be rearranged
+        reject("y^3=x");
+        reject("y*y*y=x");
+        reject("1/y=x");
+        reject("sin(y)=x");
+        reject("x^y=2");
+        reject("x=2");
+
+        System.exit(failed ? 1 : 0);
+    }
+
+    /**
+     * Checks every root of an equation at x, in branch order.
+     */
+    static void check(String raw, double x, double... expected) {
+        double[] actual;
+        try {
+            actual = new Equation(raw).evaluate(x);
+        } catch (InvalidParameterException e) {
+            report(raw + " at x=" + x, false, e.getMessage());
+            return;
+        }
+
+        boolean ok = actual.length == expected.length;
+        for (int i = 0; ok && i < actual.length; i++) {
+            ok = matches(actual[i], expected[i]);
+        }
+        report(raw + " at x=" + x, ok, Arrays.toString(actual));
+    }
+
+    static void reject(String raw) {
+        try {
+            new Equation(raw);
+            report(raw, false, "accepted");
+        } catch (InvalidParameterException e) {
+            report(raw, true, "rejected");
+        }
+    }
+
+    static boolean matches(double actual, double expected) {
+        if (Double.isNaN(expected)) return Double.isNaN(actual);
+        return Math.abs(actual - expected) <= TOLERANCE * Math.abs(expected);
+    }
+
+    static void report(String name, boolean ok, String detail) {
+        failed |= !ok;
+        System.out.printf("%-28s %-4s %s\n", name, ok ? "ok" : "FAIL", detail);
+    }
+}
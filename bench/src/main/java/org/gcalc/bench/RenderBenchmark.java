@@ -0,0 +1,65 @@
+package org.gcalc.bench;
+
+import org.gcalc.Equation;
+import org.gcalc.GraphRenderer;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures whole-frame rendering (grid, curves, intersection search and
+ * markers) of the sample workspace into a headless BufferedImage. With cached
+ * set, the curve samples and intersections kept from the previous frame are
+ * reused, as when the view hasn't changed; otherwise every frame starts from
+ * an empty sample cache, as after a pan or zoom.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class RenderBenchmark {
+    @Param({"320x240", "1024x600", "1920x1080"})
+    public String size;
+
+    // Plot curves with RasterPlotter rather than Graphics2D
+    @Param({"false", "true"})
+    public boolean raster;
+
+    // Reuse the samples and intersections of the previous frame
+    @Param({"false", "true"})
+    public boolean cached;
+
+    GraphRenderer renderer;
+    BufferedImage img;
+
+    @Setup
+    public void setup() throws IOException {
+        String[] dims = this.size.split("x");
+        int width = Integer.parseInt(dims[0]);
+        int height = Integer.parseInt(dims[1]);
+
+        this.renderer = new GraphRenderer(width, height);
+        this.renderer.setRasterCurves(this.raster);
+        this.img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+
+        List<String> workspace = ParseBenchmark.readWorkspaceResource();
+        for (int i = 0; i < workspace.size(); i++) {
+            this.renderer.setEquation(i, new Equation(workspace.get(i)));
+        }
+    }
+
+    @Benchmark
+    public BufferedImage renderFrame() {
+        // render() clears the intersection points itself
+        if (!this.cached) this.renderer.getSampleCache().clear();
+        Graphics2D g = this.renderer.render(this.img);
+        g.dispose();
+        return this.img;
+    }
+}
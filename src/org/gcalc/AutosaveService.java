@@ -0,0 +1,289 @@
+package org.gcalc;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Saves the equation list in the background as it is edited, so that nothing
+ * is lost if the program dies, and the UI never waits on the disk.
+ *
+ * Every add, change and remove event is appended to a journal by a single
+ * background thread. Every so often the journal is compacted into a binary
+ * workspace snapshot, which holds the compiled equations so that recovery
+ * doesn't need to parse them again.
+ *
+ * Snapshots and journals are numbered by generation. `snapshot-N.gcw` holds
+ * the effect of every journal up to and including `journal-N.log`. A snapshot
+ * is written to a temporary file and atomically renamed into place, so a
+ * crash at any point leaves either the old or the new snapshot, never a
+ * truncated one, and never replays a journal twice.
+ */
+public class AutosaveService implements EquationListener {
+    private static final long COMPACT_INTERVAL_SECONDS = 30;
+    private static final int COMPACT_AFTER_ENTRIES = 500;
+
+    private static final Pattern SNAPSHOT_NAME = Pattern.compile("snapshot-(\\d+)\\.gcw");
+    private static final Pattern JOURNAL_NAME = Pattern.compile("journal-(\\d+)\\.log");
+
+    private final File directory;
+    private final ScheduledExecutorService executor;
+
+    // Everything below is only touched on the executor thread once started
+    private final ArrayList<Equation> model = new ArrayList<>();
+    private FileChannel journal;
+    private long generation = 0;
+    private int journalEntries = 0;
+
+    /**
+     * Creates an autosave service which keeps its files in a directory. Call
+     * recover(), if wanted, then start().
+     *
+     * @param directory Where to keep snapshots and journals
+     */
+    public AutosaveService(File directory) {
+        this.directory = directory;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "autosave");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * @return The default autosave directory, in the user's home directory
+     */
+    public static File defaultDirectory() {
+        return new File(System.getProperty("user.home"), ".gcalc" + File.separator + "autosave");
+    }
+
+    /**
+     * Rebuilds the equation list from the newest snapshot and any journals
+     * written after it. Equations in the snapshot are loaded precompiled, so
+     * only the ones edited since the last compaction are parsed. A partially
+     * written final journal entry is ignored.
+     *
+     * @return The recovered equations, in order
+     * @throws IOException if the snapshot or a journal couldn't be read
+     */
+    public List<Equation> recover() throws IOException {
+        TreeMap<Long, File> snapshots = this.listGenerations(SNAPSHOT_NAME);
+        TreeMap<Long, File> journals = this.listGenerations(JOURNAL_NAME);
+
+        // Either an Equation from the snapshot, or the raw text from a journal
+        ArrayList<Object> entries = new ArrayList<>();
+        long snapshotGen = 0;
+
+        if (!snapshots.isEmpty()) {
+            snapshotGen = snapshots.lastKey();
+            BinaryWorkspace snapshot = BinaryWorkspace.open(snapshots.lastEntry().getValue());
+            for (int i = 0; i < snapshot.getEquationCount(); i++) {
+                entries.add(snapshot.getEquation(i));
+            }
+        }
+
+        for (File f : journals.tailMap(snapshotGen, false).values()) {
+            String contents = new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8);
+            String[] lines = contents.split("\n", -1);
+
+            // The last element is either empty or a partially written entry
+            for (int i = 0; i < lines.length - 1; i++) {
+                String[] parts = lines[i].split("\t", 3);
+                if (parts.length < 2) continue;
+                int id;
+                try {
+                    id = Integer.parseInt(parts[1]);
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                String text = parts.length > 2 ? parts[2] : "";
+
+                switch (parts[0]) {
+                    case "A":
+                    case "C":
+                        while (entries.size() <= id) entries.add("");
+                        entries.set(id, text);
+                        break;
+                    case "R":
+                        if (id < entries.size()) entries.remove(id);
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+
+        this.model.clear();
+        for (Object entry : entries) {
+            if (entry instanceof Equation) {
+                this.model.add((Equation) entry);
+                continue;
+            }
+            try {
+                this.model.add(new Equation((String) entry));
+            } catch (Exception e) {
+                System.err.println("Autosave: dropping malformed equation " + entry);
+            }
+        }
+
+        return new ArrayList<>(this.model);
+    }
+
+    /**
+     * Opens a fresh journal and starts periodic compaction. New journals are
+     * always started rather than appending, so a torn entry at the end of an
+     * old journal can never be followed by a valid one. If recover() wasn't
+     * called first, the next compaction replaces the previous session.
+     *
+     * @throws IOException if the directory or journal couldn't be created
+     */
+    public void start() throws IOException {
+        if (!this.directory.isDirectory() && !this.directory.mkdirs())
+            throw new IOException("Unable to create autosave directory " + this.directory);
+
+        TreeMap<Long, File> snapshots = this.listGenerations(SNAPSHOT_NAME);
+        TreeMap<Long, File> journals = this.listGenerations(JOURNAL_NAME);
+        this.generation = 1 + Math.max(snapshots.isEmpty() ? 0 : snapshots.lastKey(),
+                journals.isEmpty() ? 0 : journals.lastKey());
+        this.openJournal();
+
+        this.executor.scheduleWithFixedDelay(() -> {
+            if (this.journalEntries > 0) this.compact();
+        }, COMPACT_INTERVAL_SECONDS, COMPACT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Compacts the journal one final time and stops the background thread.
+     * Waits briefly for any queued writes to finish.
+     */
+    public void close() {
+        this.executor.execute(() -> {
+            if (this.journalEntries > 0) this.compact();
+            try {
+                this.journal.close();
+            } catch (IOException e) {
+                System.err.println("Autosave: error closing journal: " + e.getMessage());
+            }
+        });
+        this.executor.shutdown();
+        try {
+            this.executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void equationAdded(int id, Equation newEquation, EquationEditor editor) {
+        this.executor.execute(() -> {
+            while (this.model.size() <= id) this.model.add(new Equation(""));
+            this.model.set(id, newEquation);
+            this.append("A", id, newEquation.toString());
+        });
+    }
+
+    @Override
+    public void equationRemoved(int id) {
+        this.executor.execute(() -> {
+            if (id < this.model.size()) this.model.remove(id);
+            this.append("R", id, "");
+        });
+    }
+
+    @Override
+    public void equationChanged(int id, Equation e) {
+        this.executor.execute(() -> {
+            while (this.model.size() <= id) this.model.add(new Equation(""));
+            this.model.set(id, e);
+            this.append("C", id, e.toString());
+        });
+    }
+
+    /**
+     * Appends one entry to the current journal, compacting if it has grown
+     * too long. Runs on the executor thread.
+     */
+    private void append(String op, int id, String text) {
+        // Entries are newline terminated, so the text must not contain one
+        String line = op + "\t" + id + "\t" + text.replace('\n', ' ') + "\n";
+        try {
+            ByteBuffer bytes = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+            while (bytes.hasRemaining()) this.journal.write(bytes);
+        } catch (IOException e) {
+            System.err.println("Autosave: error writing journal: " + e.getMessage());
+            return;
+        }
+
+        if (++this.journalEntries >= COMPACT_AFTER_ENTRIES) this.compact();
+    }
+
+    /**
+     * Writes the current model as the snapshot for this generation, then
+     * moves on to a new journal and deletes the files the snapshot replaces.
+     * Runs on the executor thread.
+     */
+    private void compact() {
+        long gen = this.generation;
+        File snapshot = new File(this.directory, "snapshot-" + gen + ".gcw");
+        File tmp = new File(this.directory, "snapshot-" + gen + ".gcw.tmp");
+
+        try {
+            this.journal.force(false);
+            BinaryWorkspace.write(tmp, this.model, 1, 0, 0, Collections.emptyList());
+            try (FileChannel c = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE)) {
+                c.force(true);
+            }
+            Files.move(tmp.toPath(), snapshot.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+            this.journal.close();
+            this.generation++;
+            this.openJournal();
+        } catch (IOException e) {
+            System.err.println("Autosave: compaction failed: " + e.getMessage());
+            return;
+        }
+
+        // Older files are now redundant. Failing to delete them is harmless,
+        // since recovery ignores anything older than the newest snapshot.
+        for (File f : this.listGenerations(SNAPSHOT_NAME).headMap(gen, false).values()) f.delete();
+        for (File f : this.listGenerations(JOURNAL_NAME).headMap(gen, true).values()) f.delete();
+    }
+
+    private void openJournal() throws IOException {
+        File f = new File(this.directory, "journal-" + this.generation + ".log");
+        this.journal = FileChannel.open(f.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.journalEntries = 0;
+    }
+
+    /**
+     * @param pattern Filename pattern with the generation as its first group
+     * @return The matching files in the autosave directory, by generation
+     */
+    private TreeMap<Long, File> listGenerations(Pattern pattern) {
+        TreeMap<Long, File> ret = new TreeMap<>();
+        File[] files = this.directory.listFiles();
+        if (files == null) return ret;
+
+        for (File f : files) {
+            Matcher m = pattern.matcher(f.getName());
+            if (m.matches()) ret.put(Long.parseLong(m.group(1)), f);
+        }
+        return ret;
+    }
+}
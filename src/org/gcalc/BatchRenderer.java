@@ -0,0 +1,284 @@
+package org.gcalc;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Headless entrypoint which renders workspace files (text, as written by
+ * `Graph.saveWorkspace`, or binary) straight to PNG or SVG images, without
+ * creating any windows. Workspaces are rendered concurrently, one per worker thread, and
+ * the overall throughput is reported once every plot has been written.
+ *
+ * Usage:
+ * <pre>
+ * java -cp ... org.gcalc.BatchRenderer [options] workspace...
+ *   --size WxH        Output size in pixels (default 1024x600)
+ *   --scale S         Zoom level, as used by the View menu (default 1)
+ *   --offset X,Y      Graph coordinate at the centre of the image (default 0,0)
+ *   --format png|svg  Output format (default png)
+ *   --out DIR         Directory to write images to (default .)
+ *   --threads N       Number of worker threads (default: one per core)
+ * </pre>
+ */
+public class BatchRenderer {
+    private int width = 1024, height = 600;
+    private double scale = 1;
+    private double offsetX = 0, offsetY = 0;
+    private String format = "png";
+    private File outDir = new File(".");
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private List<File> workspaces = new ArrayList<>();
+
+    /**
+     * Reads the equations from a workspace file. Blank lines are ignored,
+     * matching `Sidebar.loadWorkspace`.
+     *
+     * @param file The workspace file to read
+     * @return The raw equation strings, in file order
+     * @throws IOException if the file could not be read
+     */
+    public static List<String> readWorkspace(File file) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty()) lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Loads every well-formed equation from a text or binary workspace.
+     * Malformed equations are reported and skipped.
+     *
+     * @param workspace The workspace file to read
+     * @return The equations, in file order
+     * @throws IOException if the file could not be read
+     */
+    public static List<Equation> loadEquations(File workspace) throws IOException {
+        List<Equation> equations = new ArrayList<>();
+
+        if (BinaryWorkspace.isBinaryWorkspace(workspace)) {
+            BinaryWorkspace binary = BinaryWorkspace.open(workspace);
+            for (int i = 0; i < binary.getEquationCount(); i++) {
+                try {
+                    equations.add(binary.getEquation(i));
+                } catch (Exception e) {
+                    System.err.printf("%s: skipping malformed equation \"%s\": %s\n",
+                            workspace.getName(), binary.getRawText(i), e.getMessage());
+                }
+            }
+        } else {
+            for (String line : readWorkspace(workspace)) {
+                try {
+                    equations.add(new Equation(line));
+                } catch (Exception e) {
+                    System.err.printf("%s: skipping malformed equation \"%s\": %s\n",
+                            workspace.getName(), line, e.getMessage());
+                }
+            }
+        }
+
+        return equations;
+    }
+
+    /**
+     * Renders a single workspace to an image in the output directory, named
+     * after the workspace file.
+     *
+     * @param workspace The workspace file to render
+     * @return The image file that was written
+     * @throws IOException if the workspace couldn't be read or the image
+     *                     couldn't be written
+     */
+    public File render(File workspace) throws IOException {
+        GraphRenderer renderer = new GraphRenderer(this.width, this.height) {
+            @Override
+            protected void equationFailed(int id, Exception ex) {
+                System.err.printf("%s: error drawing equation %d: %s\n",
+                        workspace.getName(), id, ex.getMessage());
+            }
+        };
+        renderer.setScale(this.scale);
+        renderer.setOffset(this.offsetX, this.offsetY);
+
+        int id = 0;
+        for (Equation e : loadEquations(workspace)) {
+            renderer.setEquation(id++, e);
+        }
+
+        File out = this.outputFile(workspace);
+
+        if (this.format.equals("svg")) {
+            try (Writer w = new OutputStreamWriter(new FileOutputStream(out), StandardCharsets.UTF_8)) {
+                renderer.renderSVG(w);
+            }
+        } else {
+            BufferedImage img = new BufferedImage(this.width, this.height, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = renderer.render(img);
+            g.dispose();
+            if (!ImageIO.write(img, this.format, out))
+                throw new IOException("No image writer for format " + this.format);
+        }
+
+        return out;
+    }
+
+    /**
+     * @param workspace A workspace file
+     * @return The image it is rendered to, named after the file without its
+     *         directory or extension
+     */
+    public File outputFile(File workspace) {
+        String name = workspace.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) name = name.substring(0, dot);
+        return new File(this.outDir, name + "." + this.format);
+    }
+
+    /**
+     * Renders every workspace on a pool of worker threads, then prints the
+     * number of plots written and the throughput.
+     *
+     * @return The number of workspaces which failed to render
+     */
+    public int renderAll() throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(this.threads);
+        List<Future<File>> results = new ArrayList<>();
+
+        long start = System.nanoTime();
+        for (File workspace : this.workspaces) {
+            results.add(pool.submit(() -> this.render(workspace)));
+        }
+
+        int failed = 0;
+        for (int i = 0; i < results.size(); i++) {
+            try {
+                System.out.println("Wrote " + results.get(i).get().getPath());
+            } catch (ExecutionException e) {
+                System.err.println("Failed to render " + this.workspaces.get(i) +
+                        ": " + e.getCause());
+                failed++;
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        pool.shutdown();
+
+        int rendered = results.size() - failed;
+        System.out.printf("Rendered %d plots in %.3f s on %d threads (%.1f plots/s)\n",
+                rendered, seconds, this.threads, rendered / seconds);
+        return failed;
+    }
+
+    /**
+     * Parses the command line options described in the class comment.
+     *
+     * @param args Command line arguments
+     * @throws IllegalArgumentException if an option is malformed
+     */
+    protected void parseArgs(String[] args) throws IllegalArgumentException {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                this.workspaces.add(new File(arg));
+                continue;
+            }
+            if (i + 1 >= args.length)
+                throw new IllegalArgumentException("Missing value for " + arg);
+            String value = args[++i];
+
+            switch (arg) {
+                case "--size":
+                    String[] size = value.toLowerCase().split("x");
+                    if (size.length != 2)
+                        throw new IllegalArgumentException("Size must be WxH, got " + value);
+                    this.width = Integer.parseInt(size[0]);
+                    this.height = Integer.parseInt(size[1]);
+                    break;
+                case "--scale":
+                    this.scale = Double.parseDouble(value);
+                    break;
+                case "--offset":
+                    String[] offset = value.split(",");
+                    if (offset.length != 2)
+                        throw new IllegalArgumentException("Offset must be X,Y, got " + value);
+                    this.offsetX = Double.parseDouble(offset[0]);
+                    this.offsetY = Double.parseDouble(offset[1]);
+                    break;
+                case "--format":
+                    this.format = value.toLowerCase();
+                    if (!this.format.equals("png") && !this.format.equals("svg"))
+                        throw new IllegalArgumentException("Format must be png or svg, got " + value);
+                    break;
+                case "--out":
+                    this.outDir = new File(value);
+                    break;
+                case "--threads":
+                    this.threads = Math.max(1, Integer.parseInt(value));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+
+        if (this.workspaces.isEmpty())
+            throw new IllegalArgumentException("No workspace files given");
+
+        // Workspaces with the same name in different directories, or with
+        // different extensions, would overwrite each other's image
+        Map<File, File> outputs = new HashMap<>();
+        for (File workspace : this.workspaces) {
+            File other = outputs.put(this.outputFile(workspace), workspace);
+            if (other != null)
+                throw new IllegalArgumentException("Both " + other + " and " + workspace +
+                        " would be written to " + this.outputFile(workspace));
+        }
+    }
+
+    /**
+     * Headless program entrypoint. Exits with a non-zero code if the
+     * arguments are invalid or any workspace failed to render.
+     *
+     * @param args See the class comment
+     */
+    public static void main(String[] args) {
+        // Must be set before any AWT class is initialised
+        System.setProperty("java.awt.headless", "true");
+
+        BatchRenderer batch = new BatchRenderer();
+        try {
+            batch.parseArgs(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: BatchRenderer [--size WxH] [--scale S] [--offset X,Y] " +
+                    "[--format png|svg] [--out DIR] [--threads N] workspace...");
+            System.exit(2);
+        }
+
+        if (!batch.outDir.isDirectory() && !batch.outDir.mkdirs()) {
+            System.err.println("Unable to create output directory " + batch.outDir);
+            System.exit(1);
+        }
+
+        try {
+            System.exit(batch.renderAll() == 0 ? 0 : 1);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
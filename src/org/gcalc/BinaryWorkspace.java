@@ -0,0 +1,322 @@
+package org.gcalc;
+
+import java.awt.Color;
+import java.awt.geom.Point2D;
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Versioned binary workspace file. Alongside the raw text of each equation,
+ * it stores the compiled instruction list, so that loading a workspace
+ * doesn't need to parse anything. The viewport, clicked points and curve
+ * colours are saved too.
+ *
+ * Files are read through a memory mapped buffer. Only the header and offset
+ * table are read when the file is opened; each equation is deserialised the
+ * first time it is requested.
+ *
+ * Layout (big endian):
+ * <pre>
+ * int     magic "GCWS"
+ * short   version
+ * short   flags (reserved, 0)
+ * double  scale, offsetX, offsetY
+ * int     clicked point count, then (double x, double y) per point
+ * int     equation count
+ * int[]   absolute offset of each equation record
+ * records:
+ *   int     colour (ARGB)
+ *   string  raw equation text
+ *   byte    1 if a compiled program follows, else 0
+ *   expr    compiled right hand side, if present
+ *
+ * string := int byte length, then UTF-8 bytes
+ * expr   := string normalised text, int instruction count, then per instruction
+ *           byte type, then a double (PUSH), string (PUSHVAR, NATIVEFUNC) or
+ *           nested expr (EXPR)
+ * </pre>
+ */
+public class BinaryWorkspace {
+    public static final int MAGIC = 0x47435753;
+    public static final short VERSION = 1;
+
+    private final ByteBuffer buffer;
+    private final double scale, offsetX, offsetY;
+    private final List<Point2D.Double> clickedPoints = new ArrayList<>();
+    private final int[] offsets;
+    private final Equation[] equations;
+
+    private BinaryWorkspace(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+
+        try {
+            if (buffer.getInt() != MAGIC)
+                throw new IOException("Not a binary workspace file");
+            short version = buffer.getShort();
+            if (version != VERSION)
+                throw new IOException("Unsupported binary workspace version " + version);
+            buffer.getShort();
+
+            this.scale = buffer.getDouble();
+            this.offsetX = buffer.getDouble();
+            this.offsetY = buffer.getDouble();
+
+            int points = buffer.getInt();
+            for (int i = 0; i < points; i++) {
+                this.clickedPoints.add(new Point2D.Double(buffer.getDouble(), buffer.getDouble()));
+            }
+
+            int count = buffer.getInt();
+            if (count < 0 || count > buffer.remaining() / 4)
+                throw new IOException("Corrupt binary workspace equation table");
+            this.offsets = new int[count];
+            for (int i = 0; i < count; i++) this.offsets[i] = buffer.getInt();
+            this.equations = new Equation[count];
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated binary workspace file", e);
+        }
+    }
+
+    /**
+     * Checks the first bytes of a file for the binary workspace magic number.
+     *
+     * @param file The file to check
+     * @return Whether the file looks like a binary workspace
+     */
+    public static boolean isBinaryWorkspace(File file) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readInt() == MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Maps a binary workspace file into memory and reads its header.
+     *
+     * @param file The file to open
+     * @return The opened workspace
+     * @throws IOException if the file can't be read or isn't a supported
+     *                     binary workspace
+     */
+    public static BinaryWorkspace open(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new BinaryWorkspace(buffer);
+        }
+    }
+
+    public double getScale() { return this.scale; }
+    public double getOffsetX() { return this.offsetX; }
+    public double getOffsetY() { return this.offsetY; }
+
+    public List<Point2D.Double> getClickedPoints() {
+        return this.clickedPoints;
+    }
+
+    public int getEquationCount() {
+        return this.offsets.length;
+    }
+
+    /**
+     * @param i Index of the equation
+     * @return The colour the equation was drawn with when it was saved
+     */
+    public Color getColour(int i) {
+        return new Color(this.record(i).getInt(), true);
+    }
+
+    /**
+     * Reads the raw text of an equation, without deserialising its program.
+     *
+     * @param i Index of the equation
+     * @return The equation as the user typed it
+     */
+    public String getRawText(int i) {
+        ByteBuffer b = this.record(i);
+        b.getInt();
+        return readString(b);
+    }
+
+    /**
+     * Deserialises an equation the first time it is requested. If the record
+     * has no compiled program, or it can't be read, the raw text is parsed
+     * instead.
+     *
+     * @param i Index of the equation
+     * @return The equation
+     * @throws java.security.InvalidParameterException if the equation had to
+     *         be parsed and is malformed
+     */
+    public synchronized Equation getEquation(int i) {
+        if (this.equations[i] != null) return this.equations[i];
+
+        ByteBuffer b = this.record(i);
+        b.getInt();
+        String raw = readString(b);
+
+        Equation e;
+        try {
+            e = b.get() == 1 ? new Equation(raw, readExpression(b)) : new Equation(raw);
+        } catch (RuntimeException ex) {
+            if (ex instanceof java.security.InvalidParameterException) throw ex;
+            // Damaged program, or one with too many branches, so fall back
+            // to the text
+            e = new Equation(raw);
+        }
+
+        this.equations[i] = e;
+        return e;
+    }
+
+    /**
+     * @param i Index of an equation
+     * @return A buffer positioned at the start of the equation's record
+     */
+    private ByteBuffer record(int i) {
+        ByteBuffer b = this.buffer.duplicate();
+        b.position(this.offsets[i]);
+        return b;
+    }
+
+    /**
+     * Writes the current contents of a renderer as a binary workspace. Each
+     * equation is saved with the colour it is currently drawn with.
+     *
+     * @param file The file to write
+     * @param renderer The renderer holding the equations and viewport
+     * @throws IOException if the file couldn't be written
+     */
+    public static void write(File file, GraphRenderer renderer) throws IOException {
+        List<Equation> equations = new ArrayList<>();
+        for (Equation e : renderer.getEquations()) {
+            if (e != null) equations.add(e);
+        }
+        write(file, equations, renderer.getScale(), renderer.getOffsetX(),
+                renderer.getOffsetY(), renderer.getClickedPoints());
+    }
+
+    /**
+     * Writes a list of equations and a viewport as a binary workspace.
+     *
+     * @param file The file to write
+     * @param equations The equations to save, none of which may be null
+     * @param scale The zoom level
+     * @param offsetX Graph x coordinate at the centre of the view
+     * @param offsetY Graph y coordinate at the centre of the view
+     * @param points The clicked points, in graph coordinates
+     * @throws IOException if the file couldn't be written
+     */
+    public static void write(File file, List<Equation> equations, double scale, double offsetX,
+                             double offsetY, List<Point2D.Double> points) throws IOException {
+        // Records are written after the header, so their offsets are known
+        // once the header size is
+        int headerSize = 4 + 2 + 2 + 8 * 3 + 4 + points.size() * 16 + 4 + equations.size() * 4;
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        DataOutputStream recordOut = new DataOutputStream(records);
+        int[] offsets = new int[equations.size()];
+
+        for (int i = 0; i < equations.size(); i++) {
+            Equation e = equations.get(i);
+            offsets[i] = headerSize + recordOut.size();
+
+            recordOut.writeInt(Graph.lineColours[i % Graph.lineColours.length].getRGB());
+            writeString(recordOut, e.toString());
+            if (e.getRightHandSide() != null) {
+                recordOut.writeByte(1);
+                writeExpression(recordOut, e.getRightHandSide());
+            } else {
+                recordOut.writeByte(0);
+            }
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeShort(0);
+            out.writeDouble(scale);
+            out.writeDouble(offsetX);
+            out.writeDouble(offsetY);
+
+            out.writeInt(points.size());
+            for (Point2D.Double p : points) {
+                out.writeDouble(p.x);
+                out.writeDouble(p.y);
+            }
+
+            out.writeInt(equations.size());
+            for (int offset : offsets) out.writeInt(offset);
+            records.writeTo(out);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer b) {
+        byte[] bytes = new byte[b.getInt()];
+        b.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeExpression(DataOutputStream out, Equation.Expression expr) throws IOException {
+        writeString(out, expr.rawExpression);
+        out.writeInt(expr.ops.size());
+        for (Instruction i : expr.ops) {
+            out.writeByte(i.instruction.ordinal());
+            switch (i.instruction) {
+                case PUSH:
+                    out.writeDouble((Double) i.arg);
+                    break;
+                case PUSHVAR:
+                case NATIVEFUNC:
+                    writeString(out, (String) i.arg);
+                    break;
+                case EXPR:
+                    writeExpression(out, (Equation.Expression) i.arg);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private static Equation.Expression readExpression(ByteBuffer b) {
+        String raw = readString(b);
+        int count = b.getInt();
+        ArrayList<Instruction> ops = new ArrayList<>(count);
+
+        for (int n = 0; n < count; n++) {
+            Instruction.InstType type = Instruction.InstType.values()[b.get()];
+            Object arg = null;
+            switch (type) {
+                case PUSH:
+                    arg = b.getDouble();
+                    break;
+                case PUSHVAR:
+                case NATIVEFUNC:
+                    arg = readString(b);
+                    break;
+                case EXPR:
+                    arg = readExpression(b);
+                    break;
+                default:
+                    break;
+            }
+            ops.add(new Instruction(type, arg));
+        }
+
+        return new Equation.Expression(raw, ops);
+    }
+}
@@ -0,0 +1,224 @@
+package org.gcalc;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * For internal use by Equation.Expression.
+ *
+ * Evaluates expressions containing ± (PLUSMINUS), which have more than one
+ * result. Each ± doubles the number of results, so an expression with k of
+ * them has 2^k branches, known as soon as it is parsed. Rather than forking
+ * the evaluation at each ±, every value on the stack holds one lane per
+ * branch, and each instruction is applied to all lanes at once. A ± adds in
+ * the lanes whose bit for that ± is clear, and subtracts in the others.
+ *
+ * So branch 0 always takes + at every ±, branch 1 takes - at the first ± and
+ * + at the rest, and so on. The same branch is therefore always the same root,
+ * whatever x is.
+ *
+ * Nested expressions are inlined into one flat program. Lanes are stored in
+ * one array, slot (depth * branches + branch), which callers can allocate
+ * once and reuse for every evaluation.
+ */
+final class BranchProgram {
+    final int branches;
+    /** Whether x is the only variable used, apart from parameters */
+    final boolean onlyX;
+    private final Instruction[] ops;
+    // For each PLUSMINUS instruction, the bit of the branch number it uses
+    private final int[] bits;
+    // For each PUSHVAR instruction of a parameter, its slot, otherwise -1
+    private final int[] paramSlots;
+    private final int maxDepth;
+
+    private BranchProgram(Instruction[] ops, int[] bits, int plusMinusCount, int maxDepth) {
+        boolean onlyX = true;
+        this.paramSlots = new int[ops.length];
+        for (int op = 0; op < ops.length; op++) {
+            Instruction i = ops[op];
+            this.paramSlots[op] = -1;
+            if (i.instruction != Instruction.InstType.PUSHVAR) continue;
+            if (Parameters.isParameter((String) i.arg)) this.paramSlots[op] = Parameters.slot((String) i.arg);
+            else if (!"x".equals(i.arg)) onlyX = false;
+        }
+        this.onlyX = onlyX;
+        this.ops = ops;
+        this.bits = bits;
+        this.branches = 1 << plusMinusCount;
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * Flattens an expression into a branch program.
+     *
+     * @param expr The parsed expression
+     * @return The program, or null if a nested expression doesn't leave
+     *         exactly one value on its stack
+     */
+    static BranchProgram compile(Equation.Expression expr) {
+        ArrayList<Instruction> ops = new ArrayList<>();
+        int[] depth = {0, 0};
+        if (!flatten(expr, ops, depth) || depth[0] != 1) return null;
+
+        int[] bits = new int[ops.size()];
+        int plusMinusCount = 0;
+        for (int i = 0; i < bits.length; i++) {
+            if (ops.get(i).instruction == Instruction.InstType.PLUSMINUS) bits[i] = plusMinusCount++;
+        }
+        return new BranchProgram(ops.toArray(new Instruction[0]), bits, plusMinusCount, depth[1]);
+    }
+
+    /**
+     * Appends the instructions of an expression, with nested expressions
+     * inlined, tracking the stack depth.
+     *
+     * @return false if the expression can't be flattened
+     */
+    private static boolean flatten(Equation.Expression expr, ArrayList<Instruction> ops, int[] depth) {
+        int start = depth[0];
+        for (Instruction i : expr.ops) {
+            switch (i.instruction) {
+                case ADD: case SUB: case MUL: case DIV: case PLUSMINUS:
+                    if (depth[0] - start < 2) return false;
+                    depth[0]--;
+                    break;
+                case FACT:
+                    if (depth[0] - start < 1) return false;
+                    break;
+                case NATIVEFUNC:
+                    if ("POW".equals(i.arg)) {
+                        if (depth[0] - start < 2) return false;
+                        depth[0]--;
+                    } else if ("QUADROOT".equals(i.arg)) {
+                        if (depth[0] - start < 4) return false;
+                        depth[0] -= 3;
+                    } else if (depth[0] - start < 1 || !Equation.Expression.isNativeFn((String) i.arg)) {
+                        return false;
+                    }
+                    break;
+                case EXPR:
+                    if (!flatten((Equation.Expression) i.arg, ops, depth)) return false;
+                    continue;
+                case PUSH: case PUSHVAR:
+                    depth[0]++;
+                    depth[1] = Math.max(depth[1], depth[0]);
+                    break;
+                default:
+                    return false;
+            }
+            ops.add(i);
+        }
+        // A nested expression only returns the top of its stack
+        return depth[0] - start == 1;
+    }
+
+    /**
+     * @return Working storage for evaluate(), which can be reused for any
+     *         number of evaluations on the same thread
+     */
+    double[] newLanes() {
+        return new double[Math.max(1, this.maxDepth) * this.branches];
+    }
+
+    /**
+     * Evaluates every branch.
+     *
+     * @param vars Values of the variables
+     * @param lanes Working storage from newLanes()
+     * @param out Receives the result of each branch, in branch order
+     * @param outOffset Index in out of the first branch's result
+     * @param outStride Distance in out between branches
+     */
+    void evaluate(Map<String, Double> vars, double[] lanes, double[] out, int outOffset, int outStride) {
+        this.run(vars, Double.NaN, lanes);
+        for (int b = 0; b < this.branches; b++) out[outOffset + b * outStride] = lanes[b];
+    }
+
+    /**
+     * Evaluates every branch of an expression of x alone. Only valid if
+     * onlyX is set.
+     *
+     * @see #evaluate(Map, double[], double[], int, int)
+     */
+    void evaluate(double x, double[] lanes, double[] out, int outOffset, int outStride) {
+        this.run(null, x, lanes);
+        for (int b = 0; b < this.branches; b++) out[outOffset + b * outStride] = lanes[b];
+    }
+
+    /**
+     * Runs the program, leaving the result of each branch in the bottom
+     * lanes. Parameters are read from their slots, and other variables are
+     * looked up in vars, or if it is null, are all x.
+     */
+    private void run(Map<String, Double> vars, double x, double[] lanes) {
+        Parameters params = Parameters.get();
+        int n = this.branches;
+        int sp = 0;  // Lane index of the next free stack entry
+
+        for (int op = 0; op < this.ops.length; op++) {
+            Instruction i = this.ops[op];
+            int top = sp - n;  // Top entry
+            int below = top - n;  // Entry under the top
+            switch (i.instruction) {
+                case ADD:
+                    for (int b = 0; b < n; b++) lanes[below + b] = lanes[top + b] + lanes[below + b];
+                    sp = top;
+                    break;
+                case SUB:
+                    for (int b = 0; b < n; b++) lanes[below + b] = lanes[below + b] - lanes[top + b];
+                    sp = top;
+                    break;
+                case MUL:
+                    for (int b = 0; b < n; b++) lanes[below + b] = lanes[top + b] * lanes[below + b];
+                    sp = top;
+                    break;
+                case DIV:
+                    for (int b = 0; b < n; b++) lanes[below + b] = lanes[below + b] / lanes[top + b];
+                    sp = top;
+                    break;
+                case PLUSMINUS:
+                    int bit = this.bits[op];
+                    for (int b = 0; b < n; b++) {
+                        if ((b >> bit & 1) == 0) lanes[below + b] = lanes[below + b] + lanes[top + b];
+                        else lanes[below + b] = lanes[below + b] - lanes[top + b];
+                    }
+                    sp = top;
+                    break;
+                case FACT:
+                    for (int b = 0; b < n; b++) lanes[top + b] = Factorial.fact(lanes[top + b]);
+                    break;
+                case NATIVEFUNC:
+                    if ("POW".equals(i.arg)) {
+                        for (int b = 0; b < n; b++) lanes[below + b] = Math.pow(lanes[below + b], lanes[top + b]);
+                        sp = top;
+                    } else if ("QUADROOT".equals(i.arg)) {
+                        // a, b, c and the sign, with a lowest on the stack
+                        int a = top - 3 * n;
+                        for (int b = 0; b < n; b++) {
+                            lanes[a + b] = Rearranger.quadraticRoot(lanes[a + b], lanes[a + n + b],
+                                    lanes[below + b], lanes[top + b]);
+                        }
+                        sp = a + n;
+                    } else {
+                        String fn = (String) i.arg;
+                        for (int b = 0; b < n; b++) lanes[top + b] = Equation.Expression.nativeFn(fn, lanes[top + b]);
+                    }
+                    break;
+                case PUSH:
+                    double value = (Double) i.arg;
+                    for (int b = 0; b < n; b++) lanes[sp + b] = value;
+                    sp += n;
+                    break;
+                case PUSHVAR:
+                    int slot = this.paramSlots[op];
+                    double v = slot >= 0 ? params.value(slot) : vars == null ? x : vars.get(i.arg);
+                    for (int b = 0; b < n; b++) lanes[sp + b] = v;
+                    sp += n;
+                    break;
+                default:
+                    throw new UnsupportedOperationException("Cannot execute " + i.instruction);
+            }
+        }
+    }
+}
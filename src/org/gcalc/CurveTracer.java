@@ -0,0 +1,192 @@
+package org.gcalc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Samples a parametric or polar curve, (x(t), y(t)), at values of t chosen
+ * so that the curve looks smooth when its samples are joined with straight
+ * lines. Sampling uniformly in t either wastes evaluations on straight
+ * sections or cuts corners on tight loops, since how far the curve moves per
+ * step of t varies along it.
+ *
+ * Instead, t is first split into a few equal segments, and each segment is
+ * halved again while the curve's midpoint is further than a tolerance from
+ * the straight line between its ends, measured in pixels at the current
+ * scale. Straight sections stop being split straight away, and tight loops
+ * are split until they are smooth. Segments where the curve stops existing,
+ * or jumps, are split to find where, and then left as a gap.
+ *
+ * The samples only depend on the scale, not the offset, so they can be kept
+ * while the graph is panned.
+ */
+public final class CurveTracer {
+    /** Equal segments t is split into before adapting */
+    public static final int INITIAL_SEGMENTS = 64;
+    /** Default distance the line drawn can be from the curve, in pixels */
+    public static final double DEFAULT_TOLERANCE = 0.25;
+
+    // Times each initial segment can be halved
+    private static final int MAX_DEPTH = 12;
+    // Samples are never added past this, however badly behaved the curve
+    private static final int MAX_SAMPLES = 50000;
+    // A segment which is still this long after being halved MAX_DEPTH times
+    // is taken to be a jump, and not drawn
+    private static final double JUMP_PIXELS = 50;
+
+    private final Equation equation;
+    private final double tMin, tMax;
+
+    // Both coordinates compiled together, so subexpressions they share (like
+    // r in a polar curve) are computed once. Null if they can't be compiled,
+    // in which case vars is used to evaluate them on their own.
+    private final ExpressionCompiler.SharedProgram program;
+    private final Map<String, Double> vars = new HashMap<>();
+
+    private double pixelsPerUnit, tolerance;
+    private double[] out = new double[0];
+    private int count = 0;
+    private long evaluations = 0;
+    private final double[] point = new double[2];
+
+    /**
+     * @param e A parametric or polar curve
+     */
+    public CurveTracer(Equation e) {
+        this.equation = e;
+        this.tMin = Equation.PARAMETER_MIN;
+        this.tMax = Equation.PARAMETER_MAX;
+
+        List<Equation.Expression> exprs = new ArrayList<>();
+        exprs.add(e.getParametricX());
+        exprs.add(e.getParametricY());
+        ExpressionCompiler.SharedProgram program = ExpressionCompiler.compileShared(exprs, "t");
+        this.program = program.contains(0) && program.contains(1) ? program : null;
+    }
+
+    /**
+     * Samples the curve.
+     *
+     * @param pixelsPerUnit Pixels per graph unit that the curve will be drawn at
+     * @param tolerance Furthest the line drawn through the samples may be from
+     *                  the curve, in pixels
+     * @return Interleaved x, y graph coordinates of each sample, in order of t.
+     *         A pair of NaNs marks a gap in the curve.
+     */
+    public double[] trace(double pixelsPerUnit, double tolerance) {
+        this.pixelsPerUnit = pixelsPerUnit;
+        this.tolerance = tolerance;
+        this.out = new double[8 * INITIAL_SEGMENTS];
+        this.count = 0;
+
+        double step = (this.tMax - this.tMin) / INITIAL_SEGMENTS;
+        double t0 = this.tMin;
+        this.evaluate(t0);
+        double x0 = this.point[0], y0 = this.point[1];
+        this.add(x0, y0);
+
+        for (int i = 1; i <= INITIAL_SEGMENTS; i++) {
+            double t1 = i == INITIAL_SEGMENTS ? this.tMax : this.tMin + i * step;
+            this.evaluate(t1);
+            double x1 = this.point[0], y1 = this.point[1];
+
+            this.subdivide(t0, x0, y0, t1, x1, y1, 0);
+            t0 = t1;
+            x0 = x1;
+            y0 = y1;
+        }
+
+        return java.util.Arrays.copyOf(this.out, 2 * this.count);
+    }
+
+    /**
+     * @return Total number of times the curve has been evaluated
+     */
+    public long getEvaluations() {
+        return this.evaluations;
+    }
+
+    /**
+     * Adds the samples after (x0, y0) up to and including (x1, y1), splitting
+     * the segment between them as needed. (x0, y0) has already been added.
+     */
+    private void subdivide(double t0, double x0, double y0, double t1, double x1, double y1, int depth) {
+        boolean valid0 = isValid(x0, y0), valid1 = isValid(x1, y1);
+        // Nothing to draw between two points where the curve doesn't exist
+        if (!valid0 && !valid1) {
+            this.add(x1, y1);
+            return;
+        }
+
+        double dx = (x1 - x0) * this.pixelsPerUnit, dy = (y1 - y0) * this.pixelsPerUnit;
+        double length = Math.sqrt(dx * dx + dy * dy);
+        if (depth >= MAX_DEPTH || this.count >= MAX_SAMPLES) {
+            // Leave a gap where the curve stops existing or jumps
+            if (!valid0 || !valid1 || length > JUMP_PIXELS) this.add(Double.NaN, Double.NaN);
+            this.add(x1, y1);
+            return;
+        }
+
+        double tm = (t0 + t1) / 2;
+        this.evaluate(tm);
+        double xm = this.point[0], ym = this.point[1];
+
+        if (valid0 && valid1 && isValid(xm, ym) &&
+                this.distanceToChord(x0, y0, x1, y1, xm, ym) <= this.tolerance) {
+            this.add(xm, ym);
+            this.add(x1, y1);
+            return;
+        }
+
+        this.subdivide(t0, x0, y0, tm, xm, ym, depth + 1);
+        this.subdivide(tm, xm, ym, t1, x1, y1, depth + 1);
+    }
+
+    /**
+     * @return Distance in pixels from (xm, ym) to the line segment between
+     *         (x0, y0) and (x1, y1)
+     */
+    private double distanceToChord(double x0, double y0, double x1, double y1, double xm, double ym) {
+        double ppu = this.pixelsPerUnit;
+        double cx = (x1 - x0) * ppu, cy = (y1 - y0) * ppu;
+        double px = (xm - x0) * ppu, py = (ym - y0) * ppu;
+        double lengthSq = cx * cx + cy * cy;
+
+        // Project onto the chord, clamped to its ends, so a curve doubling
+        // back past an end still counts as far away
+        double along = lengthSq == 0 ? 0 : Math.max(0, Math.min(1, (px * cx + py * cy) / lengthSq));
+        double ex = px - along * cx, ey = py - along * cy;
+        return Math.sqrt(ex * ex + ey * ey);
+    }
+
+    private static boolean isValid(double x, double y) {
+        return !Double.isNaN(x) && !Double.isNaN(y) && !Double.isInfinite(x) && !Double.isInfinite(y);
+    }
+
+    /**
+     * Evaluates the curve at t into this.point.
+     */
+    private void evaluate(double t) {
+        this.evaluations++;
+        if (this.program != null) {
+            this.program.evaluate(t);
+            this.point[0] = this.program.result(0);
+            this.point[1] = this.program.result(1);
+        } else {
+            this.vars.put("t", t);
+            this.point[0] = this.equation.getParametricX().evaluate(this.vars)[0];
+            this.point[1] = this.equation.getParametricY().evaluate(this.vars)[0];
+        }
+    }
+
+    private void add(double x, double y) {
+        if (2 * this.count + 2 > this.out.length) {
+            this.out = java.util.Arrays.copyOf(this.out, this.out.length * 2);
+        }
+        this.out[2 * this.count] = x;
+        this.out[2 * this.count + 1] = y;
+        this.count++;
+    }
+}
@@ -3,6 +3,7 @@ package org.gcalc;
 import java.security.InvalidParameterException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.lang.UnsupportedOperationException;
 
@@ -12,7 +13,20 @@ import java.lang.UnsupportedOperationException;
  * that as little variables as possible are needed to evaluate the equation.
  */
 public class Equation {
+    /**
+     * Most ± signs allowed in one equation. Each one doubles the number of
+     * roots, and so the work needed to evaluate and draw it.
+     */
+    public static final int MAX_PLUSMINUS = 4;
+
+    /**
+     * Range of t drawn for parametric and polar curves, once around a circle
+     */
+    public static final double PARAMETER_MIN = 0, PARAMETER_MAX = 2 * Math.PI;
+
     private Expression rhs;
+    // x(t) and y(t) for parametric and polar curves, which have no rhs
+    private Expression parametricX, parametricY;
     boolean isEmpty;
     private String rawEquation;
 
@@ -31,23 +45,93 @@ public class Equation {
             return;
         }
 
-        String[] equationParts = rawEquation.split("=");
+        if (this.parseParametric(rawEquation)) return;
+
+        String[] equationParts = rawEquation.split("=", -1);
 //equation check implementation-trials
         if (equationParts.length > 2)
             throw new InvalidParameterException(
                     "Equation must not contain multiple equalities");
 
-        if (!rawEquation.contains("="))
+        if (!rawEquation.contains("=")) {
             // We assume that if no equality is specified, that the entire
             // expression is equal to y
             this.rhs = new Expression(rawEquation);
-        else {
+        } else {
             // If an equality is specified, we need to make sure that the
             // equation is expressed in terms of y, so that the evaluate()
             // method works properly (it's rather naive)
-            equationParts[1] = this.rearrange(equationParts[0], equationParts[1]);
-            equationParts[0] = "y";
+            if (equationParts[0].isEmpty() || equationParts[1].isEmpty())
+                throw new InvalidParameterException(
+                        "Both sides of an equation must be given");
+            this.rhs = this.rearrange(rawEquation, equationParts[0], equationParts[1]);
         }
+
+        if (this.rhs.getBranchCount() > 1 << MAX_PLUSMINUS)
+            throw new InvalidParameterException(
+                    "Equation must not contain more than " + MAX_PLUSMINUS + " ± signs");
+    }
+
+    /**
+     * Creates an Equation from an already compiled right hand side, skipping
+     * parsing entirely. Used when loading binary workspaces, which store the
+     * compiled instructions alongside the raw text.
+     *
+     * @param rawEquation The text the expression was originally parsed from
+     * @param rhs The compiled expression, which must match rawEquation
+     * @throws IllegalArgumentException if the expression has more ± signs
+     *         than parsing allows, so can't have come from valid text
+     */
+    Equation(String rawEquation, Expression rhs) throws IllegalArgumentException {
+        // The same limit as parsing, as a damaged file could otherwise ask
+        // for up to 2^30 branches
+        if (rhs.getBranchCount() > 1 << MAX_PLUSMINUS)
+            throw new IllegalArgumentException(
+                    "Compiled expression has more than " + MAX_PLUSMINUS + " ± signs");
+
+        this.rawEquation = rawEquation;
+        this.isEmpty = rawEquation.replaceAll(" ", "").isEmpty();
+        this.rhs = rhs;
+    }
+
+    /**
+     * Recognises the two kinds of curve which aren't functions of x:
+     * parametric curves, written as a pair (x(t), y(t)), and polar curves,
+     * written r=f(θ). θ may also be typed as theta or t. Polar curves are
+     * turned into the parametric pair (f(t)cos(t), f(t)sin(t)).
+     *
+     * @param raw The equation with whitespace removed
+     * @return Whether the equation was a parametric or polar curve
+     * @throws InvalidParameterException if it was, but is malformed
+     */
+    private boolean parseParametric(String raw) throws InvalidParameterException {
+        if (raw.startsWith("r=")) {
+            String r = "(" + raw.substring(2).replaceAll("theta|θ", "t") + ")";
+            this.parametricX = new Expression(r + "*cos(t)");
+            this.parametricY = new Expression(r + "*sin(t)");
+        } else if (raw.startsWith("(") && raw.endsWith(")")) {
+            // Find a comma between the outermost brackets, and make sure
+            // they are the same pair
+            int depth = 0, comma = -1;
+            for (int i = 0; i < raw.length(); i++) {
+                char c = raw.charAt(i);
+                if (c == '(') depth++;
+                else if (c == ')') depth--;
+                else if (c == ',' && depth == 1 && comma < 0) comma = i;
+                if (depth == 0 && i < raw.length() - 1) return false;
+            }
+            if (comma < 0) return false;
+
+            this.parametricX = new Expression(raw.substring(1, comma));
+            this.parametricY = new Expression(raw.substring(comma + 1, raw.length() - 1));
+        } else {
+            return false;
+        }
+
+        if (this.parametricX.getBranchCount() > 1 || this.parametricY.getBranchCount() > 1)
+            throw new InvalidParameterException(
+                    "± can't be used in parametric or polar curves");
+        return true;
     }
 
     public String toString(){
@@ -66,13 +150,14 @@ public class Equation {
      * values.
      *
      * A NaN value means that that root does not exist for the specified x
-     * value.
+     * value. Parametric and polar curves aren't functions of x, so always
+     * give NaN.
      *
      * @param x The x value to insert into the equation
      * @return Array of roots - each root is either a valid number, or NaN
      */
     public double[] evaluate(double x) {
-        if (this.isEmpty)
+        if (this.isEmpty || this.isParametric())
             return new double[]{Double.NaN};
         else {
             Map<String, Double> args = new HashMap<>();
@@ -82,25 +167,88 @@ public class Equation {
         }
     }
 
+    /**
+     * @return The number of roots evaluate() returns, which is the same for
+     *         every x
+     */
+    public int getBranchCount() {
+        return this.isEmpty || this.rhs == null ? 1 : this.rhs.getBranchCount();
+    }
+
+    /**
+     * @return The names of the parameters the equation uses, in the order
+     *         they first appear
+     */
+    public List<String> getParameters() {
+        List<String> names = new ArrayList<>();
+        Parameters.collect(this.rhs, names);
+        Parameters.collect(this.parametricX, names);
+        Parameters.collect(this.parametricY, names);
+        return names;
+    }
+
+    /**
+     * @param name A parameter name
+     * @return Whether the equation uses the parameter
+     */
+    public boolean usesParameter(String name) {
+        return this.getParameters().contains(name);
+    }
+
+    /**
+     * @return Whether this is a parametric or polar curve, which is drawn by
+     *         evaluating getParametricX() and getParametricY() for t between
+     *         PARAMETER_MIN and PARAMETER_MAX rather than by evaluate()
+     */
+    public boolean isParametric() {
+        return this.parametricX != null;
+    }
+
+    /**
+     * @return The x coordinate of a parametric or polar curve, in terms of t,
+     *         or null if this isn't one
+     */
+    public Expression getParametricX() {
+        return this.parametricX;
+    }
+
+    /**
+     * @return The y coordinate of a parametric or polar curve, in terms of t,
+     *         or null if this isn't one
+     */
+    public Expression getParametricY() {
+        return this.parametricY;
+    }
+
     /**
      * Retrieves the expression that is evaluated by evaluate()
      *
-     * @return The right hand side of the Equation
+     * @return The right hand side of the Equation, or null for parametric
+     *         and polar curves
      */
     public Expression getRightHandSide() {
         return this.rhs;
     }
 
     /**
-     * Rearranges an equation to be expressed in terms of y.
+     * Rearranges an equation to be expressed in terms of y. This is done once,
+     * here, so equations like x^2+y^2=4 are drawn as quickly as y=f(x).
      *
+     * @param raw The whole equation
      * @param lhs Expression on left side of equals sign
      * @param rhs Expression on right side of equals sign
      * @return The expression on the right side of the rearranged equation's
-     *         equals sign (left side is implied to be `y=`)
+     *         equals sign (left side is implied to be `y=`), which has two
+     *         branches if the equation is quadratic in y
+     * @throws InvalidParameterException if either side is malformed, or the
+     *         equation isn't linear or quadratic in y
      */
-    private String rearrange(String lhs, String rhs) {
-        return null;
+    private Expression rearrange(String raw, String lhs, String rhs) throws InvalidParameterException {
+        Expression solved = Rearranger.solve(raw, new Expression(lhs), new Expression(rhs));
+        if (solved == null)
+            throw new InvalidParameterException(
+                    "Equation must be linear or quadratic in y");
+        return solved;
     }
 
     /**
@@ -120,6 +268,20 @@ public class Equation {
          */
         protected ArrayList<Instruction> ops = new ArrayList<>();
 
+        /**
+         * Flat version of ops with common subexpressions eliminated, built
+         * the first time the Expression is evaluated
+         */
+        private volatile ExpressionCompiler.Program compiled;
+        private volatile boolean compileAttempted = false;
+
+        /**
+         * Number of ± signs, including in nested Expressions, and the program
+         * which evaluates each branch they create, if there are any
+         */
+        private int plusMinusCount;
+        private volatile BranchProgram branchProgram;
+
         /**
          * Creates a parsed Expression which is prepared for evaluation.
          *
@@ -132,9 +294,51 @@ public class Equation {
                     .replaceAll("-\\++", "-")   // Simplify equivalent expressions:
                     .replaceAll("/\\++", "/")
                     .replaceAll("\\+\\++", "+")
-                    .replaceAll("\\*\\++", "+");
+                    .replaceAll("\\*\\++", "+")
+                    .replaceAll("\\+/-", "±");   // Easier to type than ±
 
             this.parseRecursive();
+            this.plusMinusCount = this.countPlusMinus();
+        }
+
+        /**
+         * Creates an Expression from an already compiled instruction list,
+         * without parsing.
+         *
+         * @param rawExpression The normalised text the instructions came from
+         * @param ops The compiled instructions
+         */
+        Expression(String rawExpression, ArrayList<Instruction> ops) {
+            this.rawExpression = rawExpression;
+            this.ops = ops;
+            this.plusMinusCount = this.countPlusMinus();
+        }
+
+        private int countPlusMinus() {
+            int count = 0;
+            for (Instruction i : this.ops) {
+                if (i.instruction == Instruction.InstType.PLUSMINUS) count++;
+                else if (i.instruction == Instruction.InstType.EXPR) count += ((Expression) i.arg).plusMinusCount;
+            }
+            return count;
+        }
+
+        /**
+         * @return The number of results evaluate() returns: 2 to the power of
+         *         the number of ± signs
+         */
+        public int getBranchCount() {
+            return 1 << Math.min(30, this.plusMinusCount);
+        }
+
+        /**
+         * @return The program evaluating every branch, or null if there is
+         *         only one branch or the expression can't be flattened
+         */
+        BranchProgram getBranchProgram() {
+            if (this.plusMinusCount == 0) return null;
+            if (this.branchProgram == null) this.branchProgram = BranchProgram.compile(this);
+            return this.branchProgram;
         }
 
         /**
@@ -182,6 +386,15 @@ public class Equation {
                     case PUSHVAR:
                         ret += "PUSHVAR " + i.arg;
                         break;
+                    case LOAD:
+                        ret += "LOAD " + i.arg;
+                        break;
+                    case STORE:
+                        ret += "STORE " + i.arg;
+                        break;
+                    case PARAM:
+                        ret += "PARAM " + Parameters.name((Integer) i.arg);
+                        break;
                 }
 
                 ret += "\n";
@@ -206,7 +419,16 @@ public class Equation {
          * @return A list of results, one for each root of the expression
          */
         public double[] evaluate(Map<String, Double> vars) throws IndexOutOfBoundsException {
-            // TODO add support for multiple return values
+            ExpressionCompiler.Program program = this.getCompiled();
+            if (program != null) return new double[]{program.evaluate(vars)};
+
+            BranchProgram branches = this.getBranchProgram();
+            if (branches != null) {
+                double[] ret = new double[branches.branches];
+                branches.evaluate(vars, branches.newLanes(), ret, 0, 1);
+                return ret;
+            }
+
             ArrayList<Double> stack = new ArrayList<>();
 
             // Used for instructions where order of operands matters
@@ -234,7 +456,8 @@ public class Equation {
                         push(stack, Factorial.fact(pop(stack)));
                         break;
                     case PLUSMINUS:
-                        throw new UnsupportedOperationException();
+                        // Only reached if the branch program couldn't be built
+                        throw new UnsupportedOperationException("Cannot evaluate ± in " + this.rawExpression);
                     case NATIVEFUNC:
                         push(stack, this.nativeFnInvoke(i, stack));
                         break;
@@ -245,7 +468,11 @@ public class Equation {
                         push(stack, (double) i.arg);
                         break;
                     case PUSHVAR:
-                        push(stack, vars.get(i.arg));
+                        // Parameters come from their slot, as in compiled programs
+                        if (Parameters.isParameter((String) i.arg))
+                            push(stack, Parameters.get().value((String) i.arg));
+                        else
+                            push(stack, vars.get(i.arg));
                         break;
                 }
             }
@@ -253,6 +480,33 @@ public class Equation {
             return new double[]{pop(stack)};
         }
 
+        /**
+         * Compiles the expression on first use. Expressions the compiler
+         * can't handle are evaluated by walking ops directly.
+         *
+         * @return The compiled program, or null if it couldn't be compiled
+         */
+        private ExpressionCompiler.Program getCompiled() {
+            if (!this.compileAttempted) {
+                this.compiled = ExpressionCompiler.compile(this);
+                this.compileAttempted = true;
+            }
+            return this.compiled;
+        }
+
+        /**
+         * Reports how much common subexpression elimination saved, as the
+         * number of instructions which would otherwise be executed on every
+         * evaluation.
+         *
+         * @return The number of instructions removed, or 0 if the expression
+         *         couldn't be optimised
+         */
+        public long getRemovedInstructions() {
+            ExpressionCompiler.Program program = this.getCompiled();
+            return program == null ? 0 : program.removed;
+        }
+
         /**
          * Recursively parses this.rawExpression, creating new Expressions for
          * each bracketed region. Ensures that the rules of operator precedence
@@ -372,8 +626,12 @@ public class Equation {
                             "Uneven number of start and end parentheses");
                 }
 
+                // A leading ± applies to the first term, as if it were 0±...
+                if (r == '±' && this.ops.isEmpty())
+                    ops.add(new Instruction(Instruction.InstType.PUSH, 0.0));
+
                 // Handle operators and operator precedence
-                if (r == '+' || r == '-' || r == '/' || r == '*' || r == '^') {
+                if (r == '+' || r == '-' || r == '±' || r == '/' || r == '*' || r == '^') {
                     lastCharWasOper = true;
 
                     if (opStack.isEmpty()) {
@@ -474,49 +732,80 @@ public class Equation {
          *         but the result is not pushed back)
          */
         protected double nativeFnInvoke(Instruction i, ArrayList<Double> stack) {
-            switch ((String) i.arg) {
+            if ("POW".equals(i.arg)) {
+                double d1 = pop(stack), d2 = pop(stack);
+                return Math.pow(d2, d1);
+            }
+            if ("QUADROOT".equals(i.arg)) {
+                double sign = pop(stack), c = pop(stack), b = pop(stack), a = pop(stack);
+                return Rearranger.quadraticRoot(a, b, c, sign);
+            }
+            return nativeFn((String) i.arg, pop(stack));
+        }
+
+        /**
+         * @param fn Name of a function, as stored in a `NATIVEFUNC` instruction
+         * @return Whether fn is a supported single argument function
+         */
+        static boolean isNativeFn(String fn) {
+            switch (fn) {
+                case "SIN": case "COS": case "TAN": case "ASIN": case "ACOS": case "ATAN":
+                case "SINH": case "COSH": case "TANH": case "LN": case "LOG": case "SQRT":
+                case "CBRT": case "FLOOR": case "CEIL": case "ROUND": case "EXP": case "ABS":
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        /**
+         * Calls a single argument function by name.
+         *
+         * @param fn Name of the function, as stored in a `NATIVEFUNC` instruction
+         * @param x The argument
+         * @return The result of the function
+         */
+        static double nativeFn(String fn, double x) {
+            switch (fn) {
                 case "SIN":
-                    return Math.sin(pop(stack));
+                    return Math.sin(x);
                 case "COS":
-                    return Math.cos(pop(stack));
+                    return Math.cos(x);
                 case "TAN":
-                    return Math.tan(pop(stack));
+                    return Math.tan(x);
                 case "ASIN":
-                    return Math.asin(pop(stack));
+                    return Math.asin(x);
                 case "ACOS":
-                    return Math.acos(pop(stack));
+                    return Math.acos(x);
                 case "ATAN":
-                    return Math.atan(pop(stack));
+                    return Math.atan(x);
                 case "SINH":
-                    return Math.sinh(pop(stack));
+                    return Math.sinh(x);
                 case "COSH":
-                    return Math.cosh(pop(stack));
+                    return Math.cosh(x);
                 case "TANH":
-                    return Math.tanh(pop(stack));
+                    return Math.tanh(x);
                 case "LN":
-                    return Math.log(pop(stack));
+                    return Math.log(x);
                 case "LOG":
-                    return Math.log10(pop(stack));
+                    return Math.log10(x);
                 case "SQRT":
-                    return Math.sqrt(pop(stack));
+                    return Math.sqrt(x);
                 case "CBRT":
-                    return Math.cbrt(pop(stack));
+                    return Math.cbrt(x);
                 case "FLOOR":
-                    return Math.floor(pop(stack));
+                    return Math.floor(x);
                 case "CEIL":
-                    return Math.ceil(pop(stack));
+                    return Math.ceil(x);
                 case "ROUND":
-                    return Math.round(pop(stack));
+                    return Math.round(x);
                 case "EXP":
-                    return Math.exp(pop(stack));
+                    return Math.exp(x);
                 case "ABS":
-                    return Math.abs(pop(stack));
-                case "POW":
-                    double d1 = pop(stack), d2 = pop(stack);
-                    return Math.pow(d2, d1);
+                    return Math.abs(x);
                 default:
                     throw new UnsupportedOperationException(
-                            "Attempted to call unknown native function " + i.arg);
+                            "Attempted to call unknown native function " + fn);
             }
         }
 
@@ -528,12 +817,12 @@ public class Equation {
          * @return Whether lower has a lower precedence than higher
          */
         protected static boolean higherPrecedence(char lower, char higher) {
-            // Nothing has lower precedence than + or -
-            if (higher == '+' || higher == '-') return false;
+            // Nothing has lower precedence than +, - or ±
+            if (higher == '+' || higher == '-' || higher == '±') return false;
             // Power operator has highest precedence
             if (higher == '^' && lower != '^') return true;
-            // * and / are only higher precedence than + or -
-            else return (lower == '+' || lower == '-');
+            // * and / are only higher precedence than +, - or ±
+            else return (lower == '+' || lower == '-' || lower == '±');
         }
 
         /**
@@ -560,73 +849,3 @@ public class Equation {
         }
     }
 }
-
-/**
- * For internal use by Equation.Expression. Don't use this manually.
- *
- * Acts as a structure which stores the type of the instruction, as well as any
- * optional operands. Due to the use of a stack machine approach to evaluating
- * instructions, most instructions do not have any operands.
- */
-class Instruction {
-    /**
-     * All supported operation types.
-     */
-    public enum InstType {
-        // No args
-        ADD, SUB, MUL, DIV, FACT, PLUSMINUS,
-        // Takes a string naming a math function to execute (e.g. "sin")
-        NATIVEFUNC,
-        // Takes an Expression instance, which is evaluated, and the result pushed
-        EXPR,
-        // Takes a Double to push onto the operand stack
-        PUSH,
-        // Takes a string naming a variable which will be supplied at eval time
-        PUSHVAR
-    }
-
-    /**
-     * The type of instruction (i.e. what it will do)
-     */
-    public InstType instruction;
-
-    /**
-     * An optional argument, or null
-     */
-    public Object arg;
-
-    /**
-     * Creates a new instruction definition. Many instructions do not need an
-     * argument, in which case, arg should be null. Others will take instruction-
-     * specific arguments.
-     *
-     * @param instruction The instruction to represent
-     * @param arg An optional argument for the ex
-     */
-    public Instruction(InstType instruction, Object arg) {
-        this.instruction = instruction;
-        this.arg = arg;
-    }
-
-    /**
-     * Creates an Instruction from one of +,-,/,*
-     *
-     * @param op A char representing the operator to create
-     */
-    public static Instruction fromOperator(char op) {
-        switch(op) {
-            case '+':
-                return new Instruction(InstType.ADD, null);
-            case '-':
-                return new Instruction(InstType.SUB, null);
-            case '/':
-                return new Instruction(InstType.DIV, null);
-            case '*':
-                return new Instruction(InstType.MUL, null);
-            case '^':
-                return new Instruction(InstType.NATIVEFUNC, "POW");
-            default:
-                return null;
-        }
-    }
-}
@@ -17,7 +17,9 @@ public class EquationEditor extends JPanel implements AncestorListener, ActionLi
     private JLabel title;
     private JPanel titleRow, buttonRow;
     private JButton deleteBtn;
+    private JToggleButton integralBtn;
     private JTextField editor;
+    private IntegralPanel integral;
 
     private Color editorNormalColor;
 
@@ -26,6 +28,18 @@ public class EquationEditor extends JPanel implements AncestorListener, ActionLi
     private Equation equation; // Changed to not initialize here, but in constructor
 
     public EquationEditor(int id, String initialEquationString) { // ADDED initialEquationString
+        this(id, new Equation(initialEquationString));
+    }
+
+    /**
+     * Creates an editor for an equation which has already been parsed (or
+     * loaded precompiled), so the text isn't parsed again.
+     *
+     * @param id The index of the editor in the sidebar
+     * @param initialEquation The equation to edit
+     */
+    public EquationEditor(int id, Equation initialEquation) {
+        String initialEquationString = initialEquation.toString();
         this.setLayout(new BoxLayout(this, BoxLayout.PAGE_AXIS));
 
         this.titleRow = new JPanel();
@@ -41,7 +55,7 @@ public class EquationEditor extends JPanel implements AncestorListener, ActionLi
         // This prevents the DocumentListener from firing immediately on setText
         // However, if you want it to fire and process the initial string, you can keep setText after.
         // For clean initialization, it's often better to create the Equation object directly.
-        this.equation = new Equation(initialEquationString); // Initialize Equation here
+        this.equation = initialEquation;
         this.editor.setText(initialEquationString); // Set text field directly
 
         // Now add the listener. Any *subsequent* changes will trigger equationChanged().
@@ -62,9 +76,19 @@ public class EquationEditor extends JPanel implements AncestorListener, ActionLi
 
         this.editor.addAncestorListener(this);
 
+        // Only shown once the integral button is pressed
+        this.integral = new IntegralPanel(this);
+        this.integral.setVisible(false);
+        this.add(this.integral);
+
         this.buttonRow = new JPanel();
         this.buttonRow.setLayout(new FlowLayout(FlowLayout.RIGHT));
 
+        this.integralBtn = new JToggleButton("∫");
+        this.integralBtn.setToolTipText("Integrate between two values of x");
+        this.integralBtn.addActionListener(this);
+        this.buttonRow.add(this.integralBtn);
+
         this.deleteBtn = new JButton("Delete");
         this.deleteBtn.addActionListener(this);
         this.buttonRow.add(this.deleteBtn);
@@ -72,12 +96,6 @@ public class EquationEditor extends JPanel implements AncestorListener, ActionLi
         this.add(this.buttonRow);
 
         this.setID(id);
-
-        // Call equationChanged() once after full setup to ensure initial state is processed
-        // and listeners are notified. This is important if initialEquationString is not empty.
-        if (!initialEquationString.isEmpty()) {
-            this.equationChanged();
-        }
     }
 
     // --- Original setEquationText method ---
@@ -117,6 +135,38 @@ public class EquationEditor extends JPanel implements AncestorListener, ActionLi
 
         if (source.equals(this.deleteBtn)) {
             this.delete();
+        } else if (source.equals(this.integralBtn)) {
+            this.setIntegralShown(this.integralBtn.isSelected());
+        }
+    }
+
+    /**
+     * Shows or hides the integral of the equation, below the editor. Hiding
+     * it also removes the shading from the graph.
+     *
+     * @param shown Whether to show the integral
+     */
+    public void setIntegralShown(boolean shown) {
+        this.integralBtn.setSelected(shown);
+        this.integral.setVisible(shown);
+        if (shown) {
+            this.integral.setEquation(this.equation);
+        } else {
+            this.integral.cancel();
+            this.integralChanged(Double.NaN, Double.NaN);
+        }
+        this.setWidth(this.width);
+    }
+
+    /**
+     * Tells listeners that the range to integrate over has changed.
+     *
+     * @param from Start of the range, or NaN if there isn't one
+     * @param to End of the range, or NaN if there isn't one
+     */
+    void integralChanged(double from, double to) {
+        for (EquationEditorListener l : this.listeners) {
+            l.integralChanged(this.id, this.equation, from, to);
         }
     }
 
@@ -154,8 +204,9 @@ public class EquationEditor extends JPanel implements AncestorListener, ActionLi
 
     public void setWidth(int width) {
         this.width = width;
-        this.setPreferredSize(new Dimension(width, 92));
-        this.setMaximumSize(new Dimension(width, 92));
+        int height = this.integral.isVisible() ? 156 : 92;
+        this.setPreferredSize(new Dimension(width, height));
+        this.setMaximumSize(new Dimension(width, height));
         this.editor.setMaximumSize(new Dimension(width - 10, 30));
 
         this.revalidate();
@@ -185,11 +236,23 @@ public class EquationEditor extends JPanel implements AncestorListener, ActionLi
     }
 
     protected void equationChanged() {
+        String text = this.editor.getText();
+        long parseStart = System.nanoTime();
+        RenderEvents.Parse event = new RenderEvents.Parse();
+        event.begin();
         try {
-            this.equation = new Equation(this.editor.getText());
+            this.equation = new Equation(text);
+            event.success = true;
         } catch (Exception e) {
             this.setInvalid();
             return;
+        } finally {
+            RenderMetrics.get().record(RenderMetrics.Stage.PARSE, parseStart);
+            event.end();
+            if (event.shouldCommit()) {
+                event.length = text.length();
+                event.commit();
+            }
         }
 
         this.setValid();
@@ -197,6 +260,7 @@ public class EquationEditor extends JPanel implements AncestorListener, ActionLi
         for (EquationEditorListener l : this.listeners) {
             l.equationEdited(this.id, this.equation);
         }
+        this.integral.setEquation(this.equation);
     }
 
     private void darkenAllComponents() {
@@ -205,6 +269,7 @@ public class EquationEditor extends JPanel implements AncestorListener, ActionLi
         // darkenComponent(this.editor);
         // darkenComponent(this.buttonRow);
         // darkenComponent(this.deleteBtn);
+        // darkenComponent(this.integralBtn);
     }
 
     private void lightenAllComponents() {
@@ -213,6 +278,7 @@ public class EquationEditor extends JPanel implements AncestorListener, ActionLi
         lightenComponent(this.editor);
         lightenComponent(this.buttonRow);
         lightenComponent(this.deleteBtn);
+        lightenComponent(this.integralBtn);
     }
 
     private void darkenComponent(Component c) {
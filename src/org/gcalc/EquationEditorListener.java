@@ -21,4 +21,15 @@ public interface EquationEditorListener {
      * @param id The id of the removed EquationEditor
      */
     void equationRemoved(int id);
+
+    /**
+     * Signals that the range an EquationEditor integrates over has changed,
+     * or that it has stopped integrating.
+     *
+     * @param id The id of the EquationEditor
+     * @param equation The equation being integrated
+     * @param from Start of the range, or NaN if there isn't one
+     * @param to End of the range, or NaN if there isn't one
+     */
+    default void integralChanged(int id, Equation equation, double from, double to) {}
 }
@@ -1,5 +1,7 @@
 package org.gcalc;
 
+import java.util.List;
+
 /**
  * Contains event triggers for any equation in a list of equations is modified
  * in any way. Designed as an efficient interface between the Sidebar and a
@@ -17,6 +19,21 @@ public interface EquationListener {
      */
     void equationAdded(int id, Equation newEquation, EquationEditor editor);
 
+    /**
+     * Signals that a batch of new equations has been appended, such as while a
+     * workspace is being imported. Listeners which do expensive work per
+     * event, like redrawing, can override this to do it once per batch.
+     *
+     * @param firstId The array index of the first new equation
+     * @param newEquations The newly added equations, in order
+     * @param editors The editors used to modify each equation
+     */
+    default void equationsAdded(int firstId, List<Equation> newEquations, List<EquationEditor> editors) {
+        for (int i = 0; i < newEquations.size(); i++) {
+            this.equationAdded(firstId + i, newEquations.get(i), editors.get(i));
+        }
+    }
+
     /**
      * Called when one or more equations have been removed.
      *
@@ -32,4 +49,14 @@ public interface EquationListener {
      * @param e The equation object to replace the old one with
      */
     void equationChanged(int id, Equation e);
+
+    /**
+     * Called when the range an equation is integrated over has changed, so
+     * that it can be shaded.
+     *
+     * @param e The equation being integrated
+     * @param from Start of the range, or NaN if it is no longer integrated
+     * @param to End of the range, or NaN if it is no longer integrated
+     */
+    default void integralChanged(Equation e, double from, double to) {}
 }
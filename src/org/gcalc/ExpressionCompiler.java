@@ -0,0 +1,508 @@
+package org.gcalc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * For internal use by Equation.Expression.
+ *
+ * Rewrites an Expression's nested stack programs as a single flat program,
+ * with common subexpressions only computed once. The instructions are first
+ * turned into a tree, and structurally identical subtrees are merged as they
+ * are built (hash consing), giving a DAG. Any operation used more than once
+ * is then stored into a temporary slot the first time it is computed, and
+ * loaded from the slot everywhere else, so sin(x)^2+cos(x)*sin(x) only calls
+ * sin once per evaluation.
+ *
+ * Operations are performed on exactly the same operands in the same order as
+ * before, so results are bit-for-bit identical. Programs which can't be
+ * represented as a tree aren't compiled and are evaluated as before, and
+ * ones using PLUSMINUS are left to BranchProgram.
+ */
+class ExpressionCompiler {
+    /**
+     * One operation in the DAG. Operands are interned nodes, so two nodes are
+     * structurally equal exactly when their type, argument and operand
+     * references are equal.
+     */
+    static final class Node {
+        final Instruction.InstType type;
+        final Object arg;
+        // Operands, in the order they are pushed. b is only set for binary ops.
+        final Node a, b;
+        private final int hash;
+
+        // Number of distinct parent nodes (or roots) using this node
+        int uses = 0;
+        // Temporary slot holding this node's value, or -1
+        int slot = -1;
+
+        Node(Instruction.InstType type, Object arg, Node a, Node b) {
+            this.type = type;
+            this.arg = arg;
+            this.a = a;
+            this.b = b;
+            this.hash = Objects.hash(type, arg, System.identityHashCode(a), System.identityHashCode(b));
+        }
+
+        boolean isLeaf() {
+            return this.a == null;
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Node)) return false;
+            Node n = (Node) o;
+            // Double.equals compares bits, so 0.0 and -0.0 stay distinct
+            return this.type == n.type && Objects.equals(this.arg, n.arg) && this.a == n.a && this.b == n.b;
+        }
+    }
+
+    /**
+     * A compiled flat program, evaluated with a primitive stack and an array
+     * of temporary slots.
+     */
+    static final class Program {
+        final Instruction[] ops;
+        final int slotCount;
+        final int maxDepth;
+        /**
+         * Instructions no longer executed because their result is reused,
+         * not counting the slot loads and stores which replace them
+         */
+        final long removed;
+
+        Program(Instruction[] ops, int slotCount, int maxDepth, long removed) {
+            this.ops = ops;
+            this.slotCount = slotCount;
+            this.maxDepth = maxDepth;
+            this.removed = removed;
+        }
+
+        double evaluate(Map<String, Double> vars) {
+            Parameters params = Parameters.get();
+            double[] stack = new double[this.maxDepth];
+            double[] slots = this.slotCount > 0 ? new double[this.slotCount] : null;
+            int sp = 0;
+            double n1, n2;
+
+            for (Instruction i : this.ops) {
+                switch (i.instruction) {
+                    case ADD:
+                        n1 = stack[--sp];
+                        stack[sp - 1] = n1 + stack[sp - 1];
+                        break;
+                    case SUB:
+                        n1 = stack[--sp];
+                        stack[sp - 1] = stack[sp - 1] - n1;
+                        break;
+                    case MUL:
+                        n1 = stack[--sp];
+                        stack[sp - 1] = n1 * stack[sp - 1];
+                        break;
+                    case DIV:
+                        n1 = stack[--sp];
+                        stack[sp - 1] = stack[sp - 1] / n1;
+                        break;
+                    case FACT:
+                        stack[sp - 1] = Factorial.fact(stack[sp - 1]);
+                        break;
+                    case NATIVEFUNC:
+                        if ("POW".equals(i.arg)) {
+                            n1 = stack[--sp];
+                            n2 = stack[sp - 1];
+                            stack[sp - 1] = Math.pow(n2, n1);
+                        } else {
+                            stack[sp - 1] = Equation.Expression.nativeFn((String) i.arg, stack[sp - 1]);
+                        }
+                        break;
+                    case PUSH:
+                        stack[sp++] = (Double) i.arg;
+                        break;
+                    case PUSHVAR:
+                        stack[sp++] = vars.get(i.arg);
+                        break;
+                    case PARAM:
+                        stack[sp++] = params.value((Integer) i.arg);
+                        break;
+                    case STORE:
+                        slots[(Integer) i.arg] = stack[sp - 1];
+                        break;
+                    case LOAD:
+                        stack[sp++] = slots[(Integer) i.arg];
+                        break;
+                    default:
+                        throw new UnsupportedOperationException("Cannot execute " + i.instruction);
+                }
+            }
+
+            return stack[sp - 1];
+        }
+    }
+
+    /**
+     * Several expressions of x compiled into one shared DAG. Each distinct
+     * operation is computed once per x, no matter how many of the
+     * expressions use it, and its value is read by all of them.
+     *
+     * Parameters are treated like constants: their values are bound into
+     * the program when it is built, or by bindParameters(), rather than read
+     * for every x.
+     */
+    static final class SharedProgram {
+        private final Instruction.InstType[] types;
+        private final String[] fns;
+        private final int[] a, b;
+        private final boolean[] isX;
+        // Parameter slot of each parameter node, or -1
+        private final int[] paramSlots;
+        // Value of every node for the current x. Constants are filled in once.
+        private final double[] values;
+        private final int[] roots;
+
+        /** Operations computed per x, with everything shared */
+        final long operations;
+        /** Operations per x if each expression were evaluated on its own */
+        final long unsharedOperations;
+
+        SharedProgram(ArrayList<Node> order, int[] roots, long unsharedOperations, String variable) {
+            int n = order.size();
+            this.paramSlots = new int[n];
+            this.types = new Instruction.InstType[n];
+            this.fns = new String[n];
+            this.a = new int[n];
+            this.b = new int[n];
+            this.isX = new boolean[n];
+            this.values = new double[n];
+            this.roots = roots;
+
+            long operations = 0;
+            for (int i = 0; i < n; i++) {
+                Node node = order.get(i);
+                this.types[i] = node.type;
+                this.a[i] = node.a == null ? -1 : node.a.slot;
+                this.b[i] = node.b == null ? -1 : node.b.slot;
+                this.paramSlots[i] = -1;
+                if (node.type == Instruction.InstType.PUSH) this.values[i] = (Double) node.arg;
+                else if (node.type == Instruction.InstType.PUSHVAR && variable.equals(node.arg)) this.isX[i] = true;
+                else if (node.type == Instruction.InstType.PUSHVAR) this.paramSlots[i] = Parameters.slot((String) node.arg);
+                else if (node.type == Instruction.InstType.NATIVEFUNC) this.fns[i] = (String) node.arg;
+                if (!node.isLeaf()) operations++;
+            }
+            this.operations = operations;
+            this.unsharedOperations = unsharedOperations;
+            this.bindParameters();
+        }
+
+        /**
+         * Reads the current value of every parameter the program uses. Only
+         * needed if a parameter has changed since the program was built.
+         */
+        void bindParameters() {
+            Parameters params = Parameters.get();
+            for (int i = 0; i < this.paramSlots.length; i++) {
+                if (this.paramSlots[i] >= 0) this.values[i] = params.value(this.paramSlots[i]);
+            }
+        }
+
+        /**
+         * @param i Index of an expression, in the order they were given
+         * @return Whether the expression was compiled into the program. If
+         *         not, it has to be evaluated on its own.
+         */
+        boolean contains(int i) {
+            return this.roots[i] >= 0;
+        }
+
+        /**
+         * Computes every node for a value of x. Read the results with
+         * result().
+         *
+         * @param x The value of x
+         */
+        void evaluate(double x) {
+            double[] v = this.values;
+            for (int i = 0; i < v.length; i++) {
+                switch (this.types[i]) {
+                    case PUSH:
+                        break;
+                    case PUSHVAR:
+                        if (this.isX[i]) v[i] = x;
+                        break;
+                    case ADD:
+                        v[i] = v[this.b[i]] + v[this.a[i]];
+                        break;
+                    case SUB:
+                        v[i] = v[this.a[i]] - v[this.b[i]];
+                        break;
+                    case MUL:
+                        v[i] = v[this.b[i]] * v[this.a[i]];
+                        break;
+                    case DIV:
+                        v[i] = v[this.a[i]] / v[this.b[i]];
+                        break;
+                    case FACT:
+                        v[i] = Factorial.fact(v[this.a[i]]);
+                        break;
+                    case NATIVEFUNC:
+                        if (this.b[i] >= 0) v[i] = Math.pow(v[this.a[i]], v[this.b[i]]);
+                        else v[i] = Equation.Expression.nativeFn(this.fns[i], v[this.a[i]]);
+                        break;
+                    default:
+                        throw new UnsupportedOperationException("Cannot execute " + this.types[i]);
+                }
+            }
+        }
+
+        /**
+         * @param i Index of a compiled expression
+         * @return Its value for the x last passed to evaluate()
+         */
+        double result(int i) {
+            return this.values[this.roots[i]];
+        }
+    }
+
+    /**
+     * Compiles several expressions of x into one shared program. Expressions
+     * which can't be represented as a tree, or which use any variable other
+     * than x and parameters, are left out, and should be evaluated on their
+     * own.
+     *
+     * @param exprs The expressions, any of which may be null
+     * @return The shared program
+     */
+    static SharedProgram compileShared(java.util.List<Equation.Expression> exprs) {
+        return compileShared(exprs, "x");
+    }
+
+    /**
+     * Compiles several expressions of one variable into one shared program,
+     * such as the x(t) and y(t) of a parametric curve.
+     *
+     * @param exprs The expressions, any of which may be null
+     * @param variable The only variable the expressions may use, which is
+     *                 given to SharedProgram.evaluate()
+     * @return The shared program
+     */
+    static SharedProgram compileShared(java.util.List<Equation.Expression> exprs, String variable) {
+        ExpressionCompiler c = new ExpressionCompiler();
+        HashMap<Node, Boolean> onlyVariable = new HashMap<>();
+        Node[] roots = new Node[exprs.size()];
+        for (int i = 0; i < roots.length; i++) {
+            Equation.Expression e = exprs.get(i);
+            Node root = e == null ? null : c.add(e);
+            if (root != null && usesOnly(root, variable, onlyVariable)) roots[i] = root;
+        }
+
+        // Number the nodes so that operands always come before their users,
+        // reusing the slot field as the index
+        ArrayList<Node> order = new ArrayList<>();
+        int[] rootIndex = new int[roots.length];
+        long unshared = 0;
+        for (int i = 0; i < roots.length; i++) {
+            if (roots[i] == null) {
+                rootIndex[i] = -1;
+                continue;
+            }
+            number(roots[i], order);
+            rootIndex[i] = roots[i].slot;
+            unshared += countOperations(roots[i], new java.util.IdentityHashMap<>());
+        }
+
+        return new SharedProgram(order, rootIndex, unshared, variable);
+    }
+
+    private static boolean usesOnly(Node n, String variable, HashMap<Node, Boolean> memo) {
+        Boolean known = memo.get(n);
+        if (known != null) return known;
+
+        boolean ok;
+        if (n.type == Instruction.InstType.PUSHVAR)
+            ok = variable.equals(n.arg) || Parameters.isParameter((String) n.arg);
+        else ok = (n.a == null || usesOnly(n.a, variable, memo)) && (n.b == null || usesOnly(n.b, variable, memo));
+        memo.put(n, ok);
+        return ok;
+    }
+
+    private static void number(Node n, ArrayList<Node> order) {
+        if (n.slot >= 0) return;
+        if (n.a != null) number(n.a, order);
+        if (n.b != null) number(n.b, order);
+        n.slot = order.size();
+        order.add(n);
+    }
+
+    /**
+     * @return The number of distinct operations needed to compute a node on
+     *         its own
+     */
+    private static long countOperations(Node n, java.util.IdentityHashMap<Node, Boolean> seen) {
+        if (n.isLeaf() || seen.put(n, Boolean.TRUE) != null) return 0;
+        long count = 1;
+        if (n.a != null) count += countOperations(n.a, seen);
+        if (n.b != null) count += countOperations(n.b, seen);
+        return count;
+    }
+
+    private final HashMap<Node, Node> interned = new HashMap<>();
+
+    /**
+     * Compiles an Expression into a flat program with common subexpressions
+     * eliminated.
+     *
+     * @param expr The parsed expression
+     * @return The compiled program, or null if the expression can't be
+     *         represented as a tree
+     */
+    static Program compile(Equation.Expression expr) {
+        ExpressionCompiler c = new ExpressionCompiler();
+        Node root = c.add(expr);
+        if (root == null) return null;
+        return c.emit(root);
+    }
+
+    /**
+     * Adds an expression to the DAG, merging it with anything already added.
+     *
+     * @param expr The parsed expression
+     * @return The node computing the expression's value, or null if it can't
+     *         be represented as a tree
+     */
+    Node add(Equation.Expression expr) {
+        Node root = this.build(expr);
+        if (root != null) root.uses++;
+        return root;
+    }
+
+    private Node build(Equation.Expression expr) {
+        ArrayList<Node> stack = new ArrayList<>();
+
+        for (Instruction i : expr.ops) {
+            switch (i.instruction) {
+                case ADD:
+                case SUB:
+                case MUL:
+                case DIV:
+                    if (stack.size() < 2) return null;
+                    Node r = stack.remove(stack.size() - 1);
+                    Node l = stack.remove(stack.size() - 1);
+                    stack.add(this.intern(i.instruction, null, l, r));
+                    break;
+                case FACT:
+                    if (stack.isEmpty()) return null;
+                    stack.add(this.intern(i.instruction, null, stack.remove(stack.size() - 1), null));
+                    break;
+                case NATIVEFUNC:
+                    if ("POW".equals(i.arg)) {
+                        if (stack.size() < 2) return null;
+                        Node exponent = stack.remove(stack.size() - 1);
+                        Node base = stack.remove(stack.size() - 1);
+                        stack.add(this.intern(i.instruction, i.arg, base, exponent));
+                    } else {
+                        if (stack.isEmpty() || !Equation.Expression.isNativeFn((String) i.arg)) return null;
+                        stack.add(this.intern(i.instruction, i.arg, stack.remove(stack.size() - 1), null));
+                    }
+                    break;
+                case EXPR:
+                    Node nested = this.build((Equation.Expression) i.arg);
+                    if (nested == null) return null;
+                    stack.add(nested);
+                    break;
+                case PUSH:
+                case PUSHVAR:
+                    stack.add(this.intern(i.instruction, i.arg, null, null));
+                    break;
+                default:
+                    return null;
+            }
+        }
+
+        // A nested Expression only returns the top of its stack, and discards
+        // anything else, which a tree can't represent
+        return stack.size() == 1 ? stack.get(0) : null;
+    }
+
+    private Node intern(Instruction.InstType type, Object arg, Node a, Node b) {
+        Node candidate = new Node(type, arg, a, b);
+        Node existing = this.interned.get(candidate);
+        if (existing != null) return existing;
+
+        this.interned.put(candidate, candidate);
+        if (a != null) a.uses++;
+        if (b != null) b.uses++;
+        return candidate;
+    }
+
+    /**
+     * Flattens the DAG under a root into a program, giving a slot to every
+     * operation which is used more than once.
+     */
+    private Program emit(Node root) {
+        ArrayList<Instruction> ops = new ArrayList<>();
+        int[] slots = {0};
+        int[] depth = {0, 0};
+        this.emit(root, ops, slots, depth, new HashMap<>());
+
+        long withoutSlots = flatSize(root, new HashMap<>());
+        long computing = 0;
+        for (Instruction i : ops) {
+            if (i.instruction != Instruction.InstType.LOAD && i.instruction != Instruction.InstType.STORE)
+                computing++;
+        }
+        return new Program(ops.toArray(new Instruction[0]), slots[0], depth[1], withoutSlots - computing);
+    }
+
+    private void emit(Node n, ArrayList<Instruction> ops, int[] slots, int[] depth, HashMap<Node, Boolean> stored) {
+        if (n.slot >= 0 && stored.containsKey(n)) {
+            ops.add(new Instruction(Instruction.InstType.LOAD, n.slot));
+            push(depth);
+            return;
+        }
+
+        if (n.a != null) this.emit(n.a, ops, slots, depth, stored);
+        if (n.b != null) this.emit(n.b, ops, slots, depth, stored);
+
+        // Parameters are looked up by slot rather than by name
+        if (n.type == Instruction.InstType.PUSHVAR && Parameters.isParameter((String) n.arg)) {
+            ops.add(new Instruction(Instruction.InstType.PARAM, Parameters.slot((String) n.arg)));
+        } else {
+            ops.add(new Instruction(n.type, n.arg));
+        }
+        if (n.isLeaf()) push(depth);
+        else if (n.b != null) depth[0]--;
+
+        if (!n.isLeaf() && n.uses > 1) {
+            if (n.slot < 0) n.slot = slots[0]++;
+            ops.add(new Instruction(Instruction.InstType.STORE, n.slot));
+            stored.put(n, Boolean.TRUE);
+        }
+    }
+
+    private static void push(int[] depth) {
+        depth[0]++;
+        depth[1] = Math.max(depth[1], depth[0]);
+    }
+
+    /**
+     * @return The number of instructions needed to compute a node if nothing
+     *         were shared
+     */
+    private static long flatSize(Node n, HashMap<Node, Long> memo) {
+        Long size = memo.get(n);
+        if (size != null) return size;
+
+        long s = 1;
+        if (n.a != null) s += flatSize(n.a, memo);
+        if (n.b != null) s += flatSize(n.b, memo);
+        memo.put(n, s);
+        return s;
+    }
+}
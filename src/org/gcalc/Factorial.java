@@ -351,7 +351,236 @@ public class Factorial {
         return ret;
     }
 
+    /** Largest n for which n! is finite as a double */
+    private static final int MAX_TABLE_ARG = 170;
+
+    /**
+     * n! for n = 0 .. 170, computed once through gamma() itself so that the
+     * fast path returns exactly what the slow path would.
+     */
+    private static final double[] FACT_TABLE = new double[MAX_TABLE_ARG + 1];
+
+    static {
+        for (int n = 0; n <= MAX_TABLE_ARG; n++) {
+            FACT_TABLE[n] = gamma(n + 1);
+        }
+    }
+
+    /** Number of entries in each thread's cache of recent arguments */
+    private static final int CACHE_SIZE = 4096;
+
+    /**
+     * Direct mapped cache of recent non-integer arguments, per thread, as
+     * interleaved (argument, result) pairs. Redrawing an unchanged viewport
+     * evaluates exactly the same x values again, so these hit often. Keys
+     * start as NaN, which never compares equal to anything.
+     */
+    private static final ThreadLocal<double[]> CACHE = ThreadLocal.withInitial(() -> {
+        double[] cache = new double[CACHE_SIZE * 2];
+        java.util.Arrays.fill(cache, Double.NaN);
+        return cache;
+    });
+
+    /**
+     * Calculates n!, extended to real numbers as &Gamma;(n + 1). Whole numbers
+     * up to 170 come from a lookup table, and other arguments are remembered,
+     * so both return bit-for-bit the same value as factUncached().
+     *
+     * @param n Argument
+     * @return n!, or NaN for negative integers
+     */
     public static final double fact(double n) {
+        if (n >= 0 && n <= MAX_TABLE_ARG) {
+            int i = (int) n;
+            if (i == n) return FACT_TABLE[i];
+        }
+
+        long bits = Double.doubleToRawLongBits(n);
+        int slot = (int) (bits ^ (bits >>> 29) ^ (bits >>> 41)) & (CACHE_SIZE - 1);
+        double[] cache = CACHE.get();
+        if (cache[slot * 2] == n) return cache[slot * 2 + 1];
+
+        double ret = gamma(n + 1);
+        cache[slot * 2] = n;
+        cache[slot * 2 + 1] = ret;
+        return ret;
+    }
+
+    /** Regimes for the batch evaluation, named after the branch of gamma() */
+    private static final byte RECUR_DOWN = 0, RECUR_UP = 1, LANCZOS_POS = 2, REFLECT = 3;
+    private static final int REGIMES = 4;
+
+    /** Per thread scratch space for fact(double[], double[]) */
+    private static class Scratch {
+        byte[] regime = new byte[0];
+        int[] index = new int[0];
+        double[] x = new double[0];
+        double[] y = new double[0];
+
+        void ensure(int n) {
+            if (this.index.length >= n) return;
+            this.regime = new byte[n];
+            this.index = new int[n];
+            this.x = new double[n];
+            this.y = new double[n];
+        }
+    }
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    /**
+     * Calculates n! for every element of an array. The arguments are first
+     * sorted by which branch of gamma() they take, then each group is
+     * evaluated in its own tight loop over contiguous arrays, with the
+     * recurrences run in lockstep using selects rather than data dependent
+     * loops. Every operation matches the scalar path, so the
+     * results are identical to fact(double).
+     *
+     * @param in Arguments
+     * @param out Array to write n! to, at least as long as in. May be the
+     *            same array as in.
+     */
+    public static void fact(double[] in, double[] out) {
+        int n = in.length;
+        Scratch s = SCRATCH.get();
+        s.ensure(n);
+        int[] counts = new int[REGIMES];
+
+        // Classify, and handle the cases which need no arithmetic straight away
+        for (int i = 0; i < n; i++) {
+            double v = in[i];
+            if (v >= 0 && v <= MAX_TABLE_ARG && v == (int) v) {
+                out[i] = FACT_TABLE[(int) v];
+                s.regime[i] = -1;
+                continue;
+            }
+
+            double x = v + 1;
+            byte regime;
+            if ((x == Math.rint(x)) && (x <= 0.0) || Double.isNaN(x) || Double.isInfinite(x)) {
+                out[i] = gamma(x);
+                regime = -1;
+            } else if (Math.abs(x) <= 20.0) {
+                regime = x >= 1.0 ? RECUR_DOWN : RECUR_UP;
+            } else {
+                regime = x > 0.0 ? LANCZOS_POS : REFLECT;
+            }
+            s.regime[i] = regime;
+            if (regime >= 0) counts[regime]++;
+        }
+
+        // Counting sort the remaining indices by regime, gathering arguments
+        int[] start = new int[REGIMES + 1];
+        for (int r = 0; r < REGIMES; r++) start[r + 1] = start[r] + counts[r];
+        int[] next = start.clone();
+        for (int i = 0; i < n; i++) {
+            byte r = s.regime[i];
+            if (r < 0) continue;
+            int j = next[r]++;
+            s.index[j] = i;
+            s.x[j] = in[i] + 1;
+        }
+
+        recurDown(s.x, s.y, start[RECUR_DOWN], start[RECUR_DOWN + 1]);
+        recurUp(s.x, s.y, start[RECUR_UP], start[RECUR_UP + 1]);
+        lanczosPositive(s.x, s.y, start[LANCZOS_POS], start[LANCZOS_POS + 1]);
+        reflect(s.x, s.y, start[REFLECT], start[REFLECT + 1]);
+
+        int end = start[REGIMES];
+        for (int j = 0; j < end; j++) {
+            out[s.index[j]] = s.y[j];
+        }
+    }
+
+    /**
+     * gamma() for 1 &le; x &le; 20. Every argument takes the same number of
+     * recurrence steps, enough for the largest in the group, and the steps
+     * past an argument's own end multiply by exactly 1. The step loop is
+     * outermost, so the inner loop runs straight along the arrays.
+     */
+    private static void recurDown(double[] xs, double[] ys, int from, int to) {
+        double max = 0;
+        for (int j = from; j < to; j++) {
+            ys[j] = 1.0;
+            max = Math.max(max, xs[j]);
+        }
+
+        // xs holds t and ys holds the product while stepping
+        int steps = (int) Math.ceil(max - 2.5);
+        for (int k = 0; k < steps; k++) {
+            for (int j = from; j < to; j++) {
+                double t = xs[j];
+                boolean step = t > 2.5;
+                t = step ? t - 1.0 : t;
+                xs[j] = t;
+                ys[j] *= step ? t : 1.0;
+            }
+        }
+
+        for (int j = from; j < to; j++) {
+            ys[j] = ys[j] / (1.0 + invGamma1pm1(xs[j] - 1.0));
+        }
+    }
+
+    /**
+     * gamma() for -20 &le; x &lt; 1, stepping up as many times as the
+     * smallest argument needs.
+     */
+    private static void recurUp(double[] xs, double[] ys, int from, int to) {
+        double min = 0;
+        for (int j = from; j < to; j++) {
+            ys[j] = xs[j];
+            min = Math.min(min, xs[j]);
+        }
+
+        int steps = (int) Math.ceil(-0.5 - min);
+        for (int k = 0; k < steps; k++) {
+            for (int j = from; j < to; j++) {
+                double t = xs[j];
+                boolean step = t < -0.5;
+                t = step ? t + 1.0 : t;
+                xs[j] = t;
+                ys[j] *= step ? t : 1.0;
+            }
+        }
+
+        for (int j = from; j < to; j++) {
+            ys[j] = 1.0 / (ys[j] * (1.0 + invGamma1pm1(xs[j])));
+        }
+    }
+
+    /**
+     * gamma() for x &gt; 20, using the Lanczos approximation.
+     */
+    private static void lanczosPositive(double[] xs, double[] ys, int from, int to) {
+        for (int j = from; j < to; j++) {
+            double x = xs[j];
+            double y = x + LANCZOS_G + 0.5;
+            ys[j] = SQRT_TWO_PI / x * Math.pow(y, x + 0.5) * Math.exp(-y) * lanczos(x);
+        }
+    }
+
+    /**
+     * gamma() for x &lt; -20, using the reflection formula.
+     */
+    private static void reflect(double[] xs, double[] ys, int from, int to) {
+        for (int j = from; j < to; j++) {
+            double x = xs[j];
+            double absX = -x;
+            double y = absX + LANCZOS_G + 0.5;
+            double gammaAbs = SQRT_TWO_PI / x * Math.pow(y, absX + 0.5) * Math.exp(-y) * lanczos(absX);
+            ys[j] = -Math.PI / (x * Math.sin(Math.PI * x) * gammaAbs);
+        }
+    }
+
+    /**
+     * Calculates n! without the lookup table or cache. Only useful as a
+     * reference to compare fact() against.
+     *
+     * @param n Argument
+     * @return n!, or NaN for negative integers
+     */
+    public static double factUncached(double n) {
         return gamma(n + 1);
     }
 }
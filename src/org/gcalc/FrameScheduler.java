@@ -0,0 +1,105 @@
+package org.gcalc;
+
+import javax.swing.*;
+import java.awt.*;
+
+/**
+ * Limits redraws driven by input to at most one per display refresh. Mouse
+ * events can arrive hundreds of times a second, far faster than frames can be
+ * shown, so instead of drawing for each one, callers record what changed and
+ * call request(). The first request starts a timer for the next refresh, and
+ * any further requests before it fires are merged into the same frame, which
+ * then draws only the newest state.
+ *
+ * Everything happens on the event dispatch thread.
+ */
+public class FrameScheduler {
+    // Used when the display refresh rate can't be found
+    private static final int DEFAULT_REFRESH_HZ = 60;
+
+    private final Runnable frame;
+    private final Timer timer;
+    private final long intervalNanos;
+    private long lastFrameNanos;
+    // The timer stops itself as soon as it expires, before the frame is
+    // drawn, so whether a frame is waiting is tracked separately
+    private boolean pending = false;
+    private long rendered = 0, dropped = 0;
+
+    /**
+     * @param frame Draws a frame from whatever state is current, on the event
+     *              dispatch thread
+     */
+    public FrameScheduler(Runnable frame) {
+        this.frame = frame;
+        this.intervalNanos = 1000000000L / refreshRate();
+        this.lastFrameNanos = System.nanoTime() - this.intervalNanos;
+
+        this.timer = new Timer(0, e -> this.fire());
+        this.timer.setRepeats(false);
+    }
+
+    /**
+     * @return The refresh rate of the default screen in Hz, or 60 if it isn't
+     *         known
+     */
+    static int refreshRate() {
+        if (GraphicsEnvironment.isHeadless()) return DEFAULT_REFRESH_HZ;
+        int hz = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice()
+                .getDisplayMode().getRefreshRate();
+        return hz == DisplayMode.REFRESH_RATE_UNKNOWN ? DEFAULT_REFRESH_HZ : hz;
+    }
+
+    /**
+     * Asks for a frame at the next refresh. If one is already waiting, this
+     * request is merged into it and counted as dropped.
+     */
+    public void request() {
+        if (this.pending) {
+            this.dropped++;
+            RenderMetrics.get().recordScheduledFrames(0, 1);
+            return;
+        }
+
+        long wait = this.lastFrameNanos + this.intervalNanos - System.nanoTime();
+        this.pending = true;
+        this.timer.setInitialDelay((int) Math.max(0, wait / 1000000));
+        this.timer.start();
+    }
+
+    /**
+     * Forgets a waiting frame, when the caller has just drawn the current
+     * state itself.
+     */
+    public void cancel() {
+        this.pending = false;
+        this.timer.stop();
+    }
+
+    public boolean isPending() {
+        return this.pending;
+    }
+
+    /**
+     * @return Frames drawn by the scheduler
+     */
+    public long getRenderedFrames() {
+        return this.rendered;
+    }
+
+    /**
+     * @return Requests merged into a frame which was already waiting
+     */
+    public long getDroppedFrames() {
+        return this.dropped;
+    }
+
+    private void fire() {
+        if (!this.pending) return;
+        this.pending = false;
+        this.lastFrameNanos = System.nanoTime();
+        this.rendered++;
+        RenderMetrics.get().recordScheduledFrames(1, 0);
+        this.frame.run();
+    }
+}
@@ -0,0 +1,579 @@
+package org.gcalc;
+
+import org.w3c.dom.Node;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Exports a sweep of one parameter as a numbered sequence of PNG images, or
+ * as a single animated GIF. Can be run headless, or used by the window to
+ * export what is on screen.
+ *
+ * Frames are drawn concurrently, one per worker thread, each worker keeping
+ * its own GraphRenderer so that equations not using the parameter are only
+ * sampled once per worker. Drawn frames wait in a bounded queue to be
+ * encoded in order, and their images are reused once written, so memory use
+ * doesn't grow with the number of frames. GIF frames are also reduced to 256
+ * colours by the workers, which leaves the encoder with little to do.
+ *
+ * Usage:
+ * <pre>
+ * java -cp ... org.gcalc.FrameSequenceExporter [options] workspace
+ *   --param NAME      Parameter to sweep (required)
+ *   --from A          Value in the first frame (default -10)
+ *   --to B            Value in the last frame (default 10)
+ *   --frames N        Number of frames (default 60)
+ *   --size WxH        Output size in pixels (default 1024x600)
+ *   --scale S         Zoom level, as used by the View menu (default 1)
+ *   --offset X,Y      Graph coordinate at the centre of the image (default 0,0)
+ *   --format gif|png  One animated GIF, or one PNG per frame (default gif)
+ *   --delay MS        Time each GIF frame is shown for (default 40)
+ *   --out PATH        GIF file, or directory for PNGs (default: named after
+ *                     the workspace)
+ *   --threads N       Number of worker threads (default: one per core)
+ * </pre>
+ */
+public class FrameSequenceExporter {
+    private int width = 1024, height = 600;
+    private double scale = 1;
+    private double offsetX = 0, offsetY = 0;
+    private boolean rasterCurves = false;
+    private List<Equation> equations = new ArrayList<>();
+
+    private String parameter = null;
+    private double from = ParameterSlider.MIN, to = ParameterSlider.MAX;
+    private int frames = 60;
+    private String format = "gif";
+    private int delayMillis = 40;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    // Values of the other parameters, copied when the exporter is created on
+    // the event dispatch thread, as the sliders may be moved during the export
+    private final Parameters base = Parameters.get().copy();
+
+    // Only used when run from the command line
+    private File workspace = null;
+    private File out = null;
+
+    private FrameSequenceExporter() {}
+
+    /**
+     * Exports the equations and viewport of an existing renderer.
+     *
+     * @param source The renderer to copy. Later changes to it, or to the
+     *               parameters, don't affect the export.
+     */
+    public FrameSequenceExporter(GraphRenderer source) {
+        this.width = source.getWidth();
+        this.height = source.getHeight();
+        this.scale = source.getScale();
+        this.offsetX = source.getOffsetX();
+        this.offsetY = source.getOffsetY();
+        this.rasterCurves = source.isRasterCurves();
+        for (Equation e : source.getEquations()) {
+            if (e != null) this.equations.add(e);
+        }
+    }
+
+    /**
+     * Chooses the parameter to sweep, moving evenly between two values.
+     * Other parameters keep the values they had when the exporter was
+     * created.
+     *
+     * @param parameter The parameter's name
+     * @param from Its value in the first frame
+     * @param to Its value in the last frame
+     * @param frames Number of frames, at least 1
+     */
+    public void setSweep(String parameter, double from, double to, int frames) {
+        if (!Parameters.isParameter(parameter))
+            throw new IllegalArgumentException(parameter + " is not a parameter");
+        if (frames < 1)
+            throw new IllegalArgumentException("At least one frame is needed");
+        this.parameter = parameter;
+        this.from = from;
+        this.to = to;
+        this.frames = frames;
+    }
+
+    /**
+     * @param format "gif" for one animated GIF, or "png" for a numbered PNG
+     *               per frame
+     */
+    public void setFormat(String format) {
+        format = format.toLowerCase();
+        if (!format.equals("gif") && !format.equals("png"))
+            throw new IllegalArgumentException("Format must be gif or png, got " + format);
+        this.format = format;
+    }
+
+    /**
+     * @param delayMillis Time each GIF frame is shown for
+     */
+    public void setDelay(int delayMillis) {
+        this.delayMillis = delayMillis;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * @param frame Index of a frame
+     * @return The parameter's value in that frame
+     */
+    public double valueAt(int frame) {
+        if (this.frames == 1) return this.from;
+        return this.from + (this.to - this.from) * frame / (this.frames - 1);
+    }
+
+    /**
+     * Draws and writes every frame. Returns once the last frame has been
+     * written, or the first frame failed.
+     *
+     * @param out The GIF file to write, or the directory to write PNGs to
+     * @return Frames exported per second
+     * @throws IOException if a frame couldn't be drawn or written
+     * @throws InterruptedException if interrupted while waiting for frames
+     */
+    public double export(File out) throws IOException, InterruptedException {
+        if (this.parameter == null) throw new IllegalStateException("No parameter to sweep");
+
+        ThreadLocal<GraphRenderer> renderers = ThreadLocal.withInitial(this::createRenderer);
+
+        // One image being drawn by each worker, and as many again drawn and
+        // waiting to be encoded, so that the workers keep busy while the
+        // oldest frame is written
+        int capacity = 2 * this.threads;
+        boolean gif = this.format.equals("gif");
+        ArrayDeque<Frame> free = new ArrayDeque<>();
+        for (int i = 0; i < capacity; i++) {
+            free.add(new Frame(this.width, this.height, gif));
+        }
+        ArrayDeque<Future<Frame>> queue = new ArrayDeque<>();
+
+        ExecutorService pool = Executors.newFixedThreadPool(this.threads);
+        long start = System.nanoTime();
+        try (FrameWriter writer = gif ? new GifWriter(out, this.delayMillis) : new PngWriter(out)) {
+            int written = 0;
+            for (int i = 0; i < this.frames; i++) {
+                if (queue.size() == capacity) {
+                    free.add(this.writeNext(queue, writer, written++));
+                }
+
+                int index = i;
+                Frame frame = free.remove();
+                queue.add(pool.submit(() -> this.drawFrame(renderers.get(), this.base, index, frame)));
+            }
+            while (!queue.isEmpty()) {
+                this.writeNext(queue, writer, written++);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        return this.frames / seconds;
+    }
+
+    /**
+     * Waits for the oldest frame in the queue to be drawn, then writes it.
+     *
+     * @return The frame, which can be drawn into again
+     */
+    private Frame writeNext(ArrayDeque<Future<Frame>> queue, FrameWriter writer,
+                            int index) throws IOException, InterruptedException {
+        Frame frame;
+        try {
+            frame = queue.remove().get();
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to draw frame " + index + ": " + e.getCause(), e.getCause());
+        }
+        writer.write(index, frame.encoded);
+        return frame;
+    }
+
+    private GraphRenderer createRenderer() {
+        GraphRenderer renderer = new GraphRenderer(this.width, this.height) {
+            @Override
+            protected void equationFailed(int id, Exception ex) {
+                System.err.printf("Error drawing equation %d: %s\n", id, ex.getMessage());
+            }
+        };
+        renderer.setScale(this.scale);
+        renderer.setOffset(this.offsetX, this.offsetY);
+        renderer.setRasterCurves(this.rasterCurves);
+        for (int id = 0; id < this.equations.size(); id++) {
+            renderer.setEquation(id, this.equations.get(id));
+        }
+        return renderer;
+    }
+
+    /**
+     * Draws one frame on a worker thread, with the swept parameter set for
+     * that thread only.
+     */
+    private Frame drawFrame(GraphRenderer renderer, Parameters base, int index, Frame frame) {
+        Parameters values = base.copy();
+        values.set(this.parameter, this.valueAt(index));
+        Parameters.setThreadValues(values);
+        try {
+            // The renderer last drew a different value
+            renderer.parameterChanged(this.parameter);
+            Graphics2D g = renderer.render(frame.image);
+            g.dispose();
+        } finally {
+            Parameters.setThreadValues(null);
+        }
+
+        frame.encoded = frame.indices == null ? frame.image : toIndexed(frame.image, frame.indices);
+        return frame;
+    }
+
+    /**
+     * Reduces an image to at most 256 colours. Plots have few colours apart
+     * from the antialiased edges of curves, so the 256 most common are kept
+     * exactly and every other colour becomes the closest of those.
+     *
+     * @param img The image to convert
+     * @param indices Receives the palette index of each pixel
+     * @return An image of the indices, with the palette as its colour model
+     */
+    static BufferedImage toIndexed(BufferedImage img, WritableRaster indices) {
+        int w = img.getWidth(), h = img.getHeight();
+        int[] row = new int[w];
+
+        // Most of a row is one colour, so pixels are counted in runs
+        HashMap<Integer, Integer> counts = new HashMap<>();
+        for (int y = 0; y < h; y++) {
+            img.getRGB(0, y, w, 1, row, 0, w);
+            for (int x = 0; x < w; ) {
+                int start = x, colour = row[x];
+                while (x < w && row[x] == colour) x++;
+                counts.merge(colour, x - start, Integer::sum);
+            }
+        }
+
+        List<Map.Entry<Integer, Integer>> colours = new ArrayList<>(counts.entrySet());
+        colours.sort((a, b) -> Integer.compare(b.getValue(), a.getValue()));
+        int size = Math.min(256, colours.size());
+        int[] palette = new int[size];
+        HashMap<Integer, Integer> index = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            palette[i] = colours.get(i).getKey();
+            index.put(palette[i], i);
+        }
+        for (int i = size; i < colours.size(); i++) {
+            int colour = colours.get(i).getKey();
+            index.put(colour, closest(palette, colour));
+        }
+
+        byte[] out = new byte[w];
+        for (int y = 0; y < h; y++) {
+            img.getRGB(0, y, w, 1, row, 0, w);
+            int last = row[0], lastIndex = index.get(last);
+            for (int x = 0; x < w; x++) {
+                if (row[x] != last) {
+                    last = row[x];
+                    lastIndex = index.get(last);
+                }
+                out[x] = (byte) lastIndex;
+            }
+            indices.setDataElements(0, y, w, 1, out);
+        }
+
+        IndexColorModel model = new IndexColorModel(8, size, palette, 0, false, -1, DataBuffer.TYPE_BYTE);
+        return new BufferedImage(model, indices, false, null);
+    }
+
+    private static int closest(int[] palette, int colour) {
+        int r = (colour >> 16) & 0xff, g = (colour >> 8) & 0xff, b = colour & 0xff;
+        int best = 0, bestDistance = Integer.MAX_VALUE;
+        for (int i = 0; i < palette.length; i++) {
+            int dr = r - ((palette[i] >> 16) & 0xff);
+            int dg = g - ((palette[i] >> 8) & 0xff);
+            int db = b - (palette[i] & 0xff);
+            int distance = dr * dr + dg * dg + db * db;
+            if (distance < bestDistance) {
+                best = i;
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * The images for one frame, reused once the frame has been written.
+     */
+    private static class Frame {
+        final BufferedImage image;
+        // Palette indices of a GIF frame, or null for PNGs
+        final WritableRaster indices;
+        // What gets written, either image or a view of indices
+        BufferedImage encoded;
+
+        Frame(int width, int height, boolean indexed) {
+            this.image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            this.indices = indexed
+                    ? Raster.createInterleavedRaster(DataBuffer.TYPE_BYTE, width, height, 1, null)
+                    : null;
+        }
+    }
+
+    /**
+     * Encodes frames, which are always given in order.
+     */
+    private interface FrameWriter extends Closeable {
+        void write(int frame, BufferedImage img) throws IOException;
+    }
+
+    /**
+     * Writes each frame to its own numbered PNG file.
+     */
+    private static class PngWriter implements FrameWriter {
+        private final File dir;
+
+        PngWriter(File dir) throws IOException {
+            if (!dir.isDirectory() && !dir.mkdirs())
+                throw new IOException("Unable to create output directory " + dir);
+            this.dir = dir;
+        }
+
+        public void write(int frame, BufferedImage img) throws IOException {
+            File file = new File(this.dir, String.format("frame%04d.png", frame));
+            if (!ImageIO.write(img, "png", file))
+                throw new IOException("No image writer for format png");
+        }
+
+        public void close() {}
+    }
+
+    /**
+     * Writes every frame into one GIF, which loops forever.
+     */
+    private static class GifWriter implements FrameWriter {
+        private final ImageWriter writer;
+        private final ImageOutputStream stream;
+        private final String delay;
+
+        GifWriter(File file, int delayMillis) throws IOException {
+            Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("gif");
+            if (!writers.hasNext()) throw new IOException("No image writer for format gif");
+            this.writer = writers.next();
+            // GIF delays are in hundredths of a second
+            this.delay = String.valueOf(Math.max(1, Math.round(delayMillis / 10.0)));
+
+            if (file.exists() && !file.delete()) throw new IOException("Unable to replace " + file);
+            this.stream = ImageIO.createImageOutputStream(file);
+            if (this.stream == null) throw new IOException("Unable to write to " + file);
+            this.writer.setOutput(this.stream);
+            this.writer.prepareWriteSequence(null);
+        }
+
+        public void write(int frame, BufferedImage img) throws IOException {
+            IIOMetadata metadata = this.writer.getDefaultImageMetadata(
+                    ImageTypeSpecifier.createFromRenderedImage(img), null);
+            String format = metadata.getNativeMetadataFormatName();
+            IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(format);
+
+            IIOMetadataNode control = child(root, "GraphicControlExtension");
+            control.setAttribute("disposalMethod", "none");
+            control.setAttribute("userInputFlag", "FALSE");
+            control.setAttribute("transparentColorFlag", "FALSE");
+            control.setAttribute("delayTime", this.delay);
+            control.setAttribute("transparentColorIndex", "0");
+
+            // Each frame has its own palette, which the writer leaves out
+            // unless it is given explicitly
+            if (img.getColorModel() instanceof IndexColorModel) {
+                IndexColorModel model = (IndexColorModel) img.getColorModel();
+                IIOMetadataNode table = child(root, "LocalColorTable");
+                // GIF palettes hold a power of two colours
+                int size = Math.max(2, Integer.highestOneBit(model.getMapSize() * 2 - 1));
+                table.setAttribute("sizeOfLocalColorTable", String.valueOf(size));
+                table.setAttribute("backgroundColorIndex", "0");
+                table.setAttribute("sortFlag", "FALSE");
+                for (int i = 0; i < size; i++) {
+                    int rgb = i < model.getMapSize() ? model.getRGB(i) : 0;
+                    IIOMetadataNode entry = new IIOMetadataNode("ColorTableEntry");
+                    entry.setAttribute("index", String.valueOf(i));
+                    entry.setAttribute("red", String.valueOf((rgb >> 16) & 0xff));
+                    entry.setAttribute("green", String.valueOf((rgb >> 8) & 0xff));
+                    entry.setAttribute("blue", String.valueOf(rgb & 0xff));
+                    table.appendChild(entry);
+                }
+            }
+
+            // The NETSCAPE extension in the first frame makes viewers loop
+            if (frame == 0) {
+                IIOMetadataNode loop = new IIOMetadataNode("ApplicationExtension");
+                loop.setAttribute("applicationID", "NETSCAPE");
+                loop.setAttribute("authenticationCode", "2.0");
+                loop.setUserObject(new byte[]{1, 0, 0});
+                child(root, "ApplicationExtensions").appendChild(loop);
+            }
+
+            metadata.setFromTree(format, root);
+            this.writer.writeToSequence(new IIOImage(img, null, metadata), null);
+        }
+
+        public void close() throws IOException {
+            try {
+                this.writer.endWriteSequence();
+            } finally {
+                this.stream.close();
+                this.writer.dispose();
+            }
+        }
+
+        private static IIOMetadataNode child(IIOMetadataNode parent, String name) {
+            for (Node n = parent.getFirstChild(); n != null; n = n.getNextSibling()) {
+                if (n.getNodeName().equals(name)) return (IIOMetadataNode) n;
+            }
+            IIOMetadataNode node = new IIOMetadataNode(name);
+            parent.appendChild(node);
+            return node;
+        }
+    }
+
+    /**
+     * Parses the command line options described in the class comment.
+     *
+     * @param args Command line arguments
+     * @throws IllegalArgumentException if an option is malformed
+     */
+    protected void parseArgs(String[] args) throws IllegalArgumentException {
+        String parameter = null;
+        double from = this.from, to = this.to;
+        int frames = this.frames;
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                if (this.workspace != null)
+                    throw new IllegalArgumentException("Only one workspace can be exported");
+                this.workspace = new File(arg);
+                continue;
+            }
+            if (i + 1 >= args.length)
+                throw new IllegalArgumentException("Missing value for " + arg);
+            String value = args[++i];
+
+            switch (arg) {
+                case "--param":
+                    parameter = value;
+                    break;
+                case "--from":
+                    from = Double.parseDouble(value);
+                    break;
+                case "--to":
+                    to = Double.parseDouble(value);
+                    break;
+                case "--frames":
+                    frames = Integer.parseInt(value);
+                    break;
+                case "--size":
+                    String[] size = value.toLowerCase().split("x");
+                    if (size.length != 2)
+                        throw new IllegalArgumentException("Size must be WxH, got " + value);
+                    this.width = Integer.parseInt(size[0]);
+                    this.height = Integer.parseInt(size[1]);
+                    break;
+                case "--scale":
+                    this.scale = Double.parseDouble(value);
+                    break;
+                case "--offset":
+                    String[] offset = value.split(",");
+                    if (offset.length != 2)
+                        throw new IllegalArgumentException("Offset must be X,Y, got " + value);
+                    this.offsetX = Double.parseDouble(offset[0]);
+                    this.offsetY = Double.parseDouble(offset[1]);
+                    break;
+                case "--format":
+                    this.setFormat(value);
+                    break;
+                case "--delay":
+                    this.setDelay(Integer.parseInt(value));
+                    break;
+                case "--out":
+                    this.out = new File(value);
+                    break;
+                case "--threads":
+                    this.setThreads(Integer.parseInt(value));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+
+        if (this.workspace == null)
+            throw new IllegalArgumentException("No workspace file given");
+        if (parameter == null)
+            throw new IllegalArgumentException("No parameter given to sweep");
+        this.setSweep(parameter, from, to, frames);
+
+        if (this.out == null) {
+            String name = this.workspace.getName();
+            int dot = name.lastIndexOf('.');
+            if (dot > 0) name = name.substring(0, dot);
+            this.out = new File(this.format.equals("gif") ? name + ".gif" : name);
+        }
+    }
+
+    /**
+     * Headless program entrypoint. Exits with a non-zero code if the
+     * arguments are invalid or the export failed.
+     *
+     * @param args See the class comment
+     */
+    public static void main(String[] args) {
+        // Must be set before any AWT class is initialised
+        System.setProperty("java.awt.headless", "true");
+
+        FrameSequenceExporter exporter = new FrameSequenceExporter();
+        try {
+            exporter.parseArgs(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: FrameSequenceExporter --param NAME [--from A] [--to B] " +
+                    "[--frames N] [--size WxH] [--scale S] [--offset X,Y] [--format gif|png] " +
+                    "[--delay MS] [--out PATH] [--threads N] workspace");
+            System.exit(2);
+        }
+
+        try {
+            exporter.equations = BatchRenderer.loadEquations(exporter.workspace);
+            double fps = exporter.export(exporter.out);
+            System.out.printf("Exported %d frames to %s in %.3f s on %d threads (%.1f frames/s)\n",
+                    exporter.frames, exporter.out.getPath(), exporter.frames / fps,
+                    exporter.threads, fps);
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
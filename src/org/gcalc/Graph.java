@@ -3,20 +3,10 @@ package org.gcalc;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
-import java.awt.geom.Line2D;
 import java.awt.geom.Point2D;
-import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 import java.io.*;
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
-
-import org.apache.batik.svggen.SVGGraphics2D;
-import org.w3c.dom.Document;
-import org.w3c.dom.DOMImplementation;
-import javax.xml.parsers.DocumentBuilderFactory;
 
 public class Graph extends JLabel implements ComponentListener, EquationListener {
     public static final Color[] lineColours = {
@@ -25,42 +15,80 @@ public class Graph extends JLabel implements ComponentListener, EquationListener
         new Color(255, 0, 255)
     };
 
-    protected static final int normInterval = 50;
+    protected static final int normInterval = GraphRenderer.normInterval;
+
+    // While dragging, curves are only sampled at every PREVIEW_COLUMN_STEP'th
+    // column and intersections are left out. Once input has stopped for
+    // REFINE_DELAY_MS the frame is redrawn at full quality.
+    private static final int PREVIEW_COLUMN_STEP = 4;
+    private static final int REFINE_DELAY_MS = 150;
+
     private int width, height;
     private BufferedImage img;
-    private double scale = 1;
-    private ArrayList<Equation> equations = new ArrayList<>();
+    private ImageIcon icon;
+
+    // Refined frames are drawn off screen, and swapped in if they finish
+    private BufferedImage spareImg;
+    private Timer refineTimer;
+    // Bumped by every redraw, so refinement stages already queued can tell
+    // they are out of date
+    private int frameGeneration = 0;
+    private boolean refining = false;
+
+    // Input is drawn at most once per display refresh. Changes made since
+    // the last frame are held here until the next one.
+    private FrameScheduler scheduler;
+    private int pendingDx = 0, pendingDy = 0;
+    private boolean pendingResize = false;
+    private boolean pendingPreview = false;
     private ArrayList<EquationEditor> editors = new ArrayList<>();
+    private GraphRenderer renderer;
 
-    private List<Point2D.Double> clickedGraphPoints;
-    private List<Point> clickedPixelPoints;
-    private Set<Point2D.Double> intersectionPoints;
     private Point hoveredPoint = null;
-
-    private double offsetX = 0;
-    private double offsetY = 0;
     private Point lastDragPoint = null;
+    private boolean debugOverlay = false;
 
 
     public Graph(int width, int height) {
         this.width = width;
         this.height = height;
         this.img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-        this.setIcon(new ImageIcon(this.img));
+        this.icon = new ImageIcon(this.img);
+        this.setIcon(this.icon);
         this.addComponentListener(this);
 
-        this.clickedGraphPoints = new ArrayList<>();
-        this.clickedPixelPoints = new ArrayList<>();
-        this.intersectionPoints = new HashSet<>();
+        this.refineTimer = new Timer(REFINE_DELAY_MS, e -> this.refine(this.frameGeneration, false));
+        this.refineTimer.setRepeats(false);
+        this.scheduler = new FrameScheduler(this::scheduledFrame);
+
+        // Only equations using the parameter are sampled again, at most once
+        // per display refresh however fast the slider moves
+        Parameters.get().addListener((name, value) -> {
+            if (this.renderer.parameterChanged(name)) this.requestFrame(false);
+        });
+
+        this.renderer = new GraphRenderer(width, height) {
+            @Override
+            protected void equationFailed(int id, Exception ex) {
+                EquationEditor editor = (id < editors.size()) ? editors.get(id) : null;
+                if (editor != null) editor.setInvalid();
+                super.equationFailed(id, ex);
+            }
+
+            @Override
+            protected boolean isCancelled() {
+                return refining && isInputPending();
+            }
+        };
 
         addMouseListener(new MouseAdapter() {
             @Override
             public void mouseClicked(MouseEvent e) {
                 int mouseX = e.getX();
                 int mouseY = e.getY();
-                Point2D.Double graphPoint = convertPixelToGraph(mouseX, mouseY);
-                clickedGraphPoints.add(graphPoint);
-                clickedPixelPoints.add(new Point(mouseX, mouseY));
+                applyPendingChanges();
+                Point2D.Double graphPoint = renderer.convertPixelToGraph(mouseX, mouseY);
+                renderer.addClickedPoint(graphPoint);
                 System.out.printf("Clicked at Pixel: (%d, %d) -> Graph: (x=%.2f, y=%.2f)\n", mouseX, mouseY, graphPoint.x, graphPoint.y);
                 redraw();
             }
@@ -70,7 +98,7 @@ public class Graph extends JLabel implements ComponentListener, EquationListener
             @Override
             public void mouseMoved(MouseEvent e) {
                 hoveredPoint = e.getPoint();
-                redraw();
+                requestFrame(false);
             }
         });
 
@@ -79,13 +107,13 @@ public class Graph extends JLabel implements ComponentListener, EquationListener
             public void mousePressed(MouseEvent e) {
                 lastDragPoint = e.getPoint();
             }
-        
+
             @Override
             public void mouseReleased(MouseEvent e) {
                 lastDragPoint = null;
             }
         });
-        
+
         addMouseMotionListener(new MouseAdapter() {
             @Override
             public void mouseDragged(MouseEvent e) {
@@ -93,16 +121,16 @@ public class Graph extends JLabel implements ComponentListener, EquationListener
                     int dx = e.getX() - lastDragPoint.x;
                     int dy = e.getY() - lastDragPoint.y;
                     lastDragPoint = e.getPoint();
-        
-                    // Convert pixel drag to graph-space drag
-                    offsetX -= dx / (normInterval * scale);
-                    offsetY += dy / (normInterval * scale);
-        
-                    redraw();
+
+                    // Panned when the next frame is drawn, merged with any
+                    // other drags before it
+                    pendingDx += dx;
+                    pendingDy += dy;
+                    requestFrame(true);
                 }
             }
         });
-        
+
     }
 
     @Override
@@ -111,12 +139,8 @@ public class Graph extends JLabel implements ComponentListener, EquationListener
     }
 
     public void componentResized(ComponentEvent e) {
-        Dimension size = this.getSize();
-        this.width = size.width;
-        this.height = size.height;
-        this.img = new BufferedImage(this.width, this.height, BufferedImage.TYPE_INT_RGB);
-        this.setIcon(new ImageIcon(this.img));
-        this.redraw();
+        this.pendingResize = true;
+        this.requestFrame(false);
     }
 
     public void componentHidden(ComponentEvent e) {}
@@ -124,229 +148,240 @@ public class Graph extends JLabel implements ComponentListener, EquationListener
     public void componentShown(ComponentEvent e) {}
 
     public void equationAdded(int id, Equation newEquation, EquationEditor editor) {
-        while (equations.size() <= id) equations.add(null);
         while (editors.size() <= id) editors.add(null);
-        this.equations.set(id, newEquation);
+        this.renderer.setEquation(id, newEquation);
         this.editors.set(id, editor);
         this.redraw();
     }
 
+    @Override
+    public void equationsAdded(int firstId, java.util.List<Equation> newEquations,
+                               java.util.List<EquationEditor> editors) {
+        for (int i = 0; i < newEquations.size(); i++) {
+            int id = firstId + i;
+            while (this.editors.size() <= id) this.editors.add(null);
+            this.renderer.setEquation(id, newEquations.get(i));
+            this.editors.set(id, editors.get(i));
+        }
+        this.redraw();
+    }
+
     public void equationRemoved(int id) {
-        if (id >= 0 && id < equations.size()) equations.set(id, null);
+        if (id >= 0 && id < renderer.getEquations().size()) renderer.setEquation(id, null);
         if (id >= 0 && id < editors.size()) editors.set(id, null);
         this.redraw();
     }
 
     public void equationChanged(int id, Equation e) {
-        if (id >= 0 && id < equations.size()) this.equations.set(id, e);
+        if (id >= 0 && id < renderer.getEquations().size()) this.renderer.setEquation(id, e);
         this.redraw();
     }
 
+    @Override
+    public void integralChanged(Equation e, double from, double to) {
+        this.renderer.setIntegral(e, from, to);
+        this.requestFrame(false);
+    }
+
     public void increaseScale() { this.setScale(this.getScale() * 1.5); }
     public void decreaseScale() { this.setScale(this.getScale() / 1.5); }
-    public void setScale(double scale) { this.scale = scale; this.redraw(); }
-    public double getScale() { return this.scale; }
+    public void setScale(double scale) { this.renderer.setScale(scale); this.redraw(); }
+    public double getScale() { return this.renderer.getScale(); }
+
+    /**
+     * Retrieves the renderer which holds the viewport and draws each frame.
+     *
+     * @return The renderer backing this component
+     */
+    public GraphRenderer getRenderer() {
+        return this.renderer;
+    }
 
-    protected Point convertGraphToPixel(double graphX, double graphY) {
-        int pixelX = (int) (this.img.getWidth() / 2.0 + (graphX - offsetX) * (normInterval * this.scale));
-        int pixelY = (int) (this.img.getHeight() / 2.0 - (graphY - offsetY) * (normInterval * this.scale));
-        return new Point(pixelX, pixelY);
+    /**
+     * Shows or hides the render metrics in the top left corner of the graph.
+     *
+     * @param enabled Whether to draw the overlay
+     */
+    public void setDebugOverlay(boolean enabled) {
+        this.debugOverlay = enabled;
+        this.redraw();
     }
-    
-    protected Point2D.Double convertPixelToGraph(int pixelX, int pixelY) {
-        double graphX = offsetX + (pixelX - this.img.getWidth() / 2.0) / (normInterval * this.scale);
-        double graphY = offsetY + (this.img.getHeight() / 2.0 - pixelY) / (normInterval * this.scale);
-        return new Point2D.Double(graphX, graphY);
+
+    public boolean isDebugOverlay() {
+        return this.debugOverlay;
     }
 
-    protected void redraw() {
-        Graphics2D g = this.img.createGraphics();
-        g.setBackground(Color.WHITE);
-        g.setColor(Color.WHITE);
-        g.fill(new Rectangle2D.Double(0, 0, this.img.getWidth(), this.img.getHeight()));
-        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+    /**
+     * Switches between plotting curves straight into the image's pixels and
+     * drawing them with Graphics2D.
+     *
+     * @param enabled true to use the raster plotter
+     */
+    public void setRasterCurves(boolean enabled) {
+        this.renderer.setRasterCurves(enabled);
+        this.redraw();
+    }
 
-        this.drawGrid(g, this.img.getWidth(), this.img.getHeight());
-        intersectionPoints.clear();
+    /**
+     * Asks for a frame at the next display refresh, merging it with any
+     * frame already waiting.
+     *
+     * @param preview Whether the frame may be a quick preview, refined later
+     */
+    protected void requestFrame(boolean preview) {
+        this.pendingPreview = preview;
+        this.scheduler.request();
+    }
 
-        int id = 0;
-        for (Equation e : this.equations) {
-            if (e == null) continue;
-            try {
-                this.drawEquation(g, id, e, this.img.getWidth(), this.img.getHeight());
-            } catch (Exception ex) {
-                EquationEditor editor = (id < editors.size()) ? editors.get(id) : null;
-                if (editor != null) editor.setInvalid();
-                System.err.printf("Error drawing equation %d: %s\n", id, ex.getMessage());
-                ex.printStackTrace();
-            }
-            id++;
+    /**
+     * Draws the frame asked for by requestFrame(), with the newest state.
+     */
+    private void scheduledFrame() {
+        if (this.pendingPreview) this.previewRedraw();
+        else this.redraw();
+    }
+
+    /**
+     * Applies the drags and resizes held back for the next frame.
+     */
+    private void applyPendingChanges() {
+        if (this.pendingDx != 0 || this.pendingDy != 0) {
+            this.renderer.pan(this.pendingDx, this.pendingDy);
+            this.pendingDx = 0;
+            this.pendingDy = 0;
         }
 
-        g.setColor(Color.MAGENTA);
-        int clickedDotSize = 8;
-        for (Point2D.Double graphP : clickedGraphPoints) {
-            Point pixelP = convertGraphToPixel(graphP.x, graphP.y);
-            g.fillOval(pixelP.x - clickedDotSize / 2, pixelP.y - clickedDotSize / 2, clickedDotSize, clickedDotSize);
-            String coordStr = String.format("(%.2f, %.2f)", graphP.x, graphP.y);
-            g.drawString(coordStr, pixelP.x + clickedDotSize, pixelP.y - clickedDotSize);
+        if (this.pendingResize) {
+            this.pendingResize = false;
+            Dimension size = this.getSize();
+            this.width = size.width;
+            this.height = size.height;
+            this.img = new BufferedImage(this.width, this.height, BufferedImage.TYPE_INT_RGB);
+            this.spareImg = null;
+            this.icon = new ImageIcon(this.img);
+            this.setIcon(this.icon);
+            this.renderer.setSize(this.width, this.height);
         }
+    }
+
+    protected void redraw() {
+        this.applyPendingChanges();
+        this.scheduler.cancel();
+        this.frameGeneration++;
+        this.refineTimer.stop();
+        this.drawFrame(this.renderer.render(this.img));
+    }
 
-        g.setColor(Color.RED);
-        int intersectionDotSize = 10;
-        for (Point2D.Double graphP : intersectionPoints) {
-            Point pixelP = convertGraphToPixel(graphP.x, graphP.y);
-            g.fillOval(pixelP.x - intersectionDotSize / 2, pixelP.y - intersectionDotSize / 2, intersectionDotSize, intersectionDotSize);
-            String coordStr = String.format("(%.2f, %.2f)", graphP.x, graphP.y);
-            g.drawString(coordStr, pixelP.x + intersectionDotSize, pixelP.y - intersectionDotSize);
+    /**
+     * Draws a quick, low resolution frame without intersections, and
+     * schedules a full quality one for when input stops. Used while the
+     * graph is being dragged, so that frames keep up with the pointer.
+     */
+    protected void previewRedraw() {
+        this.applyPendingChanges();
+        this.scheduler.cancel();
+        this.frameGeneration++;
+        this.drawFrame(this.renderer.render(this.img, PREVIEW_COLUMN_STEP, false));
+        this.refineTimer.restart();
+    }
+
+    /**
+     * Refines the preview in two stages, each a separate event so that input
+     * queued in between is handled first: the curves at full resolution,
+     * then the intersections. A stage gives up as soon as new input arrives,
+     * and later stages are skipped once anything else has been drawn or is
+     * about to be.
+     *
+     * @param generation The frame generation the refinement was scheduled in
+     * @param intersections false for the first stage, true for the second
+     */
+    private void refine(int generation, boolean intersections) {
+        if (generation != this.frameGeneration || this.scheduler.isPending()) return;
+
+        if (this.spareImg == null) {
+            this.spareImg = new BufferedImage(this.width, this.height, BufferedImage.TYPE_INT_RGB);
+        }
+        Graphics2D g;
+        this.refining = true;
+        try {
+            g = this.renderer.render(this.spareImg, 1, intersections);
+        } finally {
+            this.refining = false;
         }
+        if (g == null) return;
+
+        BufferedImage shown = this.img;
+        this.img = this.spareImg;
+        this.spareImg = shown;
+        this.icon.setImage(this.img);
+        this.drawFrame(g);
+
+        if (!intersections) SwingUtilities.invokeLater(() -> this.refine(generation, true));
+    }
+
+    /**
+     * @return Whether a drag or click is waiting to be handled
+     */
+    private static boolean isInputPending() {
+        EventQueue queue = Toolkit.getDefaultToolkit().getSystemEventQueue();
+        return queue.peekEvent(MouseEvent.MOUSE_DRAGGED) != null ||
+                queue.peekEvent(MouseEvent.MOUSE_PRESSED) != null;
+    }
 
+    /**
+     * Adds the hover label and debug overlay to a rendered frame, then
+     * shows it.
+     *
+     * @param g The graphics context returned by the renderer
+     */
+    private void drawFrame(Graphics2D g) {
         if (hoveredPoint != null) {
-            Point2D.Double gp = convertPixelToGraph(hoveredPoint.x, hoveredPoint.y);
+            Point2D.Double gp = renderer.convertPixelToGraph(hoveredPoint.x, hoveredPoint.y);
             g.setColor(Color.BLUE);
             String text = String.format("(%.2f, %.2f)", gp.x, gp.y);
             g.drawString(text, hoveredPoint.x + 10, hoveredPoint.y - 10);
         }
 
+        if (this.debugOverlay) this.drawDebugOverlay(g);
+        g.dispose();
+
         this.repaint();
     }
 
-    protected void drawEquation(Graphics2D g, int id, Equation e, int imgWidth, int imgHeight) {
-        g.setColor(lineColours[id % lineColours.length]);
-        g.setStroke(new BasicStroke(2));
-
-        double xGraphMin = -imgWidth / 2.0 / (normInterval * this.scale);
-        double xGraphMax = imgWidth / 2.0 / (normInterval * this.scale);
-        double step = (xGraphMax - xGraphMin) / imgWidth;
-
-        Point lastPixelPoint = null;
-        for (int pixelX = 0; pixelX < imgWidth; pixelX++) {
-            double graphX = convertPixelToGraph(pixelX, 0).x;
-            double[] yValues = e.evaluate(graphX);
-
-            if (yValues.length > 0 && !Double.isNaN(yValues[0])) {
-                double graphY = yValues[0];
-                Point currentPixelPoint = convertGraphToPixel(graphX, graphY);
-
-                if (lastPixelPoint != null) {
-                    g.draw(new Line2D.Double(lastPixelPoint.x, lastPixelPoint.y, currentPixelPoint.x, currentPixelPoint.y));
-                }
-                lastPixelPoint = currentPixelPoint;
-            } else {
-                lastPixelPoint = null;
-            }
-        }
-
-        if (id > 0) {
-            for (int prevId = 0; prevId < id; prevId++) {
-                Equation prevEquation = equations.get(prevId);
-                if (prevEquation == null) continue;
-        
-                Point2D.Double lastIntersection = null;
-                double minDistanceBetweenIntersections = 0.3; 
-                
-                for (int pixelX = 0; pixelX < imgWidth; pixelX += 2) {
-                    double graphX = convertPixelToGraph(pixelX, 0).x;
-                    double[] y1Values = e.evaluate(graphX);
-                    double[] y2Values = prevEquation.evaluate(graphX);
-        
-                    if (y1Values.length > 0 && !Double.isNaN(y1Values[0]) &&
-                        y2Values.length > 0 && !Double.isNaN(y2Values[0])) {
-        
-                        double y1 = y1Values[0];
-                        double y2 = y2Values[0];
-                        
-                        // More reasonable tolerance based on scale
-                        double tolerance = Math.max(0.01 / this.scale, 0.01);
-        
-                        if (Math.abs(y1 - y2) < tolerance) {
-                            Point2D.Double candidate = new Point2D.Double(
-                                Math.round(graphX * 100) / 100.0, 
-                                Math.round(((y1 + y2) / 2.0) * 100) / 100.0
-                            );
-                            
-                            // Check if this intersection is far enough from the last one
-                            boolean shouldAdd = true;
-                            if (lastIntersection != null) {
-                                double distance = Math.sqrt(
-                                    Math.pow(candidate.x - lastIntersection.x, 2) + 
-                                    Math.pow(candidate.y - lastIntersection.y, 2)
-                                );
-                                if (distance < minDistanceBetweenIntersections) {
-                                    shouldAdd = false;
-                                }
-                            }
-                            
-                            // Also check against existing intersection points
-                            for (Point2D.Double existing : intersectionPoints) {
-                                double distance = Math.sqrt(
-                                    Math.pow(candidate.x - existing.x, 2) + 
-                                    Math.pow(candidate.y - existing.y, 2)
-                                );
-                                if (distance < minDistanceBetweenIntersections) {
-                                    shouldAdd = false;
-                                    break;
-                                }
-                            }
-                            
-                            if (shouldAdd) {
-                                intersectionPoints.add(candidate);
-                                lastIntersection = candidate;
-                            }
-                        }
-                    }
-                }
-            }
-        }
+    /**
+     * Draws the render metrics summary onto a translucent panel.
+     *
+     * @param g The graphics context of the current frame
+     */
+    protected void drawDebugOverlay(Graphics2D g) {
+        java.util.List<String> lines = RenderMetrics.get().overlayLines();
+        g.setFont(new Font("monospaced", Font.PLAIN, 12));
+        FontMetrics fm = g.getFontMetrics();
+
+        int lineHeight = fm.getHeight();
+        int boxWidth = 0;
+        for (String line : lines) boxWidth = Math.max(boxWidth, fm.stringWidth(line));
+
+        g.setColor(new Color(0, 0, 0, 170));
+        g.fillRect(4, 4, boxWidth + 12, lineHeight * lines.size() + 8);
+        g.setColor(Color.WHITE);
+        for (int i = 0; i < lines.size(); i++) {
+            g.drawString(lines.get(i), 10, 8 + fm.getAscent() + i * lineHeight);
         }
+    }
 
-        protected void drawGrid(Graphics2D g, int imgWidth, int imgHeight) {
-            float[] dashPattern = new float[]{10 * (float) this.scale, 5 * (float) this.scale};
-            g.setColor(new Color(48, 48, 48));
-        
-            int centerX = imgWidth / 2;
-            int centerY = imgHeight / 2;
-        
-            g.setStroke(new BasicStroke(2));
-            // Axes (adjusted for offset)
-            int axisX = (int) (centerX - offsetX * normInterval * scale);
-            int axisY = (int) (centerY + offsetY * normInterval * scale);
-            g.draw(new Line2D.Double(0, axisY, imgWidth, axisY)); // X axis
-            g.draw(new Line2D.Double(axisX, 0, axisX, imgHeight)); // Y axis
-        
-            // Grid lines
-            g.setStroke(new BasicStroke(1, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER, 10, dashPattern, 0)); 
-            int interval = (int) Math.round(normInterval * this.scale);
-            if (interval < 1) interval = 1;
-        
-            // Calculate start points in graph space
-            double graphXMin = convertPixelToGraph(0, 0).x;
-            double graphXMax = convertPixelToGraph(imgWidth, 0).x;
-            double graphYMin = convertPixelToGraph(0, imgHeight).y;
-            double graphYMax = convertPixelToGraph(0, 0).y;
-        
-            // Draw vertical grid lines
-            for (int i = (int) Math.floor(graphXMin); i <= (int) Math.ceil(graphXMax); i++) {
-                int x = convertGraphToPixel(i, 0).x;
-                g.draw(new Line2D.Double(x, 0, x, imgHeight));
-                if (Math.abs(i) > 1e-6) // skip 0 label on X-axis
-                    g.drawString(Integer.toString(i), x + 2, axisY + 14);
-            }
-        
-            // Draw horizontal grid lines
-            for (int j = (int) Math.floor(graphYMin); j <= (int) Math.ceil(graphYMax); j++) {
-                int y = convertGraphToPixel(0, j).y;
-                g.draw(new Line2D.Double(0, y, imgWidth, y));
-                if (Math.abs(j) > 1e-6) // skip 0 label on Y-axis
-                    g.drawString(Integer.toString(j), axisX + 2, y + 14);
-            }
-        }
+    @Override
+    protected void paintComponent(Graphics g) {
+        long start = System.nanoTime();
+        super.paintComponent(g);
+        RenderMetrics.get().record(RenderMetrics.Stage.REPAINT, start);
+    }
 
     public void saveWorkspace() {
         String filename = "workspace.txt";
 
         try (PrintWriter writer = new PrintWriter(new FileWriter(filename))) {
-            for (Equation e : this.equations) {
+            for (Equation e : this.renderer.getEquations()) {
                 if (e != null) {
                     writer.println(e.toString());
                 }
@@ -358,56 +393,96 @@ public class Graph extends JLabel implements ComponentListener, EquationListener
         }
     }
 
-    public void saveAsSVG(File file) {
+    /**
+     * Restores the viewport and clicked points saved in a binary workspace.
+     * The equations themselves arrive through the EquationListener events.
+     *
+     * @param workspace The workspace which has just been loaded
+     */
+    public void applyWorkspace(BinaryWorkspace workspace) {
+        this.renderer.setScale(workspace.getScale());
+        this.renderer.setOffset(workspace.getOffsetX(), workspace.getOffsetY());
+        this.renderer.getClickedPoints().clear();
+        this.renderer.getClickedPoints().addAll(workspace.getClickedPoints());
+        this.redraw();
+    }
+
+    /**
+     * Writes the equations, viewport and clicked points as a binary
+     * workspace.
+     *
+     * @param file The file to write
+     */
+    public void saveBinaryWorkspace(File file) {
         try {
-            DOMImplementation domImpl = DocumentBuilderFactory.newInstance().newDocumentBuilder().getDOMImplementation();
-            Document document = domImpl.createDocument(null, "svg", null);
-            SVGGraphics2D svgGenerator = new SVGGraphics2D(document);
-            svgGenerator.setSVGCanvasSize(new Dimension(this.width, this.height));
-
-            svgGenerator.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-
-            this.drawGrid(svgGenerator, this.width, this.height);
-            int id = 0;
-            for (Equation e : this.equations) {
-                if (e == null) continue;
-                try {
-                    this.drawEquation(svgGenerator, id, e, this.width, this.height);
-                } catch (Exception ex) {
-                    EquationEditor editor = (id < editors.size()) ? editors.get(id) : null;
-                    if (editor != null) editor.setInvalid();
-                }
-                id++;
-            }
+            BinaryWorkspace.write(file, this.renderer);
+            System.out.println("Workspace saved to " + file.getPath());
+        } catch (IOException e) {
+            System.err.println("Error saving workspace: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
 
-            // Draw clicked points on SVG
-            svgGenerator.setColor(Color.MAGENTA);
-            int clickedDotSize = 8;
-            for (Point pixelP : clickedPixelPoints) {
-                // SVG coordinates are typically top-left origin, matching Swing pixel (x,y)
-                svgGenerator.fillOval(pixelP.x - clickedDotSize / 2, pixelP.y - clickedDotSize / 2, clickedDotSize, clickedDotSize);
-                String coordStr = String.format("(%.2f, %.2f)",
-                                                convertPixelToGraph(pixelP.x, pixelP.y).x,
-                                                convertPixelToGraph(pixelP.x, pixelP.y).y);
-                svgGenerator.drawString(coordStr, pixelP.x + clickedDotSize, pixelP.y - clickedDotSize);
+    /**
+     * Exports a sweep of a parameter over its slider's range as an animated
+     * GIF, using the current view. The frames are drawn in the background.
+     *
+     * @param file The GIF file to write
+     * @param parameter The parameter to sweep
+     * @param frames Number of frames
+     */
+    public void exportAnimation(File file, String parameter, int frames) {
+        FrameSequenceExporter exporter = new FrameSequenceExporter(this.renderer);
+        exporter.setSweep(parameter, ParameterSlider.MIN, ParameterSlider.MAX, frames);
+        // Leave a core for the interface
+        exporter.setThreads(Runtime.getRuntime().availableProcessors() - 1);
+
+        Thread thread = new Thread(() -> {
+            try {
+                double fps = exporter.export(file);
+                System.out.printf("Animation exported to %s (%.1f frames/s)\n", file.getPath(), fps);
+            } catch (Exception e) {
+                System.err.println("Error exporting animation: " + e.getMessage());
+                e.printStackTrace();
             }
+        }, "animation-export");
+        thread.setDaemon(true);
+        thread.start();
+    }
 
-            // Draw intersection points on SVG
-            svgGenerator.setColor(Color.RED);
-            int intersectionDotSize = 10;
-            for (Point2D.Double graphP : intersectionPoints) {
-                Point pixelP = convertGraphToPixel(graphP.x, graphP.y);
-                svgGenerator.fillOval(pixelP.x - intersectionDotSize / 2, pixelP.y - intersectionDotSize / 2, intersectionDotSize, intersectionDotSize);
-                String coordStr = String.format("(%.2f, %.2f)", graphP.x, graphP.y);
-                svgGenerator.drawString(coordStr, pixelP.x + intersectionDotSize, pixelP.y - intersectionDotSize);
+    /**
+     * Exports a table of values across the visible range of x in the
+     * background. Files ending in .csv are written as CSV, and anything else
+     * as a binary column file.
+     *
+     * @param file The file to write
+     * @param step Distance between x values
+     */
+    public void exportTable(File file, double step) {
+        TableExporter exporter = new TableExporter(this.renderer.getEquations());
+        exporter.setRange(this.renderer.convertPixelToGraph(0, 0).x,
+                this.renderer.convertPixelToGraph(this.renderer.getWidth(), 0).x, step);
+        exporter.setFormat(file.getName().toLowerCase().endsWith(".csv") ? "csv" : "bin");
+
+        Thread thread = new Thread(() -> {
+            try {
+                double rowsPerSecond = exporter.export(file);
+                System.out.printf("Exported %d rows to %s (%.2f million rows/s)\n",
+                        exporter.getRowCount(), file.getPath(), rowsPerSecond / 1e6);
+            } catch (Exception e) {
+                System.err.println("Error exporting table: " + e.getMessage());
+                e.printStackTrace();
             }
+        }, "table-export");
+        thread.setDaemon(true);
+        thread.start();
+    }
 
-
-            try (Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8")) {
-                svgGenerator.stream(out, true);
-            }
+    public void saveAsSVG(File file) {
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8")) {
+            this.renderer.renderSVG(out);
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
-}
\ No newline at end of file
+}
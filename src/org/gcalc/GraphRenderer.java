@@ -0,0 +1,1058 @@
+package org.gcalc;
+
+import java.awt.*;
+import java.awt.geom.Line2D;
+import java.awt.geom.Path2D;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.batik.svggen.SVGGraphics2D;
+import org.w3c.dom.Document;
+import org.w3c.dom.DOMImplementation;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+/**
+ * Draws a list of equations, the grid and any marked points onto an arbitrary
+ * Graphics2D surface. Holds the viewport (scale and offset) and output size,
+ * but knows nothing about Swing, so it can be used from the Graph component
+ * as well as from headless tools.
+ *
+ * Instances are not thread safe. Use one renderer per thread.
+ */
+public class GraphRenderer {
+    /**
+     * Number of pixels per graph unit at a scale of 1
+     */
+    public static final int normInterval = 50;
+
+    private int width, height;
+    private double scale = 1;
+    private double offsetX = 0;
+    private double offsetY = 0;
+
+    // Snapshot of the mapping between pixel and graph coordinates, made when
+    // first needed after the size, scale or offset changes
+    private Viewport viewport = null;
+
+    // Graph x coordinate of each pixel column, for columnXsView
+    private double[] columnXs = new double[0];
+    private int columnXsCount = 0;
+    private Viewport columnXsView = null;
+
+    private ArrayList<Equation> equations = new ArrayList<>();
+    private List<Point2D.Double> clickedGraphPoints = new ArrayList<>();
+    private Set<Point2D.Double> intersectionPoints = new HashSet<>();
+
+    // Equation evaluations in the frame currently being drawn
+    private long frameSamples = 0;
+
+    // Every curve sampled at each pixel column for the frame being drawn,
+    // all at once so that subexpressions they share are only computed once
+    private IdentityHashMap<Equation, double[]> frameCurves = new IdentityHashMap<>();
+
+    // Samples of each parametric and polar curve for the frame being drawn,
+    // as interleaved graph coordinates from CurveTracer
+    private IdentityHashMap<Equation, double[]> frameTraces = new IdentityHashMap<>();
+    // Range of x shaded under each equation being integrated
+    private Map<Equation, double[]> integrals = new IdentityHashMap<>();
+
+    // Curves and intersections from earlier frames, reused while the
+    // equations and horizontal viewport stay the same
+    private SampleCache cache = new SampleCache();
+
+    // Whether to plot curves straight into the image's pixels, and the
+    // plotter for the frame being drawn if so
+    private boolean rasterCurves = false;
+    private RasterPlotter plotter = null;
+    private double[] plotXs = new double[0], plotYs = new double[0];
+
+    // How the frame being drawn is drawn: a quick preview only samples every
+    // columnStep'th column and skips the intersection search. cancelled is
+    // set once isCancelled() has stopped the frame.
+    private int columnStep = 1;
+    private boolean intersections = true;
+    private boolean cancelled = false;
+
+    // Draws the grid, keeping images of its lines between frames. Only used
+    // for them when the frame is drawn into an image rather than SVG.
+    private Grid grid = new Grid();
+    private boolean rasterTarget = false;
+
+    /**
+     * Creates a renderer which draws into an area of the given size.
+     *
+     * @param width Width of the output in pixels
+     * @param height Height of the output in pixels
+     */
+    public GraphRenderer(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    public void setSize(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.viewport = null;
+    }
+
+    public int getWidth() { return this.width; }
+    public int getHeight() { return this.height; }
+
+    public void setScale(double scale) {
+        this.scale = scale;
+        this.viewport = null;
+    }
+
+    public double getScale() { return this.scale; }
+
+    public void setOffset(double offsetX, double offsetY) {
+        this.offsetX = offsetX;
+        this.offsetY = offsetY;
+        this.viewport = null;
+    }
+
+    public double getOffsetX() { return this.offsetX; }
+    public double getOffsetY() { return this.offsetY; }
+
+    /**
+     * Moves the viewport by a distance measured in pixels, as happens when
+     * the graph is dragged.
+     *
+     * @param dx Horizontal pixel distance
+     * @param dy Vertical pixel distance
+     */
+    public void pan(int dx, int dy) {
+        this.offsetX -= dx / (normInterval * this.scale);
+        this.offsetY += dy / (normInterval * this.scale);
+        this.viewport = null;
+    }
+
+    /**
+     * Sets the equation at a given index, padding the list with empty slots
+     * if needed. A null equation is skipped when drawing.
+     *
+     * @param id The array index of the equation
+     * @param e The equation to draw, or null
+     */
+    public void setEquation(int id, Equation e) {
+        while (this.equations.size() <= id) this.equations.add(null);
+        Equation old = this.equations.set(id, e);
+        // Anything cached for the old equation can never be used again
+        if (old != null && old != e && !this.equations.contains(old)) {
+            this.cache.remove(old);
+            this.integrals.remove(old);
+        }
+    }
+
+    /**
+     * Shades the area between an equation and the x axis over a range, to
+     * show what is being integrated.
+     *
+     * @param e The equation
+     * @param from Start of the range, or NaN to stop shading
+     * @param to End of the range, or NaN to stop shading
+     */
+    public void setIntegral(Equation e, double from, double to) {
+        if (e == null) return;
+        if (Double.isNaN(from) || Double.isNaN(to)) this.integrals.remove(e);
+        else this.integrals.put(e, new double[]{Math.min(from, to), Math.max(from, to)});
+    }
+
+    /**
+     * Forgets the cached samples and intersections of every equation using a
+     * parameter, after its value has changed, so that only those equations
+     * are sampled again in the next frame.
+     *
+     * @param name The parameter which changed
+     * @return Whether any equation uses the parameter
+     */
+    public boolean parameterChanged(String name) {
+        boolean used = false;
+        for (Equation e : this.equations) {
+            if (e != null && e.usesParameter(name)) {
+                this.cache.remove(e);
+                used = true;
+            }
+        }
+        return used;
+    }
+
+    /**
+     * Chooses between drawing curves with Graphics2D, and plotting them
+     * straight into the pixels of TYPE_INT_RGB images with RasterPlotter,
+     * which is faster but only approximates Java2D's antialiasing. SVG output
+     * and other image types always use Graphics2D.
+     *
+     * @param enabled Whether to use the raster plotter where possible
+     */
+    public void setRasterCurves(boolean enabled) {
+        this.rasterCurves = enabled;
+    }
+
+    public boolean isRasterCurves() {
+        return this.rasterCurves;
+    }
+
+    /**
+     * @return The cache of curve samples and intersections kept between
+     *         frames
+     */
+    public SampleCache getSampleCache() {
+        return this.cache;
+    }
+
+    public List<Equation> getEquations() {
+        return this.equations;
+    }
+
+    public void addClickedPoint(Point2D.Double graphPoint) {
+        this.clickedGraphPoints.add(graphPoint);
+    }
+
+    public List<Point2D.Double> getClickedPoints() {
+        return this.clickedGraphPoints;
+    }
+
+    public Set<Point2D.Double> getIntersectionPoints() {
+        return this.intersectionPoints;
+    }
+
+    /**
+     * @return The mapping between pixel and graph coordinates for the
+     *         current size, scale and offset
+     */
+    public Viewport getViewport() {
+        if (this.viewport == null) {
+            this.viewport = new Viewport(this.width, this.height, this.scale, this.offsetX, this.offsetY);
+        }
+        return this.viewport;
+    }
+
+    public Point convertGraphToPixel(double graphX, double graphY) {
+        Viewport view = this.getViewport();
+        return new Point(view.toPixelX(graphX), view.toPixelY(graphY));
+    }
+
+    public Point2D.Double convertPixelToGraph(int pixelX, int pixelY) {
+        Viewport view = this.getViewport();
+        return new Point2D.Double(view.toGraphX(pixelX), view.toGraphY(pixelY));
+    }
+
+    /**
+     * @return The graph x coordinate of each pixel column, worked out once
+     *         per viewport. Must not be modified.
+     */
+    private double[] columnXs(int imgWidth) {
+        Viewport view = this.getViewport();
+        if (this.columnXsView != view || this.columnXsCount < imgWidth) {
+            if (this.columnXs.length < imgWidth) this.columnXs = new double[imgWidth];
+            view.columnsToGraph(this.columnXs, imgWidth);
+            this.columnXsView = view;
+            this.columnXsCount = imgWidth;
+        }
+        return this.columnXs;
+    }
+
+    /**
+     * Renders a full frame into an image, which is expected to be the same
+     * size as the renderer.
+     *
+     * @param img The image to draw into
+     * @return The graphics context used, so that callers can draw overlays
+     *         before disposing of it
+     */
+    public Graphics2D render(BufferedImage img) {
+        return this.render(img, 1, true);
+    }
+
+    /**
+     * Renders a frame into an image, possibly as a quick preview. A preview
+     * samples curves at every columnStep'th pixel column only, joining the
+     * samples with straight lines, and can leave out the intersection
+     * search. Preview samples aren't kept in the sample cache.
+     *
+     * The frame stops early if isCancelled() returns true while it is being
+     * drawn, in which case the image is left half drawn.
+     *
+     * @param img The image to draw into
+     * @param columnStep Distance between sampled columns, 1 for every column
+     * @param intersections Whether to search for and mark intersections
+     * @return The graphics context used, so that callers can draw overlays
+     *         before disposing of it, or null if the frame was cancelled
+     */
+    public Graphics2D render(BufferedImage img, int columnStep, boolean intersections) {
+        RenderMetrics metrics = RenderMetrics.get();
+        long frameStart = System.nanoTime();
+        long allocStart = metrics.threadAllocatedBytes();
+        RenderEvents.Frame event = new RenderEvents.Frame();
+        event.begin();
+
+        Graphics2D g = img.createGraphics();
+        g.setBackground(Color.WHITE);
+        g.setColor(Color.WHITE);
+        g.fill(new Rectangle2D.Double(0, 0, this.width, this.height));
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+
+        this.intersectionPoints.clear();
+        this.frameSamples = 0;
+        long cacheHits = this.cache.getHits(), cacheMisses = this.cache.getMisses();
+        this.plotter = this.rasterCurves ? RasterPlotter.forImage(img) : null;
+        this.columnStep = Math.max(1, columnStep);
+        this.intersections = intersections;
+        this.cancelled = false;
+        this.rasterTarget = true;
+        try {
+            this.drawScene(g);
+        } finally {
+            this.rasterTarget = false;
+            this.plotter = null;
+            this.columnStep = 1;
+            this.intersections = true;
+        }
+
+        metrics.recordSampleCache(this.cache.getHits() - cacheHits,
+                this.cache.getMisses() - cacheMisses, this.cache.getBytes());
+        metrics.recordAllocations(allocStart);
+        metrics.record(RenderMetrics.Stage.FRAME, frameStart);
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.width = this.width;
+            event.height = this.height;
+            event.scale = this.scale;
+            event.offsetX = this.offsetX;
+            event.offsetY = this.offsetY;
+            for (Equation e : this.equations) if (e != null) event.equationCount++;
+            event.sampleCount = this.frameSamples;
+            event.commit();
+        }
+
+        if (this.cancelled) {
+            g.dispose();
+            return null;
+        }
+        return g;
+    }
+
+    /**
+     * Renders a full frame as an SVG document.
+     *
+     * @param out Where to write the SVG document to
+     * @throws IOException if the document could not be written
+     */
+    public void renderSVG(Writer out) throws IOException {
+        DOMImplementation domImpl;
+        try {
+            domImpl = DocumentBuilderFactory.newInstance().newDocumentBuilder().getDOMImplementation();
+        } catch (ParserConfigurationException e) {
+            throw new IOException("Unable to create SVG document", e);
+        }
+        Document document = domImpl.createDocument(null, "svg", null);
+        SVGGraphics2D svgGenerator = new SVGGraphics2D(document);
+        svgGenerator.setSVGCanvasSize(new Dimension(this.width, this.height));
+        svgGenerator.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+
+        this.cancelled = false;
+        this.drawScene(svgGenerator);
+        svgGenerator.stream(out, true);
+    }
+
+    /**
+     * Called when an equation throws whilst being drawn. The default
+     * implementation just logs the error; the Graph component overrides this
+     * to flag the matching editor as invalid.
+     *
+     * @param id The index the equation was drawn with
+     * @param ex The exception thrown
+     */
+    protected void equationFailed(int id, Exception ex) {
+        System.err.printf("Error drawing equation %d: %s\n", id, ex.getMessage());
+    }
+
+    /**
+     * Polled between equations and intersection pairs while a frame is
+     * drawn, so that a slow frame can be abandoned when it is no longer
+     * wanted. The default implementation never cancels; the Graph component
+     * overrides this to stop refining a frame once new input arrives.
+     *
+     * @return true to stop drawing the current frame
+     */
+    protected boolean isCancelled() {
+        return false;
+    }
+
+    /**
+     * Checks isCancelled(), remembering the answer for the rest of the frame.
+     */
+    private boolean checkCancelled() {
+        if (!this.cancelled && this.isCancelled()) this.cancelled = true;
+        return this.cancelled;
+    }
+
+    /**
+     * @return The number of columns sampled per curve in the current frame
+     */
+    private int sampledColumns(int imgWidth) {
+        return (imgWidth + this.columnStep - 1) / this.columnStep;
+    }
+
+    /**
+     * Draws the grid, each equation, then the clicked and intersection points.
+     *
+     * @param g The surface to draw onto
+     */
+    protected void drawScene(Graphics2D g) {
+        long gridStart = System.nanoTime();
+        this.drawGrid(g, this.width, this.height);
+        RenderMetrics.get().record(RenderMetrics.Stage.GRID, gridStart);
+
+        this.sampleCurves(this.width);
+        int id = 0;
+        for (Equation e : this.equations) {
+            if (e == null) continue;
+            if (this.checkCancelled()) break;
+            try {
+                this.drawEquation(g, id, e, this.width, this.height);
+            } catch (Exception ex) {
+                this.equationFailed(id, ex);
+            }
+            id++;
+        }
+        this.frameCurves.clear();
+        this.frameTraces.clear();
+        if (this.cancelled) return;
+
+        Viewport view = this.getViewport();
+        g.setColor(Color.MAGENTA);
+        int clickedDotSize = 8;
+        for (Point2D.Double graphP : clickedGraphPoints) {
+            int pixelX = view.toPixelX(graphP.x), pixelY = view.toPixelY(graphP.y);
+            g.fillOval(pixelX - clickedDotSize / 2, pixelY - clickedDotSize / 2, clickedDotSize, clickedDotSize);
+            String coordStr = String.format("(%.2f, %.2f)", graphP.x, graphP.y);
+            g.drawString(coordStr, pixelX + clickedDotSize, pixelY - clickedDotSize);
+        }
+
+        g.setColor(Color.RED);
+        int intersectionDotSize = 10;
+        for (Point2D.Double graphP : intersectionPoints) {
+            int pixelX = view.toPixelX(graphP.x), pixelY = view.toPixelY(graphP.y);
+            g.fillOval(pixelX - intersectionDotSize / 2, pixelY - intersectionDotSize / 2, intersectionDotSize, intersectionDotSize);
+            String coordStr = String.format("(%.2f, %.2f)", graphP.x, graphP.y);
+            g.drawString(coordStr, pixelX + intersectionDotSize, pixelY - intersectionDotSize);
+        }
+    }
+
+    /**
+     * Samples every drawable equation at each pixel column, before any of
+     * them are drawn. Curves cached from an earlier frame with the same
+     * horizontal viewport are reused, so after editing one equation only
+     * that equation is sampled again.
+     *
+     * The remaining equations are compiled into one shared program, so a
+     * subexpression common to several of them, like the sin(x) in sin(x),
+     * 2sin(x) and sin(x)+1, is computed once per column and its value fed to
+     * each. Equations which can't be shared are evaluated on their own.
+     *
+     * In a preview only every columnStep'th column is sampled, and the
+     * samples aren't cached.
+     *
+     * Parametric and polar curves are traced by CurveTracer instead.
+     *
+     * @param imgWidth Width of the output in pixels
+     */
+    protected void sampleCurves(int imgWidth) {
+        long start = System.nanoTime();
+        this.frameCurves.clear();
+        this.frameTraces.clear();
+
+        List<Equation> stale = new ArrayList<>();
+        List<Integer> staleIds = new ArrayList<>();
+        List<Equation.Expression> exprs = new ArrayList<>();
+        int id = 0;
+        for (Equation e : this.equations) {
+            if (e == null) continue;
+            if (e.isParametric()) {
+                if (!this.frameTraces.containsKey(e)) this.traceCurve(id, e, imgWidth);
+            } else if (!this.frameCurves.containsKey(e) && !stale.contains(e)) {
+                double[] cached = this.cache.getCurve(e, imgWidth, this.scale, this.offsetX);
+                if (cached != null) {
+                    this.frameCurves.put(e, cached);
+                } else {
+                    stale.add(e);
+                    staleIds.add(id);
+                    exprs.add(e.isEmpty ? null : e.getRightHandSide());
+                }
+            }
+            id++;
+        }
+
+        if (!stale.isEmpty()) {
+            ExpressionCompiler.SharedProgram program = ExpressionCompiler.compileShared(exprs);
+            double[] xs = this.columnXs(imgWidth);
+            double[][] samples = new double[stale.size()][];
+            for (int i = 0; i < samples.length; i++) {
+                if (program.contains(i)) samples[i] = new double[imgWidth];
+            }
+
+            int step = this.columnStep;
+            for (int pixelX = 0; pixelX < imgWidth; pixelX += step) {
+                program.evaluate(xs[pixelX]);
+                for (int i = 0; i < samples.length; i++) {
+                    if (samples[i] != null) samples[i][pixelX] = program.result(i);
+                }
+            }
+
+            for (int i = 0; i < samples.length; i++) {
+                Equation e = stale.get(i);
+                if (samples[i] == null) {
+                    try {
+                        samples[i] = this.sampleBranches(e, xs, imgWidth);
+                    } catch (Exception ex) {
+                        // Evaluated again and reported when it is drawn
+                        continue;
+                    }
+                }
+                this.frameCurves.put(e, samples[i]);
+                if (step == 1) this.cache.putCurve(e, imgWidth, this.scale, this.offsetX, samples[i]);
+                this.countEvaluations(staleIds.get(i), this.sampledColumns(imgWidth));
+            }
+
+            RenderMetrics.get().recordOperations(program.operations * this.sampledColumns(imgWidth),
+                    program.unsharedOperations * this.sampledColumns(imgWidth));
+        }
+
+        RenderMetrics.get().record(RenderMetrics.Stage.SAMPLE, start);
+    }
+
+    /**
+     * Samples a parametric or polar curve for the frame, reusing the samples
+     * from an earlier frame at the same scale. The samples don't depend on
+     * the offset, so they are kept while the graph is panned. Previews use
+     * a coarser tolerance and aren't cached.
+     */
+    private void traceCurve(int id, Equation e, int imgWidth) {
+        double[] trace = this.cache.getTrace(e, imgWidth, this.scale);
+        if (trace == null) {
+            CurveTracer tracer = new CurveTracer(e);
+            try {
+                trace = tracer.trace(this.getViewport().getPixelsPerUnit(),
+                        CurveTracer.DEFAULT_TOLERANCE * this.columnStep);
+            } catch (Exception ex) {
+                // Traced again and reported when it is drawn
+                return;
+            } finally {
+                this.countEvaluations(id, tracer.getEvaluations());
+            }
+            if (this.columnStep == 1) this.cache.putTrace(e, imgWidth, this.scale, trace);
+        }
+        this.frameTraces.put(e, trace);
+    }
+
+    /**
+     * Samples an equation which couldn't be put in the shared program, at
+     * every columnStep'th column. Each branch of an equation using ± gets
+     * imgWidth samples of its own, one after the other, and all of them are
+     * evaluated together into the same reused lanes.
+     *
+     * @return The samples of each branch
+     */
+    private double[] sampleBranches(Equation e, double[] xs, int imgWidth) {
+        int branches = e.getBranchCount();
+        double[] samples = new double[branches * imgWidth];
+        BranchProgram program = branches > 1 ? e.getRightHandSide().getBranchProgram() : null;
+
+        if (program != null && program.onlyX) {
+            double[] lanes = program.newLanes();
+            for (int pixelX = 0; pixelX < imgWidth; pixelX += this.columnStep) {
+                program.evaluate(xs[pixelX], lanes, samples, pixelX, imgWidth);
+            }
+        } else {
+            for (int pixelX = 0; pixelX < imgWidth; pixelX += this.columnStep) {
+                double[] yValues = e.evaluate(xs[pixelX]);
+                for (int b = 0; b < branches; b++) {
+                    samples[b * imgWidth + pixelX] = b < yValues.length ? yValues[b] : Double.NaN;
+                }
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * @return The samples of an equation for the current frame, or null if
+     *         it wasn't sampled by sampleCurves()
+     */
+    private double[] frameSamples(Equation e, int imgWidth) {
+        double[] samples = this.frameCurves.get(e);
+        return samples != null && samples.length >= imgWidth * e.getBranchCount() ? samples : null;
+    }
+
+    /**
+     * @return One y value of an equation at a pixel column, taken from the
+     *         frame's samples if there are any
+     */
+    private static double sampleAt(Equation e, double[] samples, int branch, int imgWidth, int pixelX,
+                                   double graphX) {
+        if (samples != null) return samples[branch * imgWidth + pixelX];
+        double[] yValues = e.evaluate(graphX);
+        return branch < yValues.length ? yValues[branch] : Double.NaN;
+    }
+
+    protected void drawEquation(Graphics2D g, int id, Equation e, int imgWidth, int imgHeight) {
+        g.setColor(Graph.lineColours[id % Graph.lineColours.length]);
+        g.setStroke(new BasicStroke(2));
+
+        long curveStart = System.nanoTime();
+        if (e.isParametric()) {
+            this.drawTrace(g, id, e, imgWidth);
+            RenderMetrics.get().record(RenderMetrics.Stage.CURVES, curveStart);
+            if (this.intersections) this.findIntersections(id, e, imgWidth);
+            return;
+        }
+
+        double[] samples = this.frameSamples(e, imgWidth);
+        double[] integral = this.integrals.get(e);
+        if (integral != null) this.shadeIntegral(g, e, samples, integral, imgWidth, imgHeight);
+
+        for (int branch = 0; branch < e.getBranchCount(); branch++) {
+            if (this.plotter != null) {
+                this.plotEquation(g.getColor().getRGB(), e, samples, branch, imgWidth);
+            } else {
+                this.drawEquationLines(g, e, samples, branch, imgWidth);
+            }
+        }
+
+        // Curves sampled for the frame were counted when they were sampled
+        if (samples == null) this.countEvaluations(id, this.sampledColumns(imgWidth));
+        RenderMetrics.get().record(RenderMetrics.Stage.CURVES, curveStart);
+
+        if (this.intersections) this.findIntersections(id, e, imgWidth);
+    }
+
+    /**
+     * Fills the area between each branch of a curve and the x axis, over the
+     * range being integrated, in a translucent version of the curve's colour.
+     * The area is split wherever the curve doesn't exist.
+     */
+    private void shadeIntegral(Graphics2D g, Equation e, double[] samples, double[] range,
+                               int imgWidth, int imgHeight) {
+        Viewport view = this.getViewport();
+        double[] xs = this.columnXs(imgWidth);
+        int step = this.columnStep;
+        // In a preview only every step'th column was sampled, so start on one
+        int first = (Math.max(0, view.toPixelX(range[0])) + step - 1) / step * step;
+        int last = Math.min(imgWidth - 1, view.toPixelX(range[1]));
+        if (first > last) return;
+
+        Color line = g.getColor();
+        g.setColor(new Color(line.getRed(), line.getGreen(), line.getBlue(), 60));
+        // Kept just outside the image, so far off values don't overflow
+        double axisY = Math.max(-1, Math.min(imgHeight + 1, view.toPixelY(0)));
+
+        for (int branch = 0; branch < e.getBranchCount(); branch++) {
+            Path2D.Double area = new Path2D.Double();
+            boolean open = false;
+            int lastX = first;
+            for (int pixelX = first; pixelX <= last; pixelX += step) {
+                double graphY = sampleAt(e, samples, branch, imgWidth, pixelX, xs[pixelX]);
+                if (Double.isNaN(graphY)) {
+                    if (open) {
+                        area.lineTo(lastX, axisY);
+                        area.closePath();
+                        open = false;
+                    }
+                    continue;
+                }
+
+                double pixelY = Math.max(-1, Math.min(imgHeight + 1, view.toPixelY(graphY)));
+                if (!open) {
+                    area.moveTo(pixelX, axisY);
+                    open = true;
+                }
+                area.lineTo(pixelX, pixelY);
+                lastX = pixelX;
+            }
+            if (open) {
+                area.lineTo(lastX, axisY);
+                area.closePath();
+            }
+            g.fill(area);
+        }
+        g.setColor(line);
+    }
+
+    /**
+     * Draws one branch of a curve as a line segment between each pair of
+     * valid samples, using Graphics2D.
+     */
+    private void drawEquationLines(Graphics2D g, Equation e, double[] samples, int branch, int imgWidth) {
+        Viewport view = this.getViewport();
+        double[] xs = this.columnXs(imgWidth);
+        // Graphics2D doesn't keep the shape, so one line is reused
+        Line2D.Double line = new Line2D.Double();
+        boolean hasLast = false;
+        int lastX = 0, lastY = 0;
+        for (int pixelX = 0; pixelX < imgWidth; pixelX += this.columnStep) {
+            double graphX = xs[pixelX];
+            double graphY = sampleAt(e, samples, branch, imgWidth, pixelX, graphX);
+
+            if (!Double.isNaN(graphY)) {
+                int currentX = view.toPixelX(graphX), currentY = view.toPixelY(graphY);
+
+                if (hasLast) {
+                    line.setLine(lastX, lastY, currentX, currentY);
+                    g.draw(line);
+                }
+                lastX = currentX;
+                lastY = currentY;
+                hasLast = true;
+            } else {
+                hasLast = false;
+            }
+        }
+    }
+
+    /**
+     * Plots one branch of a curve straight into the frame's pixels. The pixel
+     * coordinates are mapped in batches into reused arrays, rather than a
+     * Point per sample.
+     */
+    private void plotEquation(int rgb, Equation e, double[] samples, int branch, int imgWidth) {
+        if (this.plotXs.length < imgWidth) {
+            this.plotXs = new double[imgWidth];
+            this.plotYs = new double[imgWidth];
+        }
+
+        Viewport view = this.getViewport();
+        double[] xs = this.columnXs(imgWidth);
+        int n = 0;
+        for (int pixelX = 0; pixelX < imgWidth; pixelX += this.columnStep, n++) {
+            double graphY = sampleAt(e, samples, branch, imgWidth, pixelX, xs[pixelX]);
+            this.plotXs[n] = Double.isNaN(graphY) ? Double.NaN : xs[pixelX];
+            this.plotYs[n] = graphY;
+        }
+        view.toPixelXs(this.plotXs, this.plotXs, n);
+        view.toPixelYs(this.plotYs, this.plotYs, n);
+
+        // Java2D's default stroke normalisation moves integer coordinates to
+        // pixel centres, so do the same here
+        for (int i = 0; i < n; i++) {
+            this.plotXs[i] += 0.5;
+            this.plotYs[i] += 0.5;
+        }
+
+        this.plotter.drawPolyline(this.plotXs, this.plotYs, n, rgb & 0xffffff, 2);
+    }
+
+    /**
+     * Draws a parametric or polar curve through its traced samples, as one
+     * path with Graphics2D or straight into the pixels with the plotter.
+     */
+    private void drawTrace(Graphics2D g, int id, Equation e, int imgWidth) {
+        double[] trace = this.frameTraces.get(e);
+        if (trace == null) {
+            // Tracing failed in sampleCurves(), so trace again to report why
+            CurveTracer tracer = new CurveTracer(e);
+            trace = tracer.trace(this.getViewport().getPixelsPerUnit(),
+                    CurveTracer.DEFAULT_TOLERANCE * this.columnStep);
+            this.countEvaluations(id, tracer.getEvaluations());
+        }
+
+        int n = trace.length / 2;
+        if (this.plotXs.length < n) {
+            this.plotXs = new double[n];
+            this.plotYs = new double[n];
+        }
+        for (int i = 0; i < n; i++) {
+            this.plotXs[i] = trace[2 * i];
+            this.plotYs[i] = trace[2 * i + 1];
+        }
+        Viewport view = this.getViewport();
+        view.toPixelXs(this.plotXs, this.plotXs, n);
+        view.toPixelYs(this.plotYs, this.plotYs, n);
+
+        if (this.plotter != null) {
+            // As in plotEquation(), match Java2D's stroke normalisation
+            for (int i = 0; i < n; i++) {
+                this.plotXs[i] += 0.5;
+                this.plotYs[i] += 0.5;
+            }
+            this.plotter.drawPolyline(this.plotXs, this.plotYs, n, g.getColor().getRGB() & 0xffffff, 2);
+            return;
+        }
+
+        Path2D.Double path = new Path2D.Double(Path2D.WIND_NON_ZERO, n);
+        boolean hasLast = false;
+        for (int i = 0; i < n; i++) {
+            double x = this.plotXs[i], y = this.plotYs[i];
+            if (Double.isNaN(x) || Double.isNaN(y)) {
+                hasLast = false;
+            } else if (hasLast) {
+                path.lineTo(x, y);
+            } else {
+                path.moveTo(x, y);
+                hasLast = true;
+            }
+        }
+        g.draw(path);
+    }
+
+    /**
+     * Searches for points where an equation meets any of the equations drawn
+     * before it, sampling every second pixel column, and adds them to the set
+     * of intersection points. The candidates found for each pair are cached,
+     * so only pairs involving an equation which has changed are searched
+     * again; the candidates are then filtered against the points found so
+     * far exactly as if every pair had been searched.
+     *
+     * @param id The index the equation is drawn with
+     * @param e The equation to test against its predecessors
+     * @param imgWidth Width of the output in pixels
+     */
+    public void findIntersections(int id, Equation e, int imgWidth) {
+        long start = System.nanoTime();
+        RenderEvents.IntersectionSearch event = new RenderEvents.IntersectionSearch();
+        event.begin();
+        int foundBefore = this.intersectionPoints.size();
+        int pairs = 0;
+
+        if (id > 0) {
+            for (int prevId = 0; prevId < id; prevId++) {
+                Equation prevEquation = equations.get(prevId);
+                if (prevEquation == null) continue;
+                if (this.checkCancelled()) break;
+                pairs++;
+
+                double[] candidates = this.cache.getIntersections(prevEquation, e, imgWidth, this.scale, this.offsetX);
+                if (candidates == null) {
+                    candidates = this.searchPair(id, e, prevId, prevEquation, imgWidth);
+                    this.cache.putIntersections(prevEquation, e, imgWidth, this.scale, this.offsetX, candidates);
+                }
+                this.addIntersections(candidates);
+            }
+        }
+
+        RenderMetrics.get().record(RenderMetrics.Stage.INTERSECTIONS, start);
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.equationId = id;
+            event.pairCount = pairs;
+            event.found = this.intersectionPoints.size() - foundBefore;
+            event.commit();
+        }
+    }
+
+    /**
+     * Finds every column, of every second one, where two equations are
+     * within a scale dependent tolerance of each other. For equations with
+     * several branches, every branch of one is compared with every branch of
+     * the other.
+     *
+     * @return Interleaved x, y graph coordinates of each candidate point,
+     *         rounded to 2 decimal places, in column order
+     */
+    private double[] searchPair(int id, Equation e, int prevId, Equation prevEquation, int imgWidth) {
+        if (e.isParametric() || prevEquation.isParametric()) {
+            return this.searchPolylines(this.polylines(e, imgWidth), this.polylines(prevEquation, imgWidth), imgWidth);
+        }
+
+        double[] curve = this.frameSamples(e, imgWidth);
+        double[] prevCurve = this.frameSamples(prevEquation, imgWidth);
+
+        // Each pair is sampled on every second column. Curves sampled for
+        // the frame are compared without evaluating.
+        int samples = (imgWidth + 1) / 2;
+        if (curve == null) this.countEvaluations(id, samples);
+        if (prevCurve == null) this.countEvaluations(prevId, samples);
+
+        // More reasonable tolerance based on scale
+        double tolerance = Math.max(0.01 / this.scale, 0.01);
+        double[] xs = this.columnXs(imgWidth);
+        double[] found = new double[16];
+        int n = 0;
+
+        int branches = e.getBranchCount(), prevBranches = prevEquation.getBranchCount();
+        for (int pixelX = 0; pixelX < imgWidth; pixelX += 2) {
+            double graphX = xs[pixelX];
+            // Unsampled curves are evaluated once per column for all branches
+            double[] ys = curve == null ? e.evaluate(graphX) : null;
+            double[] prevYs = prevCurve == null ? prevEquation.evaluate(graphX) : null;
+
+            for (int b1 = 0; b1 < branches; b1++) {
+                double y1 = ys == null ? curve[b1 * imgWidth + pixelX] : b1 < ys.length ? ys[b1] : Double.NaN;
+                if (Double.isNaN(y1)) continue;
+
+                for (int b2 = 0; b2 < prevBranches; b2++) {
+                    double y2 = prevYs == null ? prevCurve[b2 * imgWidth + pixelX]
+                            : b2 < prevYs.length ? prevYs[b2] : Double.NaN;
+
+                    if (!Double.isNaN(y2) && Math.abs(y1 - y2) < tolerance) {
+                        if (n + 2 > found.length) found = java.util.Arrays.copyOf(found, found.length * 2);
+                        found[n++] = Math.round(graphX * 100) / 100.0;
+                        found[n++] = Math.round(((y1 + y2) / 2.0) * 100) / 100.0;
+                    }
+                }
+            }
+        }
+
+        return java.util.Arrays.copyOf(found, n);
+    }
+
+    /**
+     * @return The equation as interleaved x, y graph coordinates of lines
+     *         joining its samples, with NaN pairs between separate lines:
+     *         its trace for parametric and polar curves, or each branch in
+     *         turn through every sampled column otherwise
+     */
+    private double[] polylines(Equation e, int imgWidth) {
+        if (e.isParametric()) {
+            double[] trace = this.frameTraces.get(e);
+            return trace == null ? new double[0] : trace;
+        }
+
+        double[] samples = this.frameSamples(e, imgWidth);
+        double[] xs = this.columnXs(imgWidth);
+        int columns = this.sampledColumns(imgWidth);
+        double[] lines = new double[2 * (columns + 1) * e.getBranchCount()];
+        int n = 0;
+        for (int branch = 0; branch < e.getBranchCount(); branch++) {
+            for (int pixelX = 0; pixelX < imgWidth; pixelX += this.columnStep) {
+                double y = sampleAt(e, samples, branch, imgWidth, pixelX, xs[pixelX]);
+                lines[n++] = Double.isNaN(y) ? Double.NaN : xs[pixelX];
+                lines[n++] = y;
+            }
+            lines[n++] = Double.NaN;
+            lines[n++] = Double.NaN;
+        }
+        return lines;
+    }
+
+    /**
+     * Finds every point where a segment of one polyline crosses a segment of
+     * another, within the visible range of x.
+     *
+     * @param a Interleaved x, y coordinates from polylines()
+     * @param b Interleaved x, y coordinates from polylines()
+     * @return Interleaved x, y graph coordinates of each crossing, rounded to
+     *         2 decimal places
+     */
+    private double[] searchPolylines(double[] a, double[] b, int imgWidth) {
+        double[] xs = this.columnXs(imgWidth);
+        double minX = xs[0], maxX = xs[imgWidth - 1];
+        double[] found = new double[16];
+        int n = 0;
+
+        for (int i = 0; i + 3 < a.length; i += 2) {
+            double ax0 = a[i], ay0 = a[i + 1], ax1 = a[i + 2], ay1 = a[i + 3];
+            if (Double.isNaN(ax0) || Double.isNaN(ay0) || Double.isNaN(ax1) || Double.isNaN(ay1)) continue;
+            if (Math.max(ax0, ax1) < minX || Math.min(ax0, ax1) > maxX) continue;
+
+            for (int j = 0; j + 3 < b.length; j += 2) {
+                double bx0 = b[j], by0 = b[j + 1], bx1 = b[j + 2], by1 = b[j + 3];
+                // Quick rejection on bounding boxes, which also skips NaNs
+                if (!(Math.max(bx0, bx1) >= Math.min(ax0, ax1) && Math.min(bx0, bx1) <= Math.max(ax0, ax1) &&
+                        Math.max(by0, by1) >= Math.min(ay0, ay1) && Math.min(by0, by1) <= Math.max(ay0, ay1))) {
+                    continue;
+                }
+
+                double rx = ax1 - ax0, ry = ay1 - ay0, sx = bx1 - bx0, sy = by1 - by0;
+                double denominator = rx * sy - ry * sx;
+                if (denominator == 0) continue;
+                double u = ((bx0 - ax0) * sy - (by0 - ay0) * sx) / denominator;
+                double v = ((bx0 - ax0) * ry - (by0 - ay0) * rx) / denominator;
+                if (u < 0 || u > 1 || v < 0 || v > 1) continue;
+
+                double x = ax0 + u * rx;
+                if (x < minX || x > maxX) continue;
+                if (n + 2 > found.length) found = java.util.Arrays.copyOf(found, found.length * 2);
+                found[n++] = Math.round(x * 100) / 100.0;
+                found[n++] = Math.round((ay0 + u * ry) * 100) / 100.0;
+            }
+        }
+
+        return java.util.Arrays.copyOf(found, n);
+    }
+
+    /**
+     * Adds the candidates from one pair of equations to the intersection
+     * points, skipping any too close to the last one added from the same
+     * pair or to any point already found.
+     *
+     * @param candidates Interleaved x, y graph coordinates from searchPair()
+     */
+    private void addIntersections(double[] candidates) {
+        Point2D.Double lastIntersection = null;
+        double minDistanceBetweenIntersections = 0.3;
+
+        for (int i = 0; i < candidates.length; i += 2) {
+            Point2D.Double candidate = new Point2D.Double(candidates[i], candidates[i + 1]);
+
+            // Check if this intersection is far enough from the last one
+            boolean shouldAdd = true;
+            if (lastIntersection != null) {
+                double distance = Math.sqrt(
+                    Math.pow(candidate.x - lastIntersection.x, 2) +
+                    Math.pow(candidate.y - lastIntersection.y, 2)
+                );
+                if (distance < minDistanceBetweenIntersections) {
+                    shouldAdd = false;
+                }
+            }
+
+            // Also check against existing intersection points
+            for (Point2D.Double existing : intersectionPoints) {
+                double distance = Math.sqrt(
+                    Math.pow(candidate.x - existing.x, 2) +
+                    Math.pow(candidate.y - existing.y, 2)
+                );
+                if (distance < minDistanceBetweenIntersections) {
+                    shouldAdd = false;
+                    break;
+                }
+            }
+
+            if (shouldAdd) {
+                intersectionPoints.add(candidate);
+                lastIntersection = candidate;
+            }
+        }
+    }
+
+    /**
+     * Adds evaluations of an equation to the metrics and the running total
+     * for the current frame.
+     *
+     * @param id The index the equation is drawn with
+     * @param count The number of evaluations
+     */
+    private void countEvaluations(int id, long count) {
+        RenderMetrics.get().recordEvaluations(id, count);
+        this.frameSamples += count;
+    }
+
+    /**
+     * Draws the axes, grid lines and labels, copying cached line images
+     * when drawing into an image.
+     *
+     * @param g The surface to draw onto
+     * @param imgWidth Width of the output in pixels
+     * @param imgHeight Height of the output in pixels
+     */
+    protected void drawGrid(Graphics2D g, int imgWidth, int imgHeight) {
+        Viewport view = this.getViewport();
+        if (view.width != imgWidth || view.height != imgHeight) {
+            view = new Viewport(imgWidth, imgHeight, this.scale, this.offsetX, this.offsetY);
+        }
+        this.grid.draw(g, view, this.rasterTarget);
+    }
+}
@@ -8,6 +8,8 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
 import java.io.File;
+import java.io.IOException;
+import java.util.List;
 
 /**
  * Main class of the standalone program, but can also be used in other programs.
@@ -18,8 +20,12 @@ public class GraphWindow extends JFrame implements ActionListener {
         private JMenuBar menuBar;
         private Graph graph;
         private Sidebar sidebar;
+        private AutosaveService autosave;
 
         private JMenuItem createNew, deleteAll, zoomIn, zoomOut, zoomReset, importWorkspace, saveWorkspace, saveAsSVG;
+        private JMenuItem dumpMetrics, saveBinaryWorkspace, exportAnimation, exportTable;
+        private JCheckBoxMenuItem debugOverlay;
+        private JCheckBoxMenuItem rasterCurves;
 
         /**
          * Creates a new window to display and edit equations.
@@ -41,9 +47,14 @@ public class GraphWindow extends JFrame implements ActionListener {
                 this.sidebar = new Sidebar(300, 600);
                 this.sidebar.setMinimumSize(new Dimension(200, 0));
 
+                // Expose render timings over JMX
+                RenderMetrics.registerMBean();
+
                 // Capture equation create / delete events
                 this.sidebar.addEquationListener(this.graph);
 
+                this.startAutosave();
+
                 JSplitPane split = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT,
                                 this.sidebar, this.graph);
                 split.setDividerLocation(300);
@@ -61,6 +72,28 @@ public class GraphWindow extends JFrame implements ActionListener {
                 this.setVisible(true);
         }
 
+        /**
+         * Restores the equations from the previous session, if any were
+         * autosaved, then starts saving edits in the background. Problems with
+         * the autosave directory are reported but don't stop the program.
+         */
+        private void startAutosave() {
+                this.autosave = new AutosaveService(AutosaveService.defaultDirectory());
+                try {
+                        List<Equation> recovered = this.autosave.recover();
+                        if (!recovered.isEmpty()) {
+                                this.sidebar.replaceEquations(recovered);
+                        }
+                        this.autosave.start();
+                } catch (IOException e) {
+                        System.err.println("Autosave disabled: " + e.getMessage());
+                        return;
+                }
+
+                this.sidebar.addEquationListener(this.autosave);
+                Runtime.getRuntime().addShutdownHook(new Thread(this.autosave::close));
+        }
+
         /**
          * Contains repetitive code to populate the menubar with items.
          *
@@ -127,6 +160,28 @@ public class GraphWindow extends JFrame implements ActionListener {
                                 "Resets the zoom level of the graph to the default value");
                 viewMenu.add(this.zoomReset);
 
+                viewMenu.add(new JSeparator());
+
+                this.debugOverlay = new JCheckBoxMenuItem("Debug Overlay");
+                this.debugOverlay.addActionListener(this);
+                this.debugOverlay.setAccelerator(KeyStroke.getKeyStroke(
+                                KeyEvent.VK_D, KeyEvent.CTRL_DOWN_MASK | KeyEvent.SHIFT_DOWN_MASK));
+                this.debugOverlay.getAccessibleContext().setAccessibleDescription(
+                                "Shows render pipeline timings on top of the graph");
+                viewMenu.add(this.debugOverlay);
+
+                this.rasterCurves = new JCheckBoxMenuItem("Fast Curve Drawing");
+                this.rasterCurves.addActionListener(this);
+                this.rasterCurves.getAccessibleContext().setAccessibleDescription(
+                                "Draws curves directly into the image rather than with Java2D");
+                viewMenu.add(this.rasterCurves);
+
+                this.dumpMetrics = new JMenuItem("Dump Metrics...");
+                this.dumpMetrics.addActionListener(this);
+                this.dumpMetrics.getAccessibleContext().setAccessibleDescription(
+                                "Writes the collected render metrics to a text file");
+                viewMenu.add(this.dumpMetrics);
+
                 /*
                  * File menu
                  */
@@ -153,6 +208,12 @@ public class GraphWindow extends JFrame implements ActionListener {
                                 "Save the current workspace to a file");
                 fileMenu.add(saveWorkspace);
 
+                this.saveBinaryWorkspace = new JMenuItem("Save Binary Workspace...");
+                this.saveBinaryWorkspace.addActionListener(this);
+                this.saveBinaryWorkspace.getAccessibleContext().setAccessibleDescription(
+                                "Save the workspace, viewport and compiled equations to a binary file");
+                fileMenu.add(this.saveBinaryWorkspace);
+
                 this.saveAsSVG = new JMenuItem("Save as SVG");
                 saveAsSVG.addActionListener(this);
                 saveAsSVG.setAccelerator(KeyStroke.getKeyStroke(
@@ -161,6 +222,18 @@ public class GraphWindow extends JFrame implements ActionListener {
                                 "Export the current graph as an SVG file");
                 fileMenu.add(saveAsSVG);
 
+                this.exportAnimation = new JMenuItem("Export Animation...");
+                this.exportAnimation.addActionListener(this);
+                this.exportAnimation.getAccessibleContext().setAccessibleDescription(
+                                "Export a sweep of a parameter as an animated GIF");
+                fileMenu.add(this.exportAnimation);
+
+                this.exportTable = new JMenuItem("Export Table of Values...");
+                this.exportTable.addActionListener(this);
+                this.exportTable.getAccessibleContext().setAccessibleDescription(
+                                "Export the value of every equation across the visible range of x");
+                fileMenu.add(this.exportTable);
+
         }
 
         /**
@@ -196,10 +269,96 @@ public class GraphWindow extends JFrame implements ActionListener {
                         else{
                                 System.err.println("Denied permissions to save file");
                         }
+                } else if (source.equals(this.exportAnimation)) {
+                        this.exportAnimation();
+                } else if (source.equals(this.exportTable)) {
+                        this.exportTable();
                 } else if (source.equals(this.importWorkspace)) {
-                        this.sidebar.loadWorkspace();
+                        BinaryWorkspace workspace = this.sidebar.loadWorkspace();
+                        if (workspace != null) this.graph.applyWorkspace(workspace);
+                } else if (source.equals(this.saveBinaryWorkspace)) {
+                        JFileChooser fileChooser = new JFileChooser();
+                        fileChooser.setSelectedFile(new File("workspace.gcw"));
+                        if (fileChooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
+                                this.graph.saveBinaryWorkspace(fileChooser.getSelectedFile());
+                        }
+                } else if (source.equals(this.debugOverlay)) {
+                        this.graph.setDebugOverlay(this.debugOverlay.isSelected());
+                } else if (source.equals(this.rasterCurves)) {
+                        this.graph.setRasterCurves(this.rasterCurves.isSelected());
+                } else if (source.equals(this.dumpMetrics)) {
+                        JFileChooser fileChooser = new JFileChooser();
+                        fileChooser.setSelectedFile(new File("metrics.txt"));
+                        if (fileChooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
+                                try {
+                                        RenderMetrics.get().dumpToFile(fileChooser.getSelectedFile().getPath());
+                                } catch (IOException e) {
+                                        JOptionPane.showMessageDialog(this,
+                                                        "Error writing metrics: " + e.getMessage(),
+                                                        "Dump Error",
+                                                        JOptionPane.ERROR_MESSAGE);
+                                }
+                        }
+                }
+
+        }
+
+        /**
+         * Asks which parameter to sweep and where to save, then exports the
+         * animation in the background.
+         */
+        private void exportAnimation() {
+                java.util.TreeSet<String> parameters = new java.util.TreeSet<>();
+                for (Equation e : this.sidebar.getAllEquations()) {
+                        parameters.addAll(e.getParameters());
+                }
+                if (parameters.isEmpty()) {
+                        JOptionPane.showMessageDialog(this,
+                                        "No equation uses a parameter to animate",
+                                        "Export Animation",
+                                        JOptionPane.INFORMATION_MESSAGE);
+                        return;
                 }
 
+                Object parameter = JOptionPane.showInputDialog(this,
+                                "Parameter to sweep:", "Export Animation",
+                                JOptionPane.QUESTION_MESSAGE, null,
+                                parameters.toArray(), parameters.first());
+                if (parameter == null) return;
+
+                JFileChooser fileChooser = new JFileChooser();
+                fileChooser.setSelectedFile(new File("animation.gif"));
+                if (fileChooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
+                        this.graph.exportAnimation(fileChooser.getSelectedFile(), (String) parameter, 100);
+                }
+        }
+
+        /**
+         * Asks for the step between x values and where to save, then exports
+         * the table in the background.
+         */
+        private void exportTable() {
+                String step = JOptionPane.showInputDialog(this,
+                                "Step between x values:", "0.001");
+                if (step == null) return;
+
+                double parsed;
+                try {
+                        parsed = Double.parseDouble(step);
+                        if (!(parsed > 0)) throw new NumberFormatException();
+                } catch (NumberFormatException e) {
+                        JOptionPane.showMessageDialog(this,
+                                        "Step must be a number more than 0",
+                                        "Export Error",
+                                        JOptionPane.ERROR_MESSAGE);
+                        return;
+                }
+
+                JFileChooser fileChooser = new JFileChooser();
+                fileChooser.setSelectedFile(new File("table.csv"));
+                if (fileChooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
+                        this.graph.exportTable(fileChooser.getSelectedFile(), parsed);
+                }
         }
 
         /**
@@ -0,0 +1,173 @@
+package org.gcalc;
+
+import java.awt.*;
+import java.awt.geom.Line2D;
+import java.awt.image.BufferedImage;
+
+/**
+ * Draws the axes, grid lines and their labels. The spacing between grid lines
+ * is picked from the 1, 2, 5, 10, 20... series so that lines are never closer
+ * than MIN_LINE_PIXELS apart, however far the graph is zoomed out, and the
+ * number of lines is capped.
+ *
+ * Every vertical grid line looks the same apart from its x position, and
+ * every horizontal one apart from its y position, so when drawing into an
+ * image a single dashed line of each direction is rendered once into a
+ * small strip image and then copied into place for each line. The strips only
+ * depend on the output size and scale, so panning reuses them. Vector output
+ * such as SVG draws the lines directly instead.
+ */
+public class Grid {
+    /** Smallest distance between grid lines, in pixels */
+    public static final int MIN_LINE_PIXELS = 40;
+    /** Most grid lines drawn in each direction */
+    public static final int MAX_LINES = 500;
+
+    private static final Color COLOUR = new Color(48, 48, 48);
+
+    // Pixels either side of a strip's line, for antialiasing
+    private static final int STRIP_MARGIN = 1;
+
+    private BufferedImage verticalStrip, horizontalStrip;
+    private double verticalScale, horizontalScale;
+
+    /**
+     * Picks the spacing between grid lines for a viewport.
+     *
+     * @param pixelsPerUnit Pixels per graph unit
+     * @param extentPixels Width or height of the output in pixels
+     * @return The smallest of 1, 2 or 5 times a power of ten which puts lines
+     *         at least MIN_LINE_PIXELS apart, and no more than MAX_LINES
+     *         across the output
+     */
+    public static double spacing(double pixelsPerUnit, int extentPixels) {
+        double minUnits = Math.max(MIN_LINE_PIXELS, (double) extentPixels / MAX_LINES) / pixelsPerUnit;
+        double power = Math.pow(10, Math.floor(Math.log10(minUnits)));
+        for (int m : new int[]{1, 2, 5, 10}) {
+            if (m * power >= minUnits) return m * power;
+        }
+        return 10 * power;
+    }
+
+    /**
+     * Formats the label of a grid line, with as many decimal places as the
+     * spacing needs.
+     *
+     * @param value Graph coordinate of the line
+     * @param spacing Distance between lines
+     * @return The label text
+     */
+    public static String label(double value, double spacing) {
+        if (spacing >= 1) return Long.toString(Math.round(value));
+        int decimals = (int) Math.ceil(-Math.log10(spacing) - 1e-9);
+        return String.format("%." + decimals + "f", value);
+    }
+
+    /**
+     * Draws the axes and grid.
+     *
+     * @param g The surface to draw onto
+     * @param view The viewport being drawn
+     * @param useStrips Whether to copy cached line images rather than draw
+     *                  each line, which only suits raster surfaces
+     */
+    public void draw(Graphics2D g, Viewport view, boolean useStrips) {
+        int imgWidth = view.width, imgHeight = view.height;
+        g.setColor(COLOUR);
+
+        int centerX = imgWidth / 2;
+        int centerY = imgHeight / 2;
+
+        g.setStroke(new BasicStroke(2));
+        // Axes (adjusted for offset)
+        int axisX = (int) (centerX - view.offsetX * GraphRenderer.normInterval * view.scale);
+        int axisY = (int) (centerY + view.offsetY * GraphRenderer.normInterval * view.scale);
+        g.draw(new Line2D.Double(0, axisY, imgWidth, axisY)); // X axis
+        g.draw(new Line2D.Double(axisX, 0, axisX, imgHeight)); // Y axis
+
+        // Grid lines
+        Stroke dashed = dashedStroke(view.scale);
+        g.setStroke(dashed);
+        if (useStrips) {
+            this.prepareStrips(g, view, dashed);
+        }
+
+        double graphXMin = view.toGraphX(0);
+        double graphXMax = view.toGraphX(imgWidth);
+        double graphYMin = view.toGraphY(imgHeight);
+        double graphYMax = view.toGraphY(0);
+
+        // Draw vertical grid lines
+        double xSpacing = spacing(view.getPixelsPerUnit(), imgWidth);
+        Line2D.Double line = new Line2D.Double();
+        for (long i = (long) Math.floor(graphXMin / xSpacing); i <= (long) Math.ceil(graphXMax / xSpacing); i++) {
+            double value = i * xSpacing;
+            int x = view.toPixelX(value);
+            if (useStrips) {
+                g.drawImage(this.verticalStrip, x - STRIP_MARGIN, 0, null);
+            } else {
+                line.setLine(x, 0, x, imgHeight);
+                g.draw(line);
+            }
+            if (i != 0) // skip 0 label on X-axis
+                g.drawString(label(value, xSpacing), x + 2, axisY + 14);
+        }
+
+        // Draw horizontal grid lines
+        double ySpacing = spacing(view.getPixelsPerUnit(), imgHeight);
+        for (long j = (long) Math.floor(graphYMin / ySpacing); j <= (long) Math.ceil(graphYMax / ySpacing); j++) {
+            double value = j * ySpacing;
+            int y = view.toPixelY(value);
+            if (useStrips) {
+                g.drawImage(this.horizontalStrip, 0, y - STRIP_MARGIN, null);
+            } else {
+                line.setLine(0, y, imgWidth, y);
+                g.draw(line);
+            }
+            if (j != 0) // skip 0 label on Y-axis
+                g.drawString(label(value, ySpacing), axisX + 2, y + 14);
+        }
+    }
+
+    /**
+     * @return The stroke for grid lines, with dashes that shrink as the graph
+     *         is zoomed out, but never below a pixel or two
+     */
+    private static Stroke dashedStroke(double scale) {
+        float[] dashPattern = new float[]{Math.max(2, 10 * (float) scale), Math.max(1, 5 * (float) scale)};
+        return new BasicStroke(1, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER, 10, dashPattern, 0);
+    }
+
+    /**
+     * Renders the vertical and horizontal line strips, unless the ones from
+     * the last frame are still right for this size and scale.
+     */
+    private void prepareStrips(Graphics2D g, Viewport view, Stroke dashed) {
+        if (this.verticalStrip == null || this.verticalStrip.getHeight() != view.height ||
+                this.verticalScale != view.scale) {
+            this.verticalStrip = new BufferedImage(2 * STRIP_MARGIN + 1, Math.max(1, view.height),
+                    BufferedImage.TYPE_INT_ARGB);
+            this.drawStripLine(g, this.verticalStrip, dashed,
+                    new Line2D.Double(STRIP_MARGIN, 0, STRIP_MARGIN, view.height));
+            this.verticalScale = view.scale;
+        }
+
+        if (this.horizontalStrip == null || this.horizontalStrip.getWidth() != view.width ||
+                this.horizontalScale != view.scale) {
+            this.horizontalStrip = new BufferedImage(Math.max(1, view.width), 2 * STRIP_MARGIN + 1,
+                    BufferedImage.TYPE_INT_ARGB);
+            this.drawStripLine(g, this.horizontalStrip, dashed,
+                    new Line2D.Double(0, STRIP_MARGIN, view.width, STRIP_MARGIN));
+            this.horizontalScale = view.scale;
+        }
+    }
+
+    private void drawStripLine(Graphics2D target, BufferedImage strip, Stroke dashed, Line2D line) {
+        Graphics2D sg = strip.createGraphics();
+        sg.setRenderingHints(target.getRenderingHints());
+        sg.setColor(COLOUR);
+        sg.setStroke(dashed);
+        sg.draw(line);
+        sg.dispose();
+    }
+}
@@ -0,0 +1,80 @@
+package org.gcalc;
+
+/**
+ * For internal use by Equation.Expression. Don't use this manually.
+ *
+ * Acts as a structure which stores the type of the instruction, as well as any
+ * optional operands. Due to the use of a stack machine approach to evaluating
+ * instructions, most instructions do not have any operands.
+ */
+class Instruction {
+    /**
+     * All supported operation types. Binary workspaces store these by
+     * ordinal, so new types must only ever be added to the end.
+     */
+    public enum InstType {
+        // No args
+        ADD, SUB, MUL, DIV, FACT, PLUSMINUS,
+        // Takes a string naming a math function to execute (e.g. "sin")
+        NATIVEFUNC,
+        // Takes an Expression instance, which is evaluated, and the result pushed
+        EXPR,
+        // Takes a Double to push onto the operand stack
+        PUSH,
+        // Takes a string naming a variable which will be supplied at eval time
+        PUSHVAR,
+        // Only used in compiled programs. Take an Integer temporary slot
+        // number, and load from or copy the top of the stack into that slot
+        LOAD, STORE,
+        // Only used in compiled programs. Takes an Integer parameter slot, and
+        // pushes the parameter's current value
+        PARAM
+    }
+
+    /**
+     * The type of instruction (i.e. what it will do)
+     */
+    public InstType instruction;
+
+    /**
+     * An optional argument, or null
+     */
+    public Object arg;
+
+    /**
+     * Creates a new instruction definition. Many instructions do not need an
+     * argument, in which case, arg should be null. Others will take instruction-
+     * specific arguments.
+     *
+     * @param instruction The instruction to represent
+     * @param arg An optional argument for the ex
+     */
+    public Instruction(InstType instruction, Object arg) {
+        this.instruction = instruction;
+        this.arg = arg;
+    }
+
+    /**
+     * Creates an Instruction from one of +,-,±,/,*,^
+     *
+     * @param op A char representing the operator to create
+     */
+    public static Instruction fromOperator(char op) {
+        switch(op) {
+            case '+':
+                return new Instruction(InstType.ADD, null);
+            case '-':
+                return new Instruction(InstType.SUB, null);
+            case '/':
+                return new Instruction(InstType.DIV, null);
+            case '*':
+                return new Instruction(InstType.MUL, null);
+            case '^':
+                return new Instruction(InstType.NATIVEFUNC, "POW");
+            case '±':
+                return new Instruction(InstType.PLUSMINUS, null);
+            default:
+                return null;
+        }
+    }
+}
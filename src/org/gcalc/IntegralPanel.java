@@ -0,0 +1,233 @@
+package org.gcalc;
+
+import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Shows the definite integral of an equation between two bounds, below its
+ * editor. The integral is worked out in the background whenever the
+ * equation, the bounds or a parameter it uses change, and the previous
+ * calculation is cancelled.
+ *
+ * Bounds can be any expression without x, such as 2*3.14159 or a
+ * parameter.
+ */
+public class IntegralPanel extends JPanel implements DocumentListener, Parameters.Listener {
+    private final EquationEditor editor;
+    private JTextField fromField, toField;
+    private JLabel result;
+    private Color fieldNormalColor;
+
+    private Equation equation;
+    private double from = Double.NaN, to = Double.NaN;
+    // Parameters used by either bound
+    private List<String> boundParameters = new ArrayList<>();
+    private Integrator integrator;
+
+    /**
+     * @param editor The editor of the equation to integrate, which is told
+     *               when the bounds change
+     */
+    public IntegralPanel(EquationEditor editor) {
+        this.editor = editor;
+        this.setLayout(new BoxLayout(this, BoxLayout.PAGE_AXIS));
+        // Shows the editor's background, which alternates down the sidebar
+        this.setOpaque(false);
+
+        JPanel boundsRow = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        boundsRow.setOpaque(false);
+        boundsRow.add(new JLabel("∫ from"));
+        this.fromField = new JTextField("0", 5);
+        boundsRow.add(this.fromField);
+        boundsRow.add(new JLabel("to"));
+        this.toField = new JTextField("1", 5);
+        boundsRow.add(this.toField);
+        this.add(boundsRow);
+
+        JPanel resultRow = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        resultRow.setOpaque(false);
+        this.result = new JLabel(" ");
+        this.result.setFont(new Font("monospaced", Font.PLAIN, 12));
+        resultRow.add(this.result);
+        this.add(resultRow);
+
+        this.fieldNormalColor = this.fromField.getBackground();
+        this.fromField.getDocument().addDocumentListener(this);
+        this.toField.getDocument().addDocumentListener(this);
+    }
+
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        Parameters.get().addListener(this);
+    }
+
+    @Override
+    public void removeNotify() {
+        super.removeNotify();
+        Parameters.get().removeListener(this);
+        this.cancel();
+    }
+
+    /**
+     * Integrates a different equation, such as after it has been edited.
+     *
+     * @param equation The new equation
+     */
+    public void setEquation(Equation equation) {
+        this.equation = equation;
+        if (this.isVisible()) this.update();
+    }
+
+    /**
+     * @return The start of the range, or NaN if it isn't valid
+     */
+    public double getFrom() {
+        return this.from;
+    }
+
+    /**
+     * @return The end of the range, or NaN if it isn't valid
+     */
+    public double getTo() {
+        return this.to;
+    }
+
+    public void insertUpdate(DocumentEvent e) { this.update(); }
+    public void removeUpdate(DocumentEvent e) { this.update(); }
+    public void changedUpdate(DocumentEvent e) { this.update(); }
+
+    @Override
+    public void parameterChanged(String name, double value) {
+        if (!this.isVisible()) return;
+        if (this.boundParameters.contains(name)) {
+            this.update();
+        } else if (this.equation != null && this.equation.usesParameter(name)) {
+            this.integrate();
+        }
+    }
+
+    /**
+     * Reads the bounds, tells the editor about them, and integrates again.
+     */
+    public void update() {
+        this.boundParameters = new ArrayList<>();
+        this.from = parseBound(this.fromField, this.boundParameters);
+        this.to = parseBound(this.toField, this.boundParameters);
+        this.fromField.setBackground(Double.isNaN(this.from) ? new Color(228, 48, 0) : this.fieldNormalColor);
+        this.toField.setBackground(Double.isNaN(this.to) ? new Color(228, 48, 0) : this.fieldNormalColor);
+
+        this.editor.integralChanged(this.from, this.to);
+        this.integrate();
+    }
+
+    /**
+     * Stops any calculation in progress.
+     */
+    public void cancel() {
+        if (this.integrator != null) this.integrator.cancel();
+        this.integrator = null;
+    }
+
+    /**
+     * Starts working out the integral in the background, replacing any
+     * calculation still in progress.
+     */
+    private void integrate() {
+        this.cancel();
+        if (this.equation == null || this.equation.isEmpty) {
+            this.result.setText(" ");
+            return;
+        }
+        if (this.equation.isParametric()) {
+            this.result.setText("Only functions of x can be integrated");
+            return;
+        }
+        if (Double.isNaN(this.from) || Double.isNaN(this.to)) {
+            this.result.setText("Bounds must be numbers");
+            return;
+        }
+
+        Integrator integrator = new Integrator(this.equation, this.from, this.to);
+        this.integrator = integrator;
+        this.result.setText("Integrating...");
+
+        new SwingWorker<Integrator.Result, Void>() {
+            @Override
+            protected Integrator.Result doInBackground() {
+                return integrator.integrate();
+            }
+
+            @Override
+            protected void done() {
+                // A newer calculation has started since
+                if (IntegralPanel.this.integrator != integrator) return;
+                IntegralPanel.this.integrator = null;
+                try {
+                    IntegralPanel.this.showResult(this.get());
+                } catch (InterruptedException | ExecutionException e) {
+                    IntegralPanel.this.result.setText("Unable to integrate");
+                    System.err.println("Error integrating " + IntegralPanel.this.equation + ": " + e.getCause());
+                }
+            }
+        }.execute();
+    }
+
+    private void showResult(Integrator.Result r) {
+        if (r == null) return;
+
+        // Divergent branches have no value worth showing
+        StringBuilder values = new StringBuilder(), areas = new StringBuilder();
+        boolean allDivergent = true;
+        for (int i = 0; i < r.values.length; i++) {
+            if (i > 0) {
+                values.append("; ");
+                areas.append("; ");
+            }
+            if (r.divergent[i]) {
+                values.append("diverges");
+                areas.append("diverges");
+            } else {
+                values.append(String.format("%.6g", r.values[i]));
+                areas.append(String.format("%.6g", r.areas[i]));
+                allDivergent = false;
+            }
+        }
+
+        String text;
+        if (allDivergent) {
+            text = "Diverges";
+        } else {
+            text = (r.converged ? "= " : "≈ ") + values +
+                    String.format(" ± %.1e, area %s", r.getMaxError(), areas);
+        }
+        this.result.setText(text);
+
+        String note = r.isDivergent() ? "diverges, or is too close to diverging to work out"
+                : r.budgetReached ? "evaluation budget reached"
+                : !r.converged ? "error larger than requested" : "converged";
+        this.result.setToolTipText(String.format("%s, %d evaluations%s", note, r.evaluations,
+                r.undefined ? ", curve undefined in places" : ""));
+    }
+
+    /**
+     * @param parameters Receives the parameters the bound uses
+     * @return The value of the bound's expression, or NaN if it isn't valid
+     */
+    private static double parseBound(JTextField field, List<String> parameters) {
+        try {
+            Equation.Expression bound = new Equation.Expression(field.getText());
+            Parameters.collect(bound, parameters);
+            double value = bound.evaluate(new HashMap<>())[0];
+            return Double.isInfinite(value) ? Double.NaN : value;
+        } catch (Exception e) {
+            return Double.NaN;
+        }
+    }
+}
@@ -0,0 +1,352 @@
+package org.gcalc;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Works out the definite integral of an equation over a range of x, by
+ * adaptive Gauss-Kronrod quadrature. Each part of the range is estimated with
+ * the 15 point Kronrod rule, and the difference from the 7 point Gauss rule
+ * using the same samples is taken as its error. Parts with too much error are
+ * halved, and the halves worked out in parallel on the common ForkJoinPool.
+ *
+ * Equations with ± are integrated along every branch at once, from the same
+ * samples. Samples where a branch doesn't exist count as zero. The area
+ * between the curve and the x axis, the integral of |y|, is worked out
+ * alongside.
+ *
+ * Parts which never settle are only halved so far. If the narrowest parts
+ * still hold a good share of the area, as around the pole of 1/x, the
+ * integral is marked as divergent rather than given a meaningless value.
+ * Halving also stops once a budget of evaluations has been spent, so an
+ * integral always finishes quickly; the result is then marked as not
+ * converged.
+ */
+public class Integrator {
+    /** Most evaluations of the equation for one integral */
+    public static final long DEFAULT_BUDGET = 500000;
+    /** Largest acceptable error, relative to the area of each part */
+    public static final double DEFAULT_TOLERANCE = 1e-10;
+
+    // The range is always halved this many times, so that narrow features
+    // between the first samples are less likely to be missed
+    private static final int MIN_DEPTH = 3;
+    // Parts are never narrower than the range / 2^MAX_DEPTH
+    private static final int MAX_DEPTH = 50;
+    // A part still inaccurate at MAX_DEPTH is taken to diverge if its area
+    // is more than this fraction of the area of the part it was halved from
+    // at MIN_DEPTH. Near a pole the area of ever narrower parts stays about
+    // the same, but near an integrable singularity like 1/sqrt(x) it shrinks
+    // with the width, here to around 2^-24.
+    private static final double DIVERGENCE_RATIO = 1e-3;
+
+    // Kronrod nodes on [0, 1], outermost first. Odd indices are also the
+    // Gauss nodes, and the last is the centre.
+    private static final double[] XK = {
+        0.991455371120812639206854697526329, 0.949107912342758524526189684047851,
+        0.864864423359769072789712788640926, 0.741531185599394439863864773280788,
+        0.586087235467691130294144845693013, 0.405845151377397166906606412076961,
+        0.207784955007898467600689403773245, 0.000000000000000000000000000000000
+    };
+    private static final double[] WK = {
+        0.022935322010529224963732008058970, 0.063092092629978553290700663189204,
+        0.104790010322250183839876322541518, 0.140653259715525918745189590510238,
+        0.169004726639267902826583426598550, 0.190350578064785409913256402421014,
+        0.204432940075298892414161999234649, 0.209482141084727828012999174891714
+    };
+    // Gauss weights for XK[1], XK[3], XK[5] and the centre
+    private static final double[] WG = {
+        0.129484966168869693270611432679082, 0.279705391489276667901467771423780,
+        0.381830050505118944950369775488975, 0.417959183673469387755102040816327
+    };
+    private static final int RULE_POINTS = 15;
+
+    private final Equation.Expression expression;
+    private final int branches;
+    private final double from, to;
+    private final Parameters parameters;
+    private long budget = DEFAULT_BUDGET;
+    private double tolerance = DEFAULT_TOLERANCE;
+
+    private final AtomicLong evaluations = new AtomicLong();
+    private volatile boolean cancelled = false;
+    private volatile boolean budgetReached = false;
+    private volatile boolean undefined = false;
+
+    /**
+     * The integral of each branch, with its error estimate.
+     */
+    public static class Result {
+        /** Integral of each branch from the start of the range to the end */
+        public final double[] values;
+        /** Estimated absolute error of each value */
+        public final double[] errors;
+        /** Area between each branch and the x axis */
+        public final double[] areas;
+        /**
+         * Whether each branch's integral diverges, or at least couldn't be
+         * worked out, in which case its value, error and area are meaningless
+         */
+        public final boolean[] divergent;
+        /** Whether every part of the range met the tolerance */
+        public final boolean converged;
+        /** Whether halving stopped because the budget ran out */
+        public final boolean budgetReached;
+        /** Whether a branch didn't exist somewhere in the range */
+        public final boolean undefined;
+        public final long evaluations;
+
+        Result(double[] values, double[] errors, double[] areas, boolean[] divergent,
+               boolean converged, boolean budgetReached, boolean undefined, long evaluations) {
+            this.values = values;
+            this.errors = errors;
+            this.areas = areas;
+            this.divergent = divergent;
+            this.converged = converged;
+            this.budgetReached = budgetReached;
+            this.undefined = undefined;
+            this.evaluations = evaluations;
+        }
+
+        /**
+         * @return The largest error estimate of any branch which doesn't
+         *         diverge
+         */
+        public double getMaxError() {
+            double max = 0;
+            for (int i = 0; i < this.errors.length; i++) {
+                if (!this.divergent[i]) max = Math.max(max, this.errors[i]);
+            }
+            return max;
+        }
+
+        /**
+         * @return Whether any branch diverges
+         */
+        public boolean isDivergent() {
+            for (boolean d : this.divergent) {
+                if (d) return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Prepares to integrate an equation. Parameters keep the values they have
+     * now, even if they change while the integral is worked out.
+     *
+     * @param equation The equation, which must be a function of x
+     * @param from Start of the range
+     * @param to End of the range, which may be before the start
+     */
+    public Integrator(Equation equation, double from, double to) {
+        if (equation.isEmpty || equation.isParametric() || equation.getRightHandSide() == null)
+            throw new IllegalArgumentException("Only functions of x can be integrated");
+        if (Double.isNaN(from) || Double.isNaN(to) || Double.isInfinite(from) || Double.isInfinite(to))
+            throw new IllegalArgumentException("Integral bounds must be finite");
+
+        this.expression = equation.getRightHandSide();
+        this.branches = equation.getBranchCount();
+        this.from = from;
+        this.to = to;
+        this.parameters = Parameters.get().copy();
+    }
+
+    /**
+     * @param budget Most evaluations of the equation to spend
+     */
+    public void setBudget(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * @param tolerance Largest acceptable error, relative to the area of each
+     *                  part of the range
+     */
+    public void setTolerance(double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Stops halving parts of the range, so that integrate() returns soon.
+     */
+    public void cancel() {
+        this.cancelled = true;
+    }
+
+    /**
+     * Works out the integral, blocking until it is done.
+     *
+     * @return The result, or null if cancelled
+     */
+    public Result integrate() {
+        double a = Math.min(this.from, this.to), b = Math.max(this.from, this.to);
+        Sum sum = a == b ? new Sum(this.branches) : ForkJoinPool.commonPool().invoke(new Part(a, b, 0, null));
+        if (this.cancelled) return null;
+
+        for (int i = 0; i < this.branches; i++) {
+            // Integrating backwards flips the sign, but not the area
+            if (this.from > this.to) sum.values[i] = -sum.values[i];
+            // Infinite samples leave infinite or NaN totals
+            if (Double.isNaN(sum.values[i]) || Double.isInfinite(sum.values[i])) sum.divergent[i] = true;
+        }
+        return new Result(sum.values, sum.errors, sum.areas, sum.divergent, sum.converged,
+                this.budgetReached, this.undefined, this.evaluations.get());
+    }
+
+    /**
+     * Running totals for a part of the range.
+     */
+    private static class Sum {
+        final double[] values, errors, areas;
+        final boolean[] divergent;
+        boolean converged = true;
+
+        Sum(int branches) {
+            this.values = new double[branches];
+            this.errors = new double[branches];
+            this.areas = new double[branches];
+            this.divergent = new boolean[branches];
+        }
+
+        Sum add(Sum other) {
+            for (int i = 0; i < this.values.length; i++) {
+                this.values[i] += other.values[i];
+                this.errors[i] += other.errors[i];
+                this.areas[i] += other.areas[i];
+                this.divergent[i] |= other.divergent[i];
+            }
+            this.converged &= other.converged;
+            return this;
+        }
+    }
+
+    /**
+     * Integrates part of the range, halving it until the error is small
+     * enough.
+     */
+    private class Part extends RecursiveTask<Sum> {
+        private final double a, b;
+        private final int depth;
+        // Area of each branch in the enclosing part at MIN_DEPTH, or null
+        // above it
+        private final double[] startAreas;
+
+        Part(double a, double b, int depth, double[] startAreas) {
+            this.a = a;
+            this.b = b;
+            this.depth = depth;
+            this.startAreas = startAreas;
+        }
+
+        @Override
+        protected Sum compute() {
+            Integrator it = Integrator.this;
+            if (it.cancelled) {
+                Sum empty = new Sum(it.branches);
+                empty.converged = false;
+                return empty;
+            }
+
+            double[] startAreas = this.startAreas;
+            if (this.depth >= MIN_DEPTH) {
+                Sum sum = it.rule(this.a, this.b);
+                if (it.accepted(sum, this.b - this.a)) return sum;
+                if (this.depth == MIN_DEPTH) startAreas = sum.areas;
+                if (this.depth >= MAX_DEPTH) {
+                    sum.converged = false;
+                    for (int i = 0; i < it.branches; i++) {
+                        if (sum.areas[i] > DIVERGENCE_RATIO * startAreas[i]) sum.divergent[i] = true;
+                    }
+                    return sum;
+                }
+                if (it.evaluations.get() + 2 * RULE_POINTS > it.budget) {
+                    it.budgetReached = true;
+                    sum.converged = false;
+                    return sum;
+                }
+            }
+
+            double mid = (this.a + this.b) / 2;
+            Part left = new Part(this.a, mid, this.depth + 1, startAreas);
+            left.fork();
+            Sum right = new Part(mid, this.b, this.depth + 1, startAreas).compute();
+            return left.join().add(right);
+        }
+    }
+
+    /**
+     * @return Whether every branch of a part is accurate enough
+     */
+    private boolean accepted(Sum sum, double width) {
+        double total = Math.abs(this.to - this.from);
+        for (int i = 0; i < this.branches; i++) {
+            // NaN errors, from infinite samples, are never accepted
+            double allowed = Math.max(this.tolerance * width / total, this.tolerance * sum.areas[i]);
+            if (!(sum.errors[i] <= allowed)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Applies the 15 point Kronrod and 7 point Gauss rules to [a, b].
+     */
+    private Sum rule(double a, double b) {
+        double centre = (a + b) / 2, half = (b - a) / 2;
+        double[] kronrod = new double[this.branches];
+        double[] gauss = new double[this.branches];
+        double[] abs = new double[this.branches];
+        HashMap<String, Double> vars = new HashMap<>();
+
+        // Common pool threads are shared, and the part may be running on the
+        // caller's own thread, so whatever values it had are put back after
+        Parameters previous = Parameters.setThreadValues(this.parameters);
+        try {
+            double[] fc = this.sample(vars, centre);
+            for (int i = 0; i < this.branches; i++) {
+                kronrod[i] = WK[7] * fc[i];
+                gauss[i] = WG[3] * fc[i];
+                abs[i] = WK[7] * Math.abs(fc[i]);
+            }
+            for (int j = 0; j < 7; j++) {
+                double dx = half * XK[j];
+                double[] f1 = this.sample(vars, centre - dx), f2 = this.sample(vars, centre + dx);
+                for (int i = 0; i < this.branches; i++) {
+                    kronrod[i] += WK[j] * (f1[i] + f2[i]);
+                    if (j % 2 == 1) gauss[i] += WG[j / 2] * (f1[i] + f2[i]);
+                    abs[i] += WK[j] * (Math.abs(f1[i]) + Math.abs(f2[i]));
+                }
+            }
+        } finally {
+            Parameters.setThreadValues(previous);
+        }
+        this.evaluations.addAndGet(RULE_POINTS);
+
+        Sum sum = new Sum(this.branches);
+        for (int i = 0; i < this.branches; i++) {
+            sum.values[i] = kronrod[i] * half;
+            sum.errors[i] = Math.abs(kronrod[i] - gauss[i]) * half;
+            sum.areas[i] = abs[i] * half;
+        }
+        return sum;
+    }
+
+    /**
+     * @return Every branch of the equation at x, with missing roots as 0
+     */
+    private double[] sample(HashMap<String, Double> vars, double x) {
+        vars.put("x", x);
+        double[] ys = this.expression.evaluate(vars);
+        if (ys.length != this.branches) ys = Arrays.copyOf(ys, this.branches);
+        for (int i = 0; i < ys.length; i++) {
+            if (Double.isNaN(ys[i])) {
+                ys[i] = 0;
+                this.undefined = true;
+            }
+        }
+        return ys;
+    }
+}
@@ -0,0 +1,123 @@
+package org.gcalc;
+
+import javax.swing.*;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+/**
+ * A slider controlling the value of one parameter, shown in the Sidebar for
+ * each parameter the equations use. Moving the slider sets the parameter,
+ * which redraws just the equations using it.
+ *
+ * Animating sweeps the value back and forth between the ends of the slider,
+ * once per display refresh. Each step is based on the time since the
+ * animation started rather than counting ticks, so slow frames make the
+ * animation less smooth but not slower.
+ */
+public class ParameterSlider extends JPanel implements ChangeListener, ActionListener {
+    public static final double MIN = -10, MAX = 10;
+    // Slider positions per unit of the parameter
+    private static final int STEPS_PER_UNIT = 100;
+    // Time taken to sweep from one end to the other
+    private static final double SWEEP_SECONDS = 4;
+
+    private final String name;
+    private JLabel label;
+    private JSlider slider;
+    private JToggleButton animateBtn;
+
+    private Timer animation;
+    private long animationStart, lastTick;
+    private long intervalNanos;
+    private double startValue;
+
+    /**
+     * @param name The parameter to control
+     */
+    public ParameterSlider(String name) {
+        this.name = name;
+        this.setLayout(new BorderLayout());
+
+        this.label = new JLabel();
+        this.label.setFont(new Font("monospaced", Font.PLAIN, 14));
+        this.label.setPreferredSize(new Dimension(90, 20));
+        this.add(this.label, BorderLayout.WEST);
+
+        this.slider = new JSlider((int) (MIN * STEPS_PER_UNIT), (int) (MAX * STEPS_PER_UNIT),
+                (int) Math.round(Parameters.get().value(name) * STEPS_PER_UNIT));
+        this.slider.addChangeListener(this);
+        this.add(this.slider, BorderLayout.CENTER);
+
+        this.animateBtn = new JToggleButton("Animate");
+        this.animateBtn.addActionListener(this);
+        this.add(this.animateBtn, BorderLayout.EAST);
+
+        int refreshHz = FrameScheduler.refreshRate();
+        this.intervalNanos = 1000000000L / refreshHz;
+        this.animation = new Timer(1000 / refreshHz, e -> this.tick());
+        this.animation.setCoalesce(true);
+
+        this.updateLabel();
+    }
+
+    public String getParameterName() {
+        return this.name;
+    }
+
+    @Override
+    public void stateChanged(ChangeEvent changeEvent) {
+        Parameters.get().set(this.name, (double) this.slider.getValue() / STEPS_PER_UNIT);
+        this.updateLabel();
+    }
+
+    public void actionPerformed(ActionEvent actionEvent) {
+        if (actionEvent.getSource().equals(this.animateBtn)) {
+            this.setAnimating(this.animateBtn.isSelected());
+        }
+    }
+
+    /**
+     * Starts or stops sweeping the parameter. The sweep starts from the
+     * current value.
+     *
+     * @param animating Whether to animate
+     */
+    public void setAnimating(boolean animating) {
+        this.animateBtn.setSelected(animating);
+        if (animating && !this.animation.isRunning()) {
+            this.startValue = (double) this.slider.getValue() / STEPS_PER_UNIT;
+            this.animationStart = this.lastTick = System.nanoTime();
+            this.animation.start();
+        } else if (!animating) {
+            this.animation.stop();
+        }
+    }
+
+    public boolean isAnimating() {
+        return this.animation.isRunning();
+    }
+
+    /**
+     * Moves the slider to where the sweep should be by now.
+     */
+    private void tick() {
+        long now = System.nanoTime();
+        RenderMetrics.get().recordAnimationFrame(now - this.lastTick, this.intervalNanos);
+        this.lastTick = now;
+
+        // Distance travelled so far, folded back and forth over the range
+        double range = MAX - MIN;
+        double travelled = (now - this.animationStart) / 1e9 / SWEEP_SECONDS * range;
+        double position = (this.startValue - MIN + travelled) % (2 * range);
+        double value = MIN + (position <= range ? position : 2 * range - position);
+
+        this.slider.setValue((int) Math.round(value * STEPS_PER_UNIT));
+    }
+
+    private void updateLabel() {
+        this.label.setText(String.format(" %s = %.2f", this.name, Parameters.get().value(this.name)));
+    }
+}
@@ -0,0 +1,153 @@
+package org.gcalc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Values of the named parameters which equations can use alongside their
+ * variables, such as the a and b in ax+b. Any single letter is a parameter,
+ * apart from the variables x, y and t, and each starts at 1.
+ *
+ * Each parameter has a fixed slot, its position in the alphabet, which
+ * compiled programs resolve once when they are built. Changing a value
+ * therefore never needs an equation to be parsed or compiled again; the new
+ * value is read from its slot the next time the equation is evaluated.
+ *
+ * A single process-wide instance is available through get(). Values are
+ * changed on the event dispatch thread. A thread can instead be given its own
+ * copy, so that frames with different values can be drawn at the same time.
+ */
+public class Parameters {
+    /** Value of a parameter which hasn't been set */
+    public static final double DEFAULT_VALUE = 1;
+
+    /**
+     * Receives changes to parameter values.
+     */
+    public interface Listener {
+        /**
+         * @param name The parameter which changed
+         * @param value Its new value
+         */
+        void parameterChanged(String name, double value);
+    }
+
+    private static final Parameters instance = new Parameters();
+    // Overrides the process-wide values on threads which have their own
+    private static final ThreadLocal<Parameters> threadValues = new ThreadLocal<>();
+
+    private final double[] values = new double[26];
+    private final ArrayList<Listener> listeners = new ArrayList<>();
+
+    private Parameters() {
+        java.util.Arrays.fill(this.values, DEFAULT_VALUE);
+    }
+
+    /**
+     * @return The values given to this thread with setThreadValues(), or
+     *         otherwise the process-wide parameters
+     */
+    public static Parameters get() {
+        Parameters local = threadValues.get();
+        return local != null ? local : instance;
+    }
+
+    /**
+     * Makes get() return different values on the current thread only.
+     *
+     * @param values The values to use, or null to go back to the
+     *               process-wide ones
+     * @return The values the thread had before, or null if it had none, so
+     *         that they can be put back afterwards
+     */
+    static Parameters setThreadValues(Parameters values) {
+        Parameters previous = threadValues.get();
+        if (values == null) threadValues.remove();
+        else threadValues.set(values);
+        return previous;
+    }
+
+    /**
+     * @return A copy of the current values, without any listeners
+     */
+    public Parameters copy() {
+        Parameters copy = new Parameters();
+        System.arraycopy(this.values, 0, copy.values, 0, this.values.length);
+        return copy;
+    }
+
+    /**
+     * @param name A variable name from an expression
+     * @return Whether the name is a parameter rather than a variable
+     */
+    public static boolean isParameter(String name) {
+        if (name == null || name.length() != 1) return false;
+        char c = name.charAt(0);
+        return c >= 'a' && c <= 'z' && c != 'x' && c != 'y' && c != 't';
+    }
+
+    /**
+     * @param name A parameter name, for which isParameter() is true
+     * @return The parameter's slot
+     */
+    public static int slot(String name) {
+        return name.charAt(0) - 'a';
+    }
+
+    /**
+     * @param slot A parameter slot
+     * @return The parameter's name
+     */
+    public static String name(int slot) {
+        return String.valueOf((char) ('a' + slot));
+    }
+
+    public double value(int slot) {
+        return this.values[slot];
+    }
+
+    public double value(String name) {
+        return this.values[slot(name)];
+    }
+
+    /**
+     * Changes the value of a parameter and tells every listener.
+     *
+     * @param name The parameter
+     * @param value Its new value
+     */
+    public void set(String name, double value) {
+        if (this.values[slot(name)] == value) return;
+        this.values[slot(name)] = value;
+        for (Listener l : new ArrayList<>(this.listeners)) {
+            l.parameterChanged(name, value);
+        }
+    }
+
+    public void addListener(Listener listener) {
+        this.listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        this.listeners.remove(listener);
+    }
+
+    /**
+     * Finds the parameters used by an expression, including in any nested
+     * expressions.
+     *
+     * @param expr The parsed expression, or null
+     * @param names Receives the name of each parameter not already in it
+     */
+    static void collect(Equation.Expression expr, List<String> names) {
+        if (expr == null) return;
+        for (Instruction i : expr.ops) {
+            if (i.instruction == Instruction.InstType.PUSHVAR && isParameter((String) i.arg) &&
+                    !names.contains(i.arg)) {
+                names.add((String) i.arg);
+            } else if (i.instruction == Instruction.InstType.EXPR) {
+                collect((Equation.Expression) i.arg, names);
+            }
+        }
+    }
+}
@@ -0,0 +1,441 @@
+package org.gcalc;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.imageio.ImageIO;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Small embedded HTTP server which renders plots on request, so that images
+ * can be served from one long-running JVM. Rendered images are kept in an LRU
+ * cache keyed by a hash of the canonical request, up to a total size in
+ * bytes.
+ *
+ * Requests are handled concurrently, but only one render runs per core, as
+ * a large image can take hundreds of megabytes while it is drawn; other
+ * requests wait their turn. Requests for an image which is already being
+ * rendered wait for that render rather than starting their own.
+ *
+ * Endpoints (bound to localhost only):
+ * <pre>
+ * GET  /plot?eq=sin(x)&amp;eq=2x&amp;width=800&amp;height=600&amp;scale=1&amp;x=0&amp;y=0&amp;format=png
+ * POST /plot?width=...   (body: one equation per line, as in workspace.txt)
+ * GET  /stats            (cache and latency statistics, as plain text)
+ * </pre>
+ *
+ * Equations passed in the query string must be URL encoded, so `+` has to be
+ * sent as `%2B`.
+ */
+public class PlotServer {
+    private static final int MAX_SIZE = 8192;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final RenderCache cache;
+    private final Semaphore renderSlots = new Semaphore(Runtime.getRuntime().availableProcessors());
+    // Renders in progress, which requests for the same image wait on
+    private final ConcurrentHashMap<String, CompletableFuture<byte[]>> rendering = new ConcurrentHashMap<>();
+    private final LatencyRecorder latencies = new LatencyRecorder(4096);
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong sharedRenders = new AtomicLong();
+
+    /**
+     * Creates a server listening on the loopback interface. Call start() to
+     * begin handling requests.
+     *
+     * @param port The port to listen on, or 0 to pick a free one
+     * @param cacheMegabytes Most rendered image data to keep, in MiB
+     * @throws IOException if the port couldn't be bound
+     */
+    public PlotServer(int port, int cacheMegabytes) throws IOException {
+        this.cache = new RenderCache(cacheMegabytes * 1024L * 1024L);
+        this.server = HttpServer.create(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.executor = newRequestExecutor();
+        this.server.setExecutor(this.executor);
+        this.server.createContext("/plot", this::handlePlot);
+        this.server.createContext("/stats", this::handleStats);
+    }
+
+    public void start() {
+        this.server.start();
+    }
+
+    public void stop() {
+        this.server.stop(0);
+        this.executor.shutdown();
+    }
+
+    public int getPort() {
+        return this.server.getAddress().getPort();
+    }
+
+    /**
+     * Uses a virtual thread per request where the JVM supports it (Java 21+),
+     * otherwise falls back to a cached platform thread pool.
+     *
+     * @return The executor to handle requests on
+     */
+    private static ExecutorService newRequestExecutor() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    private void handlePlot(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        this.requests.incrementAndGet();
+
+        try {
+            String method = exchange.getRequestMethod();
+            if (!method.equals("GET") && !method.equals("POST")) {
+                this.respond(exchange, 405, "text/plain", "Only GET and POST are supported\n");
+                return;
+            }
+
+            PlotRequest req = PlotRequest.parse(exchange);
+            String key = req.hash();
+            byte[] body = this.cache.get(key);
+            if (body != null) {
+                this.cacheHits.incrementAndGet();
+            } else {
+                body = this.render(req, key);
+            }
+
+            exchange.getResponseHeaders().set("ETag", "\"" + key + "\"");
+            this.respond(exchange, 200, req.contentType(), body);
+        } catch (IllegalArgumentException e) {
+            this.respond(exchange, 400, "text/plain", e.getMessage() + "\n");
+        } catch (Exception e) {
+            e.printStackTrace();
+            this.respond(exchange, 500, "text/plain", "Render failed: " + e + "\n");
+        } finally {
+            this.latencies.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Renders a request and caches the result, or waits for the same image
+     * if another request is already rendering it.
+     *
+     * @param req The request
+     * @param key Its hash
+     * @return The rendered image
+     */
+    private byte[] render(PlotRequest req, String key) throws Exception {
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        CompletableFuture<byte[]> pending = this.rendering.putIfAbsent(key, result);
+        if (pending != null) {
+            this.sharedRenders.incrementAndGet();
+            try {
+                return pending.get();
+            } catch (ExecutionException e) {
+                // Fail the same way as the request doing the render
+                if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+                throw e;
+            }
+        }
+
+        try {
+            // The render may have finished between the cache miss and now
+            byte[] body = this.cache.get(key);
+            if (body == null) {
+                this.renderSlots.acquire();
+                try {
+                    body = req.render();
+                } finally {
+                    this.renderSlots.release();
+                }
+                this.cache.put(key, body);
+            }
+            result.complete(body);
+            return body;
+        } catch (Throwable e) {
+            result.completeExceptionally(e);
+            throw e;
+        } finally {
+            this.rendering.remove(key, result);
+        }
+    }
+
+    private void handleStats(HttpExchange exchange) throws IOException {
+        long[] sorted = this.latencies.snapshot();
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("requests %d\n", this.requests.get()));
+        out.append(String.format("cache_hits %d\n", this.cacheHits.get()));
+        out.append(String.format("shared_renders %d\n", this.sharedRenders.get()));
+        out.append(String.format("cache_entries %d\n", this.cache.size()));
+        out.append(String.format("cache_bytes %d\n", this.cache.bytes()));
+        out.append(String.format("latency_samples %d\n", sorted.length));
+        for (double p : new double[]{50, 90, 99, 99.9}) {
+            out.append(String.format("latency_p%s_ms %.3f\n",
+                    p == Math.rint(p) ? Integer.toString((int) p) : Double.toString(p),
+                    LatencyRecorder.percentile(sorted, p) / 1e6));
+        }
+        this.respond(exchange, 200, "text/plain", out.toString());
+    }
+
+    private void respond(HttpExchange exchange, int status, String type, String body) throws IOException {
+        this.respond(exchange, status, type + "; charset=utf-8", body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void respond(HttpExchange exchange, int status, String type, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", type);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * A parsed and validated plot request. The hash is computed from a
+     * canonical form, so that requests which only differ in parameter order
+     * or whitespace share a cache entry.
+     */
+    static class PlotRequest {
+        List<String> equations = new ArrayList<>();
+        int width = 800, height = 600;
+        double scale = 1, offsetX = 0, offsetY = 0;
+        String format = "png";
+
+        static PlotRequest parse(HttpExchange exchange) throws IOException, IllegalArgumentException {
+            PlotRequest req = new PlotRequest();
+
+            String query = exchange.getRequestURI().getRawQuery();
+            if (query != null) {
+                for (String pair : query.split("&")) {
+                    if (pair.isEmpty()) continue;
+                    int eq = pair.indexOf('=');
+                    String name = decode(eq < 0 ? pair : pair.substring(0, eq));
+                    String value = eq < 0 ? "" : decode(pair.substring(eq + 1));
+                    req.set(name, value);
+                }
+            }
+
+            if (exchange.getRequestMethod().equals("POST")) {
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                        exchange.getRequestBody(), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) req.addEquation(line);
+                }
+            }
+
+            if (req.width < 1 || req.height < 1 || req.width > MAX_SIZE || req.height > MAX_SIZE)
+                throw new IllegalArgumentException("width and height must be between 1 and " + MAX_SIZE);
+            if (!(req.scale > 0) || Double.isInfinite(req.scale))
+                throw new IllegalArgumentException("scale must be a positive number");
+            return req;
+        }
+
+        private static String decode(String s) {
+            return URLDecoder.decode(s, StandardCharsets.UTF_8);
+        }
+
+        private void addEquation(String raw) {
+            String eq = raw.replaceAll(" ", "").trim();
+            if (!eq.isEmpty()) this.equations.add(eq);
+        }
+
+        private void set(String name, String value) throws IllegalArgumentException {
+            try {
+                switch (name) {
+                    case "eq": this.addEquation(value); break;
+                    case "width": this.width = Integer.parseInt(value); break;
+                    case "height": this.height = Integer.parseInt(value); break;
+                    case "scale": this.scale = Double.parseDouble(value); break;
+                    case "x": this.offsetX = Double.parseDouble(value); break;
+                    case "y": this.offsetY = Double.parseDouble(value); break;
+                    case "format":
+                        this.format = value.toLowerCase();
+                        if (!this.format.equals("png") && !this.format.equals("svg"))
+                            throw new IllegalArgumentException("format must be png or svg");
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown parameter " + name);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid value for " + name + ": " + value);
+            }
+        }
+
+        String contentType() {
+            return this.format.equals("svg") ? "image/svg+xml" : "image/png";
+        }
+
+        /**
+         * @return Hex SHA-256 of the canonical form of this request
+         */
+        String hash() {
+            StringBuilder canonical = new StringBuilder();
+            canonical.append(this.format).append('\n')
+                    .append(this.width).append('x').append(this.height).append('\n')
+                    .append(Double.doubleToLongBits(this.scale)).append(',')
+                    .append(Double.doubleToLongBits(this.offsetX)).append(',')
+                    .append(Double.doubleToLongBits(this.offsetY)).append('\n');
+            for (String eq : this.equations) canonical.append(eq).append('\n');
+
+            try {
+                byte[] digest = MessageDigest.getInstance("SHA-256")
+                        .digest(canonical.toString().getBytes(StandardCharsets.UTF_8));
+                StringBuilder hex = new StringBuilder();
+                for (byte b : digest) hex.append(String.format("%02x", b));
+                return hex.toString();
+            } catch (NoSuchAlgorithmException e) {
+                // Every JVM is required to support SHA-256
+                throw new IllegalStateException(e);
+            }
+        }
+
+        byte[] render() throws IOException {
+            GraphRenderer renderer = new GraphRenderer(this.width, this.height);
+            renderer.setScale(this.scale);
+            renderer.setOffset(this.offsetX, this.offsetY);
+
+            int id = 0;
+            for (String eq : this.equations) {
+                try {
+                    renderer.setEquation(id, new Equation(eq));
+                } catch (Exception e) {
+                    throw new IllegalArgumentException("Malformed equation \"" + eq + "\"");
+                }
+                id++;
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            if (this.format.equals("svg")) {
+                try (Writer w = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+                    renderer.renderSVG(w);
+                }
+            } else {
+                BufferedImage img = new BufferedImage(this.width, this.height, BufferedImage.TYPE_INT_RGB);
+                Graphics2D g = renderer.render(img);
+                g.dispose();
+                ImageIO.write(img, "png", out);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * Thread safe LRU map from request hash to rendered image bytes, which
+     * evicts the least recently used images once their total size is over
+     * the capacity.
+     */
+    static class RenderCache {
+        private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private final long capacity;
+        private long bytes = 0;
+
+        /**
+         * @param capacity Most bytes of image data to keep
+         */
+        RenderCache(long capacity) {
+            this.capacity = capacity;
+        }
+
+        synchronized byte[] get(String key) { return this.entries.get(key); }
+        synchronized int size() { return this.entries.size(); }
+        synchronized long bytes() { return this.bytes; }
+
+        synchronized void put(String key, byte[] value) {
+            // Would only push everything else out, then be evicted itself
+            if (value.length > this.capacity) return;
+
+            byte[] old = this.entries.put(key, value);
+            if (old != null) this.bytes -= old.length;
+            this.bytes += value.length;
+
+            Iterator<byte[]> eldest = this.entries.values().iterator();
+            while (this.bytes > this.capacity) {
+                this.bytes -= eldest.next().length;
+                eldest.remove();
+            }
+        }
+    }
+
+    /**
+     * Keeps the most recent latency samples in a ring buffer, from which
+     * percentiles can be computed on demand.
+     */
+    public static class LatencyRecorder {
+        private final long[] samples;
+        private int next = 0;
+        private boolean full = false;
+
+        public LatencyRecorder(int capacity) {
+            this.samples = new long[capacity];
+        }
+
+        public synchronized void record(long nanos) {
+            this.samples[this.next] = nanos;
+            this.next = (this.next + 1) % this.samples.length;
+            if (this.next == 0) this.full = true;
+        }
+
+        /**
+         * @return A sorted copy of the retained samples
+         */
+        public synchronized long[] snapshot() {
+            long[] copy = Arrays.copyOf(this.samples, this.full ? this.samples.length : this.next);
+            Arrays.sort(copy);
+            return copy;
+        }
+
+        /**
+         * @param sorted Samples in ascending order
+         * @param p The percentile to look up, between 0 and 100
+         * @return The nearest-rank percentile, or 0 if there are no samples
+         */
+        public static long percentile(long[] sorted, double p) {
+            if (sorted.length == 0) return 0;
+            int rank = (int) Math.ceil(p / 100.0 * sorted.length);
+            return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+        }
+    }
+
+    /**
+     * Program entrypoint for running the server on its own.
+     *
+     * @param args Optionally the port and cache size in MiB, in that order
+     */
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+
+        try {
+            int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+            int cacheMegabytes = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+            PlotServer server = new PlotServer(port, cacheMegabytes);
+            server.start();
+            System.out.println("Plot server listening on http://localhost:" + server.getPort() + "/plot");
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
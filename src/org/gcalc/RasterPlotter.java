@@ -0,0 +1,165 @@
+package org.gcalc;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * Draws antialiased lines straight into the pixel array of a TYPE_INT_RGB
+ * image, as a faster alternative to Graphics2D for plotting curves. Lines
+ * are rasterised with a variant of Xiaolin Wu's algorithm widened to a given
+ * stroke width: along the major axis each step covers a span of pixels
+ * across the line, with the two edge pixels blended by how much of them the
+ * line covers.
+ *
+ * Coordinates are in pixels, with integer coordinates on pixel edges as in
+ * Java2D, so a line along y = 10 with a width of 2 fully covers rows 9 and
+ * 10. Nothing is allocated per line or per pixel. Instances are not thread
+ * safe.
+ */
+public class RasterPlotter {
+    private final int[] pixels;
+    private final int width, height;
+
+    // Parametric range of the line left after clipping
+    private double clipT0, clipT1;
+
+    private RasterPlotter(int[] pixels, int width, int height) {
+        this.pixels = pixels;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Creates a plotter for an image, if its pixels can be written directly.
+     * Note that this stops Java2D from caching the image in video memory.
+     *
+     * @param img The image to draw into
+     * @return The plotter, or null if the image isn't TYPE_INT_RGB
+     */
+    public static RasterPlotter forImage(BufferedImage img) {
+        if (img.getType() != BufferedImage.TYPE_INT_RGB) return null;
+        int[] pixels = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+        return new RasterPlotter(pixels, img.getWidth(), img.getHeight());
+    }
+
+    /**
+     * Draws a line between each pair of consecutive points. A point with a
+     * NaN coordinate breaks the line.
+     *
+     * @param xs Pixel x coordinates
+     * @param ys Pixel y coordinates
+     * @param count Number of points to use from the arrays
+     * @param rgb Colour of the line
+     * @param strokeWidth Width of the line in pixels
+     */
+    public void drawPolyline(double[] xs, double[] ys, int count, int rgb, double strokeWidth) {
+        for (int i = 1; i < count; i++) {
+            if (Double.isNaN(xs[i - 1]) || Double.isNaN(ys[i - 1]) || Double.isNaN(xs[i]) || Double.isNaN(ys[i]))
+                continue;
+            this.drawLine(xs[i - 1], ys[i - 1], xs[i], ys[i], rgb, strokeWidth);
+        }
+    }
+
+    /**
+     * Draws one antialiased line.
+     *
+     * @param x0 Start x, in pixels
+     * @param y0 Start y, in pixels
+     * @param x1 End x, in pixels
+     * @param y1 End y, in pixels
+     * @param rgb Colour of the line
+     * @param strokeWidth Width of the line in pixels
+     */
+    public void drawLine(double x0, double y0, double x1, double y1, int rgb, double strokeWidth) {
+        double dx = x1 - x0, dy = y1 - y0;
+
+        // Clip to the image, with a margin for the stroke, so that lines to
+        // near infinite values (asymptotes) don't take forever
+        double margin = strokeWidth + 2;
+        this.clipT0 = 0;
+        this.clipT1 = 1;
+        if (!this.clip(-dx, x0 + margin) || !this.clip(dx, this.width + margin - x0) ||
+                !this.clip(-dy, y0 + margin) || !this.clip(dy, this.height + margin - y0))
+            return;
+        double t0 = this.clipT0, t1 = this.clipT1;
+        double cx0 = x0 + t0 * dx, cy0 = y0 + t0 * dy;
+        double cx1 = x0 + t1 * dx, cy1 = y0 + t1 * dy;
+
+        if (Math.abs(dx) >= Math.abs(dy)) {
+            this.drawMajor(cx0, cy0, cx1, cy1, rgb, strokeWidth, false);
+        } else {
+            this.drawMajor(cy0, cx0, cy1, cx1, rgb, strokeWidth, true);
+        }
+    }
+
+    /**
+     * Liang-Barsky clipping against one edge, narrowing clipT0 and clipT1.
+     *
+     * @return false if the line is entirely outside the edge
+     */
+    private boolean clip(double p, double q) {
+        if (p == 0) return q >= 0;
+        double t = q / p;
+        if (p < 0) {
+            if (t > this.clipT1) return false;
+            if (t > this.clipT0) this.clipT0 = t;
+        } else {
+            if (t < this.clipT0) return false;
+            if (t < this.clipT1) this.clipT1 = t;
+        }
+        return true;
+    }
+
+    /**
+     * Steps along the major axis u, covering a span across the minor axis v
+     * at each step. When steep, u is y and v is x.
+     */
+    private void drawMajor(double u0, double v0, double u1, double v1, int rgb, double strokeWidth, boolean steep) {
+        if (u1 < u0) {
+            double t = u0; u0 = u1; u1 = t;
+            t = v0; v0 = v1; v1 = t;
+        }
+        double du = u1 - u0;
+        double gradient = du == 0 ? 0 : (v1 - v0) / du;
+        // Width of the line measured along the minor axis
+        double half = strokeWidth * Math.sqrt(1 + gradient * gradient) / 2;
+
+        int uLimit = steep ? this.height : this.width;
+        int vLimit = steep ? this.width : this.height;
+
+        // Steps cover pixel columns (or rows) whose centres are within the
+        // segment, so joined segments don't blend the same pixel twice
+        int uStart = Math.max(0, (int) Math.ceil(u0 - 0.5));
+        int uEnd = Math.min(uLimit - 1, (int) Math.ceil(u1 - 0.5) - 1);
+        if (du == 0) uEnd = Math.min(uLimit - 1, uStart);
+
+        for (int u = uStart; u <= uEnd; u++) {
+            double v = v0 + gradient * (u + 0.5 - u0);
+            double lo = v - half, hi = v + half;
+            int first = Math.max(0, (int) Math.floor(lo));
+            int last = Math.min(vLimit - 1, (int) Math.ceil(hi) - 1);
+
+            for (int w = first; w <= last; w++) {
+                double coverage = Math.min(hi, w + 1) - Math.max(lo, w);
+                if (coverage <= 0) continue;
+                if (steep) this.blend(w, u, rgb, Math.min(1, coverage));
+                else this.blend(u, w, rgb, Math.min(1, coverage));
+            }
+        }
+    }
+
+    /**
+     * Blends a colour over one pixel.
+     */
+    private void blend(int x, int y, int rgb, double alpha) {
+        int i = y * this.width + x;
+        int dst = this.pixels[i];
+        int a = (int) (alpha * 256);
+        int ia = 256 - a;
+
+        int r = (((rgb >> 16) & 0xff) * a + ((dst >> 16) & 0xff) * ia) >> 8;
+        int g = (((rgb >> 8) & 0xff) * a + ((dst >> 8) & 0xff) * ia) >> 8;
+        int b = ((rgb & 0xff) * a + (dst & 0xff) * ia) >> 8;
+        this.pixels[i] = (r << 16) | (g << 8) | b;
+    }
+}
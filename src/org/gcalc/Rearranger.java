@@ -0,0 +1,335 @@
+package org.gcalc;
+
+import java.util.ArrayList;
+
+/**
+ * For internal use by Equation.
+ *
+ * Rearranges an equation to be expressed in terms of y, so it can be
+ * evaluated like any other y=f(x) expression. Both sides are treated as
+ * polynomials in y, a*y^2 + b*y + c, whose coefficients are instruction lists
+ * in x. Moving everything to one side, a linear equation gives y = -c/b, and
+ * a quadratic one gives two roots, worked out by a QUADROOT function taking
+ * a, b, c and ±1 to choose the larger or smaller root. BranchProgram runs it
+ * like any other ± expression, so the larger root is always branch 0.
+ *
+ * The roots aren't worked out as (-b ± sqrt(b^2-4ac)) / 2a, which loses
+ * precision in the root nearer zero, and divides by zero wherever a(x) is 0.
+ * See quadraticRoot().
+ *
+ * Parts of the equation without y are copied across unchanged, so y=f(x)
+ * gives exactly the instructions f(x) would on its own. Equations where y is
+ * raised to a higher power, divided by, or inside a function can't be
+ * rearranged this way.
+ */
+final class Rearranger {
+    // Highest power of y that can be solved for
+    private static final int MAX_DEGREE = 2;
+
+    /**
+     * Coefficients of each power of y, where null means zero.
+     */
+    private static final class Poly {
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        final ArrayList<Instruction>[] c = new ArrayList[MAX_DEGREE + 1];
+
+        int degree() {
+            for (int d = MAX_DEGREE; d > 0; d--) {
+                if (this.c[d] != null) return d;
+            }
+            return 0;
+        }
+
+        static Poly constant(ArrayList<Instruction> c0) {
+            Poly p = new Poly();
+            p.c[0] = c0;
+            return p;
+        }
+    }
+
+    private Rearranger() {}
+
+    /**
+     * Works out one root of a*y^2 + b*y + c = 0, as the QUADROOT function.
+     * With q = -(b + sign(b) * sqrt(b^2-4ac)) / 2 the roots are q/a and c/q,
+     * neither of which subtracts two nearly equal numbers. Where a is 0 there
+     * is only the root -c/b, which is given as the larger one.
+     *
+     * @param a Coefficient of y^2
+     * @param b Coefficient of y
+     * @param c Constant term
+     * @param sign Positive for the larger root, otherwise the smaller
+     * @return The root, or NaN if it doesn't exist
+     */
+    static double quadraticRoot(double a, double b, double c, double sign) {
+        if (a == 0) return sign > 0 ? -c / b : Double.NaN;
+
+        double disc = b * b - 4 * a * c;
+        if (!(disc >= 0)) return Double.NaN;
+        double q = -(b + Math.copySign(Math.sqrt(disc), b)) / 2;
+        double r1 = q / a;
+        // q is only 0 if b and c both are, when both roots are 0
+        double r2 = q == 0 ? r1 : c / q;
+        return sign > 0 ? Math.max(r1, r2) : Math.min(r1, r2);
+    }
+
+    /**
+     * Solves lhs = rhs for y.
+     *
+     * @param raw The equation text, stored with the result
+     * @param lhs The parsed left side
+     * @param rhs The parsed right side
+     * @return An expression evaluating every y for a given x, or null if the
+     *         equation isn't linear or quadratic in y
+     */
+    static Equation.Expression solve(String raw, Equation.Expression lhs, Equation.Expression rhs) {
+        Poly l = toPoly(lhs), r = toPoly(rhs);
+        if (l == null || r == null) return null;
+
+        // a*y^2 + b*y + c = 0
+        ArrayList<Instruction> a = sub(l.c[2], r.c[2]);
+        ArrayList<Instruction> b = sub(l.c[1], r.c[1]);
+        ArrayList<Instruction> c = sub(l.c[0], r.c[0]);
+
+        ArrayList<Instruction> y;
+        int addedPlusMinus = 0;
+        if (a == null && b == null) {
+            return null;
+        } else if (a == null) {
+            // y = -c/b, with -c worked out directly so that y=f(x) is just f(x)
+            y = div(sub(r.c[0], l.c[0]), b);
+        } else {
+            // y = QUADROOT(a, b, c, 0 ± 1)
+            y = new ArrayList<>(a);
+            y.addAll(orZero(b));
+            y.addAll(orZero(c));
+            y.addAll(plusMinus(constant(0), constant(1)));
+            y.add(new Instruction(Instruction.InstType.NATIVEFUNC, "QUADROOT"));
+            addedPlusMinus = 1;
+        }
+        if (y == null) y = constant(0);
+
+        // Coefficients used more than once in the solution would copy any ±
+        // in them, and the copies would become independent branches
+        if (countPlusMinus(y) != countPlusMinus(lhs.ops) + countPlusMinus(rhs.ops) + addedPlusMinus) return null;
+
+        return new Equation.Expression(raw, y);
+    }
+
+    /**
+     * Converts an expression to a polynomial in y, by running its
+     * instructions on a stack of polynomials.
+     *
+     * @return The polynomial, or null if y is used in a way that can't be
+     *         rearranged
+     */
+    private static Poly toPoly(Equation.Expression expr) {
+        ArrayList<Poly> stack = new ArrayList<>();
+
+        for (Instruction i : expr.ops) {
+            Poly p = new Poly();
+            switch (i.instruction) {
+                case ADD: case SUB: case MUL: case DIV: case PLUSMINUS: {
+                    if (stack.size() < 2) return null;
+                    Poly n2 = stack.remove(stack.size() - 1);
+                    Poly n1 = stack.remove(stack.size() - 1);
+                    p = binary(i, n1, n2);
+                    if (p == null) return null;
+                    break;
+                }
+                case FACT:
+                    if (stack.isEmpty()) return null;
+                    Poly n = stack.remove(stack.size() - 1);
+                    if (n.degree() != 0) return null;
+                    p.c[0] = append(orZero(n.c[0]), i);
+                    break;
+                case NATIVEFUNC:
+                    if ("POW".equals(i.arg)) {
+                        if (stack.size() < 2) return null;
+                        Poly exponent = stack.remove(stack.size() - 1);
+                        Poly base = stack.remove(stack.size() - 1);
+                        p = pow(i, base, exponent);
+                        if (p == null) return null;
+                    } else {
+                        if (stack.isEmpty()) return null;
+                        Poly arg = stack.remove(stack.size() - 1);
+                        if (arg.degree() != 0) return null;
+                        p.c[0] = append(orZero(arg.c[0]), i);
+                    }
+                    break;
+                case EXPR:
+                    Poly inner = toPoly((Equation.Expression) i.arg);
+                    if (inner == null) return null;
+                    // Keep bracketed regions without y as they are
+                    if (inner.degree() == 0) {
+                        p.c[0] = new ArrayList<>();
+                        p.c[0].add(i);
+                    } else {
+                        p = inner;
+                    }
+                    break;
+                case PUSH:
+                    p.c[0] = new ArrayList<>();
+                    p.c[0].add(i);
+                    break;
+                case PUSHVAR:
+                    if ("y".equals(i.arg)) {
+                        p.c[1] = constant(1);
+                    } else {
+                        p.c[0] = new ArrayList<>();
+                        p.c[0].add(i);
+                    }
+                    break;
+                default:
+                    return null;
+            }
+            stack.add(p);
+        }
+
+        return stack.size() == 1 ? stack.get(0) : null;
+    }
+
+    private static Poly binary(Instruction i, Poly n1, Poly n2) {
+        Poly p = new Poly();
+        switch (i.instruction) {
+            case ADD:
+                for (int d = 0; d <= MAX_DEGREE; d++) p.c[d] = add(n1.c[d], n2.c[d]);
+                return p;
+            case SUB:
+                for (int d = 0; d <= MAX_DEGREE; d++) p.c[d] = sub(n1.c[d], n2.c[d]);
+                return p;
+            case MUL:
+                if (n1.degree() + n2.degree() > MAX_DEGREE) return null;
+                for (int d1 = 0; d1 <= n1.degree(); d1++) {
+                    for (int d2 = 0; d2 <= n2.degree(); d2++) {
+                        p.c[d1 + d2] = add(p.c[d1 + d2], mul(n1.c[d1], n2.c[d2]));
+                    }
+                }
+                return p;
+            case DIV:
+                // Only division by something without y keeps a polynomial
+                if (n2.degree() != 0 || n2.c[0] == null) return null;
+                for (int d = 0; d <= MAX_DEGREE; d++) p.c[d] = div(n1.c[d], n2.c[0]);
+                return p;
+            case PLUSMINUS:
+                if (n1.degree() != 0 || n2.degree() != 0) return null;
+                p.c[0] = plusMinus(n1.c[0], n2.c[0]);
+                return p;
+            default:
+                return null;
+        }
+    }
+
+    private static Poly pow(Instruction i, Poly base, Poly exponent) {
+        if (exponent.degree() != 0) return null;
+        if (base.degree() == 0) {
+            ArrayList<Instruction> c = new ArrayList<>(orZero(base.c[0]));
+            c.addAll(orZero(exponent.c[0]));
+            return Poly.constant(append(c, i));
+        }
+
+        // y can only be raised to a small whole number
+        Double n = exponent.c[0] == null ? Double.valueOf(0) : constantValue(exponent.c[0]);
+        if (n == null) return null;
+        if (n == 0) return Poly.constant(constant(1));
+        if (n == 1) return base;
+        if (n == 2) return binary(Instruction.fromOperator('*'), base, base);
+        return null;
+    }
+
+    /**
+     * @return The value of a coefficient which is just a number, possibly in
+     *         brackets, or null if it isn't
+     */
+    private static Double constantValue(ArrayList<Instruction> c) {
+        if (c == null || c.size() != 1) return null;
+        Instruction i = c.get(0);
+        if (i.instruction == Instruction.InstType.PUSH) return (Double) i.arg;
+        if (i.instruction == Instruction.InstType.EXPR) return constantValue(((Equation.Expression) i.arg).ops);
+        return null;
+    }
+
+    private static ArrayList<Instruction> constant(double value) {
+        ArrayList<Instruction> c = new ArrayList<>();
+        c.add(new Instruction(Instruction.InstType.PUSH, value));
+        return c;
+    }
+
+    private static ArrayList<Instruction> orZero(ArrayList<Instruction> c) {
+        return c == null ? constant(0) : c;
+    }
+
+    /**
+     * Joins two coefficients with an operator, leaving the result in a new
+     * list.
+     */
+    private static ArrayList<Instruction> join(ArrayList<Instruction> a, ArrayList<Instruction> b, char op) {
+        ArrayList<Instruction> c = new ArrayList<>(a);
+        c.addAll(b);
+        c.add(Instruction.fromOperator(op));
+        return c;
+    }
+
+    private static ArrayList<Instruction> append(ArrayList<Instruction> a, Instruction i) {
+        ArrayList<Instruction> c = new ArrayList<>(a);
+        c.add(i);
+        return c;
+    }
+
+    // The arithmetic helpers below treat null as zero, and work out results
+    // straight away when both sides are numbers, so that the coefficients
+    // don't fill up with operations on constants
+
+    private static ArrayList<Instruction> add(ArrayList<Instruction> a, ArrayList<Instruction> b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        Double va = constantValue(a), vb = constantValue(b);
+        if (va != null && vb != null) return va + vb == 0 ? null : constant(va + vb);
+        return join(a, b, '+');
+    }
+
+    private static ArrayList<Instruction> sub(ArrayList<Instruction> a, ArrayList<Instruction> b) {
+        if (b == null) return a;
+        if (a == null) return neg(b);
+        Double va = constantValue(a), vb = constantValue(b);
+        if (va != null && vb != null) return va - vb == 0 ? null : constant(va - vb);
+        return join(a, b, '-');
+    }
+
+    private static ArrayList<Instruction> neg(ArrayList<Instruction> a) {
+        if (a == null) return null;
+        Double va = constantValue(a);
+        if (va != null) return constant(-va);
+        return join(constant(0), a, '-');
+    }
+
+    private static ArrayList<Instruction> mul(ArrayList<Instruction> a, ArrayList<Instruction> b) {
+        if (a == null || b == null) return null;
+        Double va = constantValue(a), vb = constantValue(b);
+        if (va != null && vb != null) return va * vb == 0 ? null : constant(va * vb);
+        if (va != null && va == 1) return b;
+        if (vb != null && vb == 1) return a;
+        return join(a, b, '*');
+    }
+
+    private static ArrayList<Instruction> div(ArrayList<Instruction> a, ArrayList<Instruction> b) {
+        if (a == null) return null;
+        Double va = constantValue(a), vb = constantValue(b);
+        if (va != null && vb != null && vb != 0) return constant(va / vb);
+        if (vb != null && vb == 1) return a;
+        return join(a, b, '/');
+    }
+
+    private static ArrayList<Instruction> plusMinus(ArrayList<Instruction> a, ArrayList<Instruction> b) {
+        return join(orZero(a), orZero(b), '±');
+    }
+
+    private static int countPlusMinus(ArrayList<Instruction> ops) {
+        int count = 0;
+        for (Instruction i : ops) {
+            if (i.instruction == Instruction.InstType.PLUSMINUS) count++;
+            else if (i.instruction == Instruction.InstType.EXPR) count += countPlusMinus(((Equation.Expression) i.arg).ops);
+        }
+        return count;
+    }
+}
@@ -0,0 +1,81 @@
+package org.gcalc;
+
+import jdk.jfr.*;
+
+/**
+ * Java Flight Recorder event types emitted by the render pipeline, so that UI
+ * stalls can be lined up against GC and JIT activity in a recording. All of
+ * them are disabled by default, and cost next to nothing until a recording
+ * enables them, e.g.
+ * <pre>
+ * jcmd &lt;pid&gt; JFR.start name=gcalc settings=profile +org.gcalc.Frame#enabled=true ...
+ * </pre>
+ * or with a custom .jfc file which enables the "Graphing Calculator" category.
+ *
+ * Callers should use the begin() / end() / shouldCommit() pattern, and only
+ * fill in the fields once shouldCommit() returns true.
+ */
+public final class RenderEvents {
+    private RenderEvents() {}
+
+    @Name("org.gcalc.Frame")
+    @Label("Graph Frame")
+    @Description("Rendering of one complete graph frame")
+    @Category({"Graphing Calculator", "Rendering"})
+    @Enabled(false)
+    @StackTrace(false)
+    public static class Frame extends Event {
+        @Label("Width")
+        public int width;
+
+        @Label("Height")
+        public int height;
+
+        @Label("Scale")
+        public double scale;
+
+        @Label("Offset X")
+        public double offsetX;
+
+        @Label("Offset Y")
+        public double offsetY;
+
+        @Label("Equation Count")
+        public int equationCount;
+
+        @Label("Sample Count")
+        @Description("Number of equation evaluations, including the intersection search")
+        public long sampleCount;
+    }
+
+    @Name("org.gcalc.Parse")
+    @Label("Equation Parse")
+    @Description("Parsing of an equation after it has been edited")
+    @Category({"Graphing Calculator", "Parsing"})
+    @Enabled(false)
+    @StackTrace(false)
+    public static class Parse extends Event {
+        @Label("Expression Length")
+        public int length;
+
+        @Label("Success")
+        public boolean success;
+    }
+
+    @Name("org.gcalc.IntersectionSearch")
+    @Label("Intersection Search")
+    @Description("Search for intersections between one equation and those drawn before it")
+    @Category({"Graphing Calculator", "Rendering"})
+    @Enabled(false)
+    @StackTrace(false)
+    public static class IntersectionSearch extends Event {
+        @Label("Equation")
+        public int equationId;
+
+        @Label("Pairs Tested")
+        public int pairCount;
+
+        @Label("Intersections Found")
+        public int found;
+    }
+}
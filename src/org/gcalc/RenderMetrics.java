@@ -0,0 +1,431 @@
+package org.gcalc;
+
+import javax.management.*;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects timing and counting metrics for the render pipeline. Stages are
+ * timed once per frame or per equation, never per sample, so that collecting
+ * the metrics doesn't noticeably slow down rendering. All counters are safe
+ * to update from several rendering threads at once.
+ *
+ * A single process-wide instance is available through get().
+ */
+public class RenderMetrics implements RenderMetricsMXBean {
+    /**
+     * The parts of the pipeline that are timed separately.
+     */
+    public enum Stage {
+        // Parsing an equation after it has been edited
+        PARSE,
+        // Drawing axes, grid lines and labels
+        GRID,
+        // Sampling or tracing every curve for the frame, before any are drawn
+        SAMPLE,
+        // Drawing each curve, and evaluating any not sampled beforehand
+        CURVES,
+        // Searching for intersections between pairs of curves
+        INTERSECTIONS,
+        // Painting the finished image onto the screen
+        REPAINT,
+        // The whole frame, from clearing the image to drawing markers
+        FRAME
+    }
+
+    /**
+     * Upper bounds of the frame time histogram buckets, in milliseconds. The
+     * last bucket holds every frame slower than the final bound.
+     */
+    private static final long[] HISTOGRAM_BOUNDS_MS = {1, 2, 4, 8, 16, 33, 50, 100, 250, 500, 1000};
+
+    private static final String OBJECT_NAME = "org.gcalc:type=RenderMetrics";
+
+    private static final RenderMetrics instance = new RenderMetrics();
+
+    private final int stageCount = Stage.values().length;
+    private final LongAdder[] stageNanos = new LongAdder[stageCount];
+    private final LongAdder[] stageCounts = new LongAdder[stageCount];
+    private final AtomicLong[] stageLastNanos = new AtomicLong[stageCount];
+    private final AtomicLong maxFrameNanos = new AtomicLong();
+    private final AtomicLongArray frameHistogram = new AtomicLongArray(HISTOGRAM_BOUNDS_MS.length + 1);
+    private final ConcurrentHashMap<Integer, LongAdder> evaluations = new ConcurrentHashMap<>();
+    private final LongAdder frameEvaluations = new LongAdder();
+    private final LongAdder allocatedBytes = new LongAdder();
+    private final LongAdder operations = new LongAdder();
+    private final LongAdder unsharedOperations = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private final AtomicLong cacheBytes = new AtomicLong();
+    private final LongAdder scheduledFrames = new LongAdder();
+    private final LongAdder droppedFrames = new LongAdder();
+    private final LongAdder animationFrames = new LongAdder();
+    private final LongAdder animationNanos = new LongAdder();
+    private final LongAdder lateAnimationFrames = new LongAdder();
+    private final AtomicLong animationLastNanos = new AtomicLong();
+
+    private final com.sun.management.ThreadMXBean threadBean;
+
+    private RenderMetrics() {
+        for (int i = 0; i < stageCount; i++) {
+            this.stageNanos[i] = new LongAdder();
+            this.stageCounts[i] = new LongAdder();
+            this.stageLastNanos[i] = new AtomicLong();
+        }
+
+        // Allocation counters are a HotSpot extension, so may not exist
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean &&
+                ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            this.threadBean = (com.sun.management.ThreadMXBean) bean;
+            this.threadBean.setThreadAllocatedMemoryEnabled(true);
+        } else {
+            this.threadBean = null;
+        }
+    }
+
+    /**
+     * @return The process-wide metrics instance
+     */
+    public static RenderMetrics get() {
+        return instance;
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server, so that they can
+     * be inspected over JMX. Registering more than once has no effect.
+     */
+    public static void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(instance, new ObjectName(OBJECT_NAME));
+        } catch (InstanceAlreadyExistsException e) {
+            // Already registered by another window
+        } catch (JMException e) {
+            System.err.println("Unable to register render metrics MBean: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Records the time taken by a stage.
+     *
+     * @param stage The stage that has finished
+     * @param startNanos The value of System.nanoTime() when the stage began
+     */
+    public void record(Stage stage, long startNanos) {
+        long elapsed = System.nanoTime() - startNanos;
+        int i = stage.ordinal();
+        this.stageNanos[i].add(elapsed);
+        this.stageCounts[i].increment();
+        this.stageLastNanos[i].set(elapsed);
+
+        if (stage == Stage.FRAME) {
+            this.maxFrameNanos.accumulateAndGet(elapsed, Math::max);
+
+            long ms = elapsed / 1000000;
+            int bucket = 0;
+            while (bucket < HISTOGRAM_BOUNDS_MS.length && ms >= HISTOGRAM_BOUNDS_MS[bucket]) bucket++;
+            this.frameHistogram.incrementAndGet(bucket);
+        }
+    }
+
+    /**
+     * Adds to the number of times an equation has been evaluated.
+     *
+     * @param id The index the equation is drawn with
+     * @param count The number of evaluations to add
+     */
+    public void recordEvaluations(int id, long count) {
+        this.evaluations.computeIfAbsent(id, k -> new LongAdder()).add(count);
+        this.frameEvaluations.add(count);
+    }
+
+    /**
+     * Adds to the number of operations computed while sampling curves.
+     *
+     * @param shared Operations actually computed, sharing common
+     *               subexpressions between curves
+     * @param unshared Operations the curves would have needed separately
+     */
+    public void recordOperations(long shared, long unshared) {
+        this.operations.add(shared);
+        this.unsharedOperations.add(unshared);
+    }
+
+    /**
+     * Records how well a renderer's sample cache did during a frame.
+     *
+     * @param hits Curves and intersection searches reused
+     * @param misses Curves and intersection searches computed
+     * @param bytes Memory held by the cache at the end of the frame
+     */
+    public void recordSampleCache(long hits, long misses, long bytes) {
+        this.cacheHits.add(hits);
+        this.cacheMisses.add(misses);
+        this.cacheBytes.set(bytes);
+    }
+
+    /**
+     * Records what the frame scheduler did with redraw requests.
+     *
+     * @param rendered Frames drawn
+     * @param dropped Requests merged into a frame already waiting
+     */
+    public void recordScheduledFrames(long rendered, long dropped) {
+        this.scheduledFrames.add(rendered);
+        this.droppedFrames.add(dropped);
+    }
+
+    /**
+     * Records one frame of a parameter animation.
+     *
+     * @param intervalNanos Time since the previous animation frame
+     * @param targetNanos The interval the animation is aiming for, one
+     *                    display refresh
+     */
+    public void recordAnimationFrame(long intervalNanos, long targetNanos) {
+        this.animationFrames.increment();
+        this.animationNanos.add(intervalNanos);
+        this.animationLastNanos.set(intervalNanos);
+        // Later than half a refresh means a refresh was missed
+        if (intervalNanos > targetNanos * 3 / 2) this.lateAnimationFrames.increment();
+    }
+
+    /**
+     * @return Bytes allocated so far by the current thread, or -1 if the JVM
+     *         can't measure it. Pass the result to recordAllocations() once the
+     *         measured work is done.
+     */
+    public long threadAllocatedBytes() {
+        if (this.threadBean == null) return -1;
+        return this.threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Adds the bytes allocated by the current thread since a previous call to
+     * threadAllocatedBytes().
+     *
+     * @param startBytes The earlier result of threadAllocatedBytes()
+     */
+    public void recordAllocations(long startBytes) {
+        if (startBytes < 0) return;
+        this.allocatedBytes.add(this.threadAllocatedBytes() - startBytes);
+    }
+
+    @Override
+    public long getFrameCount() {
+        return this.stageCounts[Stage.FRAME.ordinal()].sum();
+    }
+
+    @Override
+    public double getMeanFrameMillis() {
+        return this.meanMillis(Stage.FRAME);
+    }
+
+    @Override
+    public double getMaxFrameMillis() {
+        return this.maxFrameNanos.get() / 1e6;
+    }
+
+    @Override
+    public Map<String, Double> getStageMeanMillis() {
+        Map<String, Double> ret = new LinkedHashMap<>();
+        for (Stage s : Stage.values()) ret.put(s.name(), this.meanMillis(s));
+        return ret;
+    }
+
+    @Override
+    public Map<String, Double> getStageTotalMillis() {
+        Map<String, Double> ret = new LinkedHashMap<>();
+        for (Stage s : Stage.values()) ret.put(s.name(), this.stageNanos[s.ordinal()].sum() / 1e6);
+        return ret;
+    }
+
+    @Override
+    public Map<String, Long> getFrameTimeHistogram() {
+        Map<String, Long> ret = new LinkedHashMap<>();
+        long lower = 0;
+        for (int i = 0; i < HISTOGRAM_BOUNDS_MS.length; i++) {
+            ret.put(lower + "-" + HISTOGRAM_BOUNDS_MS[i] + "ms", this.frameHistogram.get(i));
+            lower = HISTOGRAM_BOUNDS_MS[i];
+        }
+        ret.put(">=" + lower + "ms", this.frameHistogram.get(HISTOGRAM_BOUNDS_MS.length));
+        return ret;
+    }
+
+    @Override
+    public Map<String, Long> getEvaluationCounts() {
+        Map<String, Long> ret = new LinkedHashMap<>();
+        for (Map.Entry<Integer, LongAdder> e : new TreeMap<>(this.evaluations).entrySet()) {
+            ret.put("equation " + (e.getKey() + 1), e.getValue().sum());
+        }
+        return ret;
+    }
+
+    @Override
+    public long getOperationCount() {
+        return this.operations.sum();
+    }
+
+    @Override
+    public long getUnsharedOperationCount() {
+        return this.unsharedOperations.sum();
+    }
+
+    @Override
+    public long getSampleCacheHits() {
+        return this.cacheHits.sum();
+    }
+
+    @Override
+    public long getSampleCacheMisses() {
+        return this.cacheMisses.sum();
+    }
+
+    @Override
+    public long getSampleCacheBytes() {
+        return this.cacheBytes.get();
+    }
+
+    @Override
+    public long getScheduledFrameCount() {
+        return this.scheduledFrames.sum();
+    }
+
+    @Override
+    public long getDroppedFrameCount() {
+        return this.droppedFrames.sum();
+    }
+
+    @Override
+    public long getAnimationFrameCount() {
+        return this.animationFrames.sum();
+    }
+
+    @Override
+    public double getMeanAnimationFrameMillis() {
+        long count = this.animationFrames.sum();
+        return count == 0 ? 0 : this.animationNanos.sum() / 1e6 / count;
+    }
+
+    @Override
+    public long getLateAnimationFrameCount() {
+        return this.lateAnimationFrames.sum();
+    }
+
+    @Override
+    public long getAllocatedBytes() {
+        return this.threadBean == null ? -1 : this.allocatedBytes.sum();
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < stageCount; i++) {
+            this.stageNanos[i].reset();
+            this.stageCounts[i].reset();
+            this.stageLastNanos[i].set(0);
+        }
+        this.maxFrameNanos.set(0);
+        for (int i = 0; i < this.frameHistogram.length(); i++) this.frameHistogram.set(i, 0);
+        this.evaluations.clear();
+        this.frameEvaluations.reset();
+        this.allocatedBytes.reset();
+        this.operations.reset();
+        this.unsharedOperations.reset();
+        this.cacheHits.reset();
+        this.cacheMisses.reset();
+        this.scheduledFrames.reset();
+        this.droppedFrames.reset();
+        this.animationFrames.reset();
+        this.animationNanos.reset();
+        this.lateAnimationFrames.reset();
+        this.animationLastNanos.set(0);
+    }
+
+    @Override
+    public void dumpToFile(String path) throws IOException {
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(path), StandardCharsets.UTF_8)) {
+            out.write(this.report());
+        }
+    }
+
+    /**
+     * @return A plain text report of every metric
+     */
+    public String report() {
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("frames %d\n", this.getFrameCount()));
+        out.append(String.format("frame_mean_ms %.3f\n", this.getMeanFrameMillis()));
+        out.append(String.format("frame_max_ms %.3f\n", this.getMaxFrameMillis()));
+        for (Stage s : Stage.values()) {
+            int i = s.ordinal();
+            out.append(String.format("stage %s count %d total_ms %.3f mean_ms %.3f last_ms %.3f\n",
+                    s.name(), this.stageCounts[i].sum(), this.stageNanos[i].sum() / 1e6,
+                    this.meanMillis(s), this.stageLastNanos[i].get() / 1e6));
+        }
+        for (Map.Entry<String, Long> e : this.getFrameTimeHistogram().entrySet()) {
+            out.append(String.format("frame_histogram %s %d\n", e.getKey(), e.getValue()));
+        }
+        for (Map.Entry<String, Long> e : this.getEvaluationCounts().entrySet()) {
+            out.append(String.format("evaluations %s %d\n", e.getKey(), e.getValue()));
+        }
+        out.append(String.format("operations shared %d unshared %d\n",
+                this.getOperationCount(), this.getUnsharedOperationCount()));
+        out.append(String.format("sample_cache hits %d misses %d bytes %d\n",
+                this.getSampleCacheHits(), this.getSampleCacheMisses(), this.getSampleCacheBytes()));
+        out.append(String.format("scheduled_frames rendered %d dropped %d\n",
+                this.getScheduledFrameCount(), this.getDroppedFrameCount()));
+        out.append(String.format("animation_frames count %d mean_ms %.3f late %d\n",
+                this.getAnimationFrameCount(), this.getMeanAnimationFrameMillis(),
+                this.getLateAnimationFrameCount()));
+        out.append(String.format("allocated_bytes %d\n", this.getAllocatedBytes()));
+        return out.toString();
+    }
+
+    /**
+     * Builds the short summary shown by the Graph's debug overlay.
+     *
+     * @return One string per line of the overlay
+     */
+    public List<String> overlayLines() {
+        List<String> lines = new ArrayList<>();
+        long frames = Math.max(1, this.getFrameCount());
+        lines.add(String.format("frame %.2f ms (mean %.2f, max %.2f, n=%d)",
+                this.stageLastNanos[Stage.FRAME.ordinal()].get() / 1e6,
+                this.getMeanFrameMillis(), this.getMaxFrameMillis(), this.getFrameCount()));
+        for (Stage s : Stage.values()) {
+            if (s == Stage.FRAME) continue;
+            lines.add(String.format("%-13s %7.2f ms (mean %.2f)", s.name().toLowerCase(),
+                    this.stageLastNanos[s.ordinal()].get() / 1e6, this.meanMillis(s)));
+        }
+        lines.add(String.format("evaluations/frame %d", this.frameEvaluations.sum() / frames));
+        lines.add(String.format("operations/frame %d (%d unshared)",
+                this.operations.sum() / frames, this.unsharedOperations.sum() / frames));
+        lines.add(String.format("sample cache %.1f KiB (hits %d, misses %d)", this.cacheBytes.get() / 1024.0,
+                this.cacheHits.sum(), this.cacheMisses.sum()));
+        lines.add(String.format("scheduled frames %d (dropped %d)", this.scheduledFrames.sum(),
+                this.droppedFrames.sum()));
+        if (this.animationFrames.sum() > 0)
+            lines.add(String.format("animation %.2f ms (mean %.2f, late %d)",
+                    this.animationLastNanos.get() / 1e6, this.getMeanAnimationFrameMillis(),
+                    this.lateAnimationFrames.sum()));
+        long allocated = this.getAllocatedBytes();
+        if (allocated >= 0)
+            lines.add(String.format("allocated/frame %.1f KiB", allocated / 1024.0 / frames));
+        return lines;
+    }
+
+    private double meanMillis(Stage s) {
+        long count = this.stageCounts[s.ordinal()].sum();
+        return count == 0 ? 0 : this.stageNanos[s.ordinal()].sum() / 1e6 / count;
+    }
+}
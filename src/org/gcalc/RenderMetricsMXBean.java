@@ -0,0 +1,120 @@
+package org.gcalc;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * JMX view of the render pipeline metrics collected by RenderMetrics. The
+ * bean is registered as `org.gcalc:type=RenderMetrics`, so it shows up in
+ * JConsole or VisualVM under that name.
+ */
+public interface RenderMetricsMXBean {
+    /**
+     * @return The number of frames rendered since the last reset
+     */
+    long getFrameCount();
+
+    /**
+     * @return The mean time to render a frame, in milliseconds
+     */
+    double getMeanFrameMillis();
+
+    /**
+     * @return The slowest frame since the last reset, in milliseconds
+     */
+    double getMaxFrameMillis();
+
+    /**
+     * @return Mean time spent in each pipeline stage, in milliseconds
+     */
+    Map<String, Double> getStageMeanMillis();
+
+    /**
+     * @return Total time spent in each pipeline stage, in milliseconds
+     */
+    Map<String, Double> getStageTotalMillis();
+
+    /**
+     * @return Number of frames falling in each frame time bucket
+     */
+    Map<String, Long> getFrameTimeHistogram();
+
+    /**
+     * @return Number of times each equation has been evaluated
+     */
+    Map<String, Long> getEvaluationCounts();
+
+    /**
+     * @return Operations computed by the shared evaluation of all curves, one
+     *         per distinct subexpression per pixel column
+     */
+    long getOperationCount();
+
+    /**
+     * @return Operations which would have been computed if each curve were
+     *         evaluated separately, for comparison with getOperationCount()
+     */
+    long getUnsharedOperationCount();
+
+    /**
+     * @return Number of curves and intersection searches reused from the
+     *         sample cache instead of being computed
+     */
+    long getSampleCacheHits();
+
+    /**
+     * @return Number of curves and intersection searches which had to be
+     *         computed because they weren't in the sample cache
+     */
+    long getSampleCacheMisses();
+
+    /**
+     * @return Memory held by the sample cache after the last frame, in bytes
+     */
+    long getSampleCacheBytes();
+
+    /**
+     * @return Frames drawn by the frame scheduler in response to input
+     */
+    long getScheduledFrameCount();
+
+    /**
+     * @return Redraw requests which were merged into a frame already waiting
+     *         to be drawn, rather than drawn themselves
+     */
+    long getDroppedFrameCount();
+
+    /**
+     * @return Frames drawn while a parameter was being animated
+     */
+    long getAnimationFrameCount();
+
+    /**
+     * @return Mean time between animation frames, in milliseconds
+     */
+    double getMeanAnimationFrameMillis();
+
+    /**
+     * @return Animation frames which missed a display refresh
+     */
+    long getLateAnimationFrameCount();
+
+    /**
+     * @return Bytes allocated by the rendering threads whilst drawing frames,
+     *         or -1 if the JVM can't measure allocations
+     */
+    long getAllocatedBytes();
+
+    /**
+     * Clears all collected metrics.
+     */
+    void reset();
+
+    /**
+     * Writes a plain text report of all metrics to a file.
+     *
+     * @param path The file to write to
+     * @throws IOException if the file couldn't be written
+     */
+    void dumpToFile(String path) throws IOException;
+}
@@ -0,0 +1,190 @@
+package org.gcalc;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of work done while rendering, so that a redraw only redoes
+ * what has actually changed. It holds two kinds of entry:
+ * <ul>
+ *   <li>the samples of a curve at every pixel column, per equation</li>
+ *   <li>the traced samples of a parametric or polar curve</li>
+ *   <li>the candidate intersection points found between a pair of
+ *       equations, before they are filtered against each other</li>
+ * </ul>
+ *
+ * Entries are keyed by equation instance, since editing an equation always
+ * creates a new one, and only valid for the viewport they were computed for.
+ * Only the horizontal part of the viewport (width, scale and x offset)
+ * matters, so panning up and down reuses everything. Traces don't depend on
+ * the offset at all, so they are kept while panning in any direction.
+ *
+ * The least recently used entries are evicted once the total size goes over
+ * the byte budget.
+ */
+public class SampleCache {
+    /** Default byte budget, enough for a few hundred full HD curves */
+    public static final long DEFAULT_BUDGET_BYTES = 8L * 1024 * 1024;
+
+    // Rough per entry overhead of the key, entry and map node
+    private static final long ENTRY_OVERHEAD_BYTES = 96;
+
+    private final long budgetBytes;
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+    private long hits = 0, misses = 0;
+
+    /**
+     * Identity based key of one equation (a curve) or an ordered pair of
+     * equations (their intersections).
+     */
+    private static final class Key {
+        final Equation a, b;
+
+        Key(Equation a, Equation b) {
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(this.a) * 31 + System.identityHashCode(this.b);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).a == this.a && ((Key) o).b == this.b;
+        }
+    }
+
+    private static final class Entry {
+        final int width;
+        final double scale, offsetX;
+        final double[] data;
+
+        Entry(int width, double scale, double offsetX, double[] data) {
+            this.width = width;
+            this.scale = scale;
+            this.offsetX = offsetX;
+            this.data = data;
+        }
+
+        boolean matches(int width, double scale, double offsetX) {
+            return this.width == width && this.scale == scale && this.offsetX == offsetX;
+        }
+
+        long size() {
+            return ENTRY_OVERHEAD_BYTES + 8L * this.data.length;
+        }
+    }
+
+    public SampleCache() {
+        this(DEFAULT_BUDGET_BYTES);
+    }
+
+    /**
+     * @param budgetBytes Approximate upper bound on the memory held
+     */
+    public SampleCache(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * @return The samples of an equation at each pixel column, or null if
+     *         they aren't cached for this viewport
+     */
+    public double[] getCurve(Equation e, int width, double scale, double offsetX) {
+        return this.get(new Key(e, null), width, scale, offsetX);
+    }
+
+    public void putCurve(Equation e, int width, double scale, double offsetX, double[] samples) {
+        this.put(new Key(e, null), new Entry(width, scale, offsetX, samples));
+    }
+
+    /**
+     * @return The traced samples of a parametric or polar curve, or null if
+     *         they aren't cached for this width and scale
+     */
+    public double[] getTrace(Equation e, int width, double scale) {
+        return this.get(new Key(e, null), width, scale, 0);
+    }
+
+    public void putTrace(Equation e, int width, double scale, double[] trace) {
+        this.put(new Key(e, null), new Entry(width, scale, 0, trace));
+    }
+
+    /**
+     * @return The unfiltered intersection candidates between two equations,
+     *         as interleaved x, y graph coordinates, or null if they aren't
+     *         cached for this viewport
+     */
+    public double[] getIntersections(Equation a, Equation b, int width, double scale, double offsetX) {
+        return this.get(new Key(a, b), width, scale, offsetX);
+    }
+
+    public void putIntersections(Equation a, Equation b, int width, double scale, double offsetX,
+                                 double[] candidates) {
+        this.put(new Key(a, b), new Entry(width, scale, offsetX, candidates));
+    }
+
+    /**
+     * Drops the curve of an equation and every intersection involving it,
+     * after it has been edited or removed.
+     *
+     * @param e The equation which is no longer drawn
+     */
+    public void remove(Equation e) {
+        Iterator<Map.Entry<Key, Entry>> it = this.entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, Entry> entry = it.next();
+            if (entry.getKey().a == e || entry.getKey().b == e) {
+                this.bytes -= entry.getValue().size();
+                it.remove();
+            }
+        }
+    }
+
+    public void clear() {
+        this.entries.clear();
+        this.bytes = 0;
+    }
+
+    /**
+     * @return Approximate memory held by the cache, in bytes
+     */
+    public long getBytes() {
+        return this.bytes;
+    }
+
+    public long getBudgetBytes() {
+        return this.budgetBytes;
+    }
+
+    public long getHits() { return this.hits; }
+    public long getMisses() { return this.misses; }
+
+    private double[] get(Key key, int width, double scale, double offsetX) {
+        Entry entry = this.entries.get(key);
+        if (entry != null && entry.matches(width, scale, offsetX)) {
+            this.hits++;
+            return entry.data;
+        }
+        this.misses++;
+        return null;
+    }
+
+    private void put(Key key, Entry entry) {
+        Entry old = this.entries.put(key, entry);
+        if (old != null) this.bytes -= old.size();
+        this.bytes += entry.size();
+
+        // The newest entry is last, so it is only evicted if it alone is
+        // over budget
+        Iterator<Entry> it = this.entries.values().iterator();
+        while (this.bytes > this.budgetBytes && it.hasNext()) {
+            this.bytes -= it.next().size();
+            it.remove();
+        }
+    }
+}
@@ -7,6 +7,7 @@ import java.awt.event.ComponentListener;
 import java.io.*;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.TreeMap;
 
 public class Sidebar extends JScrollPane implements ComponentListener, EquationEditorListener {
     private ArrayList<EquationListener> listeners = new ArrayList<>();
@@ -15,7 +16,12 @@ public class Sidebar extends JScrollPane implements ComponentListener, EquationE
     int width, height;
     JPanel container;
 
+    // A slider for each parameter used by any equation, above the editors
+    private JPanel parameterPanel;
+    private TreeMap<String, ParameterSlider> sliders = new TreeMap<>();
+
     private static final String WORKSPACE_FILE_NAME = "workspace.txt";
+    private WorkspaceImporter importer = null;
 
     public Sidebar(int width, int height) {
         super(new JPanel());
@@ -28,6 +34,10 @@ public class Sidebar extends JScrollPane implements ComponentListener, EquationE
         this.container.setLayout(new BoxLayout(this.container, BoxLayout.PAGE_AXIS));
         container.setMaximumSize(new Dimension(width - 10, Integer.MAX_VALUE));
 
+        this.parameterPanel = new JPanel();
+        this.parameterPanel.setLayout(new BoxLayout(this.parameterPanel, BoxLayout.PAGE_AXIS));
+        this.setColumnHeaderView(this.parameterPanel);
+
         this.newEquation();
         this.container.addComponentListener(this);
         this.addComponentListener(this);
@@ -58,6 +68,49 @@ public class Sidebar extends JScrollPane implements ComponentListener, EquationE
         for (EquationListener l : this.listeners) {
             l.equationChanged(id, equation);
         }
+        this.updateParameterSliders();
+    }
+
+    @Override
+    public void integralChanged(int id, Equation equation, double from, double to) {
+        for (EquationListener l : this.listeners) {
+            l.integralChanged(equation, from, to);
+        }
+    }
+
+    /**
+     * Adds a slider for each parameter which has started being used, and
+     * removes the sliders of parameters no equation uses any more.
+     */
+    private void updateParameterSliders() {
+        List<String> used = new ArrayList<>();
+        for (EquationEditor editor : this.editors) {
+            Equation eq = editor.getEquation();
+            if (eq != null) used.addAll(eq.getParameters());
+        }
+
+        boolean changed = false;
+        for (String name : new ArrayList<>(this.sliders.keySet())) {
+            if (!used.contains(name)) {
+                ParameterSlider slider = this.sliders.remove(name);
+                slider.setAnimating(false);
+                changed = true;
+            }
+        }
+        for (String name : used) {
+            if (!this.sliders.containsKey(name)) {
+                this.sliders.put(name, new ParameterSlider(name));
+                changed = true;
+            }
+        }
+        if (!changed) return;
+
+        // Rebuilt in alphabetical order
+        this.parameterPanel.removeAll();
+        for (ParameterSlider slider : this.sliders.values()) this.parameterPanel.add(slider);
+        this.parameterPanel.revalidate();
+        this.revalidate();
+        this.repaint();
     }
 
     @Override
@@ -79,6 +132,7 @@ public class Sidebar extends JScrollPane implements ComponentListener, EquationE
         for (int i = listeners.size() - 1; i >= 0; i--) {
             listeners.get(i).equationRemoved(id);
         }
+        this.updateParameterSliders();
 
         int width = this.getViewport().getSize().width;
         for (EquationEditor f : this.editors) {
@@ -110,8 +164,17 @@ public class Sidebar extends JScrollPane implements ComponentListener, EquationE
     }
 
     public void loadEquation(String equationString) {
+        this.loadEquation(new Equation(equationString));
+    }
+
+    /**
+     * Adds an editor for an equation which has already been parsed.
+     *
+     * @param equation The equation to add
+     */
+    public void loadEquation(Equation equation) {
         int id = this.editors.size();
-        EquationEditor e = new EquationEditor(id, equationString);
+        EquationEditor e = new EquationEditor(id, equation);
         e.addEquationEditorListener(this);
         this.container.add(e);
         this.editors.add(e);
@@ -127,9 +190,17 @@ public class Sidebar extends JScrollPane implements ComponentListener, EquationE
         for (EquationListener l : this.listeners) {
             l.equationAdded(id, e.getEquation(), e);
         }
+        this.updateParameterSliders();
     }
 
-    public void loadWorkspace() {
+    /**
+     * Asks the user for a workspace file, then replaces all equations with
+     * the ones it contains. Both text and binary workspaces are accepted.
+     *
+     * @return The opened binary workspace, so that the caller can restore its
+     *         viewport, or null if a text workspace was loaded or nothing was
+     */
+    public BinaryWorkspace loadWorkspace() {
         JFileChooser fileChooser = new JFileChooser();
         fileChooser.setDialogTitle("Load Workspace");
         fileChooser.setFileSelectionMode(JFileChooser.FILES_ONLY);
@@ -137,36 +208,124 @@ public class Sidebar extends JScrollPane implements ComponentListener, EquationE
         int userSelection = fileChooser.showOpenDialog(this);
         if (userSelection == JFileChooser.APPROVE_OPTION) {
             File fileToLoad = fileChooser.getSelectedFile();
+            if (this.importer != null) this.importer.cancel(true);
+            if (BinaryWorkspace.isBinaryWorkspace(fileToLoad))
+                return this.loadBinaryWorkspace(fileToLoad);
+
+            // Text workspaces are parsed in the background, and their
+            // equations appear as they become ready
             this.deleteAllEquations();
-            try (BufferedReader reader = new BufferedReader(new FileReader(fileToLoad))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    line = line.trim();
-                    if (!line.isEmpty()) {
-                        // Create new equation directly from the line
-                        this.loadEquation(line);
-                    }
-                }
-                System.out.println("Workspace loaded from " + fileToLoad.getAbsolutePath());
-                if (this.editors.isEmpty()) {
-                    this.newEquation();
-                }
-                this.revalidate();
-                this.repaint();
-            } catch (IOException e) {
-                System.err.println("Error loading workspace: " + e.getMessage());
-                e.printStackTrace();
-                if (this.editors.isEmpty()) {
-                    this.newEquation();
-                }
-            }
+            this.importer = new WorkspaceImporter(this, fileToLoad);
+            this.importer.execute();
         } else {
             System.out.println("Workspace load cancelled by user.");
             if (this.editors.isEmpty()) {
                 this.newEquation();
             }
         }
+        return null;
+    }
+
+    /**
+     * Replaces all equations with those in a binary workspace, using the
+     * precompiled programs rather than parsing each one.
+     *
+     * @param file The binary workspace to load
+     * @return The opened workspace, or null if it couldn't be read
+     */
+    public BinaryWorkspace loadBinaryWorkspace(File file) {
+        BinaryWorkspace workspace;
+        try {
+            workspace = BinaryWorkspace.open(file);
+        } catch (IOException e) {
+            System.err.println("Error loading workspace: " + e.getMessage());
+            e.printStackTrace();
+            return null;
+        }
+
+        // Added as one batch, like an imported text workspace, so that the
+        // graph is only redrawn once. Each record is only deserialised here,
+        // when its editor needs it.
+        this.deleteAllEquations();
+        List<WorkspaceImporter.ParsedLine> lines = new ArrayList<>();
+        for (int i = 0; i < workspace.getEquationCount(); i++) {
+            String raw = workspace.getRawText(i);
+            Equation equation;
+            try {
+                equation = workspace.getEquation(i);
+            } catch (Exception e) {
+                System.err.println("Malformed equation in workspace: " + raw);
+                equation = null;
+            }
+            lines.add(new WorkspaceImporter.ParsedLine(raw, equation));
+        }
+        if (!lines.isEmpty()) this.appendEquations(lines);
+
+        System.out.println("Workspace loaded from " + file.getAbsolutePath());
+        if (this.editors.isEmpty()) {
+            this.newEquation();
+        }
+        this.revalidate();
+        this.repaint();
+        return workspace;
     }
+
+    /**
+     * Appends a batch of imported lines, laying out the sidebar and notifying
+     * listeners once for the whole batch. Malformed lines get an editor
+     * holding their text, marked invalid.
+     *
+     * @param lines The lines to add, in order
+     */
+    void appendEquations(List<WorkspaceImporter.ParsedLine> lines) {
+        int firstId = this.editors.size();
+        List<Equation> added = new ArrayList<>();
+        List<EquationEditor> addedEditors = new ArrayList<>();
+        int width = this.getViewport().getSize().width;
+
+        for (WorkspaceImporter.ParsedLine line : lines) {
+            Equation equation = line.equation != null ? line.equation : new Equation("");
+            EquationEditor e = new EquationEditor(this.editors.size(), equation);
+            e.addEquationEditorListener(this);
+            e.setWidth(width);
+            this.container.add(e);
+            this.editors.add(e);
+            added.add(equation);
+            addedEditors.add(e);
+        }
+
+        this.revalidate();
+        this.repaint();
+
+        for (EquationListener l : this.listeners) {
+            l.equationsAdded(firstId, added, addedEditors);
+        }
+        this.updateParameterSliders();
+
+        // Only now show the malformed text, which fails to parse again and
+        // marks just that editor invalid
+        for (int i = 0; i < lines.size(); i++) {
+            if (lines.get(i).equation == null) addedEditors.get(i).setEquationText(lines.get(i).text);
+        }
+    }
+
+    /**
+     * Called once a background workspace import has finished or been
+     * cancelled.
+     *
+     * @param importer The import which finished
+     */
+    void workspaceImportFinished(WorkspaceImporter importer) {
+        // A cancelled import may finish after its replacement has started
+        if (importer != this.importer) return;
+        this.importer = null;
+        if (this.editors.isEmpty()) {
+            this.newEquation();
+        }
+        this.revalidate();
+        this.repaint();
+    }
+
     private void loadEquationFromBlock(String block) {
         String titleLine = block.split("\n", 2)[0];
         if (titleLine.startsWith("Expression ")) {
@@ -198,6 +357,21 @@ public class Sidebar extends JScrollPane implements ComponentListener, EquationE
         }
     }
 
+    /**
+     * Replaces all equations with a list of already parsed equations.
+     *
+     * @param equations The equations to show, in order
+     */
+    public void replaceEquations(List<Equation> equations) {
+        this.deleteAllEquations();
+        for (Equation e : equations) {
+            this.loadEquation(e);
+        }
+        if (this.editors.isEmpty()) {
+            this.newEquation();
+        }
+    }
+
     public void deleteAllEquations() {
         for (int i = this.editors.size() - 1; i >= 0; i--) {
             this.editors.get(i).delete();
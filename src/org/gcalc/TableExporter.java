@@ -0,0 +1,429 @@
+package org.gcalc;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Exports a table of values, a row of (x, y1 ... yn) for every step along a
+ * range of x, as CSV or as a binary column file. Equations with ± get a
+ * column for each branch; parametric curves aren't functions of x, so are
+ * left out.
+ *
+ * Rows are evaluated and encoded in chunks on a pool of worker threads, then
+ * written in order by the calling thread. Only a few chunks are held at once,
+ * and their buffers are reused, so tables of any length can be exported.
+ * Parameters keep the values they had when the exporter was created.
+ *
+ * Binary layout (little endian, so it can be read straight into numpy):
+ * <pre>
+ * int     magic "GCTB"
+ * short   version
+ * short   flags (reserved, 0)
+ * int     column count
+ * long    row count
+ * string  name of each column
+ * padding to a multiple of 8 bytes
+ * double  each column's values, one whole column after another
+ *
+ * string := int byte length, then UTF-8 bytes
+ * </pre>
+ *
+ * Usage:
+ * <pre>
+ * java -cp ... org.gcalc.TableExporter [options] workspace
+ *   --from A          First x value (default -10)
+ *   --to B            Last x value (default 10)
+ *   --step S          Distance between x values (default 0.01)
+ *   --format csv|bin  CSV, or the binary layout above (default csv)
+ *   --set NAME=VALUE  Value of a parameter (default 1), can be repeated
+ *   --out FILE        File to write (default: named after the workspace)
+ *   --threads N       Number of worker threads (default: one per core)
+ * </pre>
+ */
+public class TableExporter {
+    public static final int MAGIC = 0x47435442;
+    public static final short VERSION = 1;
+
+    // Rows a worker evaluates at a time
+    private static final int CHUNK_ROWS = 16384;
+
+    private final List<Equation> equations = new ArrayList<>();
+    private final List<String> columns = new ArrayList<>();
+
+    private double from = -10, to = 10, step = 0.01;
+    private String format = "csv";
+    private int threads = Runtime.getRuntime().availableProcessors();
+    // Parameter values, copied when the exporter is created on the event
+    // dispatch thread, as the sliders may be moved during the export
+    private final Parameters base = Parameters.get().copy();
+
+    /**
+     * Parameters are read now, so later changes to them don't affect the
+     * export.
+     *
+     * @param equations The equations to tabulate, in column order. Empty and
+     *                  parametric equations are skipped.
+     */
+    public TableExporter(List<Equation> equations) {
+        this.columns.add("x");
+        for (int i = 0; i < equations.size(); i++) {
+            Equation e = equations.get(i);
+            if (e == null || e.isEmpty) continue;
+            if (e.isParametric()) {
+                System.err.println("Leaving parametric curve out of table: " + e);
+                continue;
+            }
+
+            this.equations.add(e);
+            int branches = e.getBranchCount();
+            for (int b = 0; b < branches; b++) {
+                this.columns.add("y" + (i + 1) + (branches > 1 ? "." + (b + 1) : ""));
+            }
+        }
+    }
+
+    /**
+     * Chooses the x values to tabulate, from `from` up to and including `to`.
+     *
+     * @param from The first x value
+     * @param to The last x value
+     * @param step Distance between x values, more than 0
+     */
+    public void setRange(double from, double to, double step) {
+        if (!(step > 0))
+            throw new IllegalArgumentException("Step must be more than 0, got " + step);
+        if (!(to >= from))
+            throw new IllegalArgumentException("Range must not be empty");
+        this.from = from;
+        this.to = to;
+        this.step = step;
+    }
+
+    /**
+     * @param format "csv", or "bin" for a binary column file
+     */
+    public void setFormat(String format) {
+        format = format.toLowerCase();
+        if (!format.equals("csv") && !format.equals("bin"))
+            throw new IllegalArgumentException("Format must be csv or bin, got " + format);
+        this.format = format;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * @return The name of each column, starting with x
+     */
+    public List<String> getColumns() {
+        return this.columns;
+    }
+
+    /**
+     * @return The number of rows in the table
+     */
+    public long getRowCount() {
+        // Rounding error mustn't lose the last row
+        return (long) Math.floor((this.to - this.from) / this.step + 1e-9) + 1;
+    }
+
+    /**
+     * Evaluates and writes the whole table.
+     *
+     * @param out The file to write, replacing it if it exists
+     * @return Rows exported per second
+     * @throws IOException if the file couldn't be written, or a chunk failed
+     * @throws InterruptedException if interrupted while waiting for a chunk
+     */
+    public double export(File out) throws IOException, InterruptedException {
+        long rows = this.getRowCount();
+        long chunks = (rows + CHUNK_ROWS - 1) / CHUNK_ROWS;
+        boolean csv = this.format.equals("csv");
+
+        // One chunk being evaluated by each worker, and as many again
+        // waiting to be written
+        int capacity = 2 * this.threads;
+        ArrayDeque<Chunk> free = new ArrayDeque<>();
+        for (int i = 0; i < capacity; i++) free.add(new Chunk(this.columns.size()));
+        ArrayDeque<Future<Chunk>> queue = new ArrayDeque<>();
+
+        ExecutorService pool = Executors.newFixedThreadPool(this.threads);
+        long start = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(out.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long dataStart = csv ? this.writeCsvHeader(channel) : this.writeBinaryHeader(channel, rows);
+
+            for (long i = 0; i < chunks; i++) {
+                if (queue.size() == capacity) {
+                    free.add(this.writeNext(queue, channel, dataStart, rows));
+                }
+
+                long first = i * CHUNK_ROWS;
+                int count = (int) Math.min(CHUNK_ROWS, rows - first);
+                Chunk chunk = free.remove();
+                queue.add(pool.submit(() -> this.fill(chunk, this.base, first, count, csv)));
+            }
+            while (!queue.isEmpty()) {
+                this.writeNext(queue, channel, dataStart, rows);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        return rows / seconds;
+    }
+
+    /**
+     * Evaluates a chunk's rows and encodes them, on a worker thread.
+     */
+    private Chunk fill(Chunk chunk, Parameters base, long first, int count, boolean csv) {
+        int width = this.columns.size();
+        double[] values = chunk.values;
+
+        Parameters.setThreadValues(base);
+        try {
+            for (int r = 0; r < count; r++) {
+                // Multiplied rather than summed, so errors don't build up
+                double x = this.from + (first + r) * this.step;
+                int i = r * width;
+                values[i++] = x;
+                for (Equation e : this.equations) {
+                    double[] ys = e.evaluate(x);
+                    System.arraycopy(ys, 0, values, i, ys.length);
+                    i += ys.length;
+                }
+            }
+        } finally {
+            Parameters.setThreadValues(null);
+        }
+
+        chunk.first = first;
+        chunk.count = count;
+        if (csv) chunk.encodeCsv(width);
+        else chunk.encodeBinary(width);
+        return chunk;
+    }
+
+    /**
+     * Waits for the oldest chunk in the queue, then writes it.
+     *
+     * @return The chunk, which can be filled again
+     */
+    private Chunk writeNext(ArrayDeque<Future<Chunk>> queue, FileChannel channel, long dataStart,
+                            long rows) throws IOException, InterruptedException {
+        Chunk chunk;
+        try {
+            chunk = queue.remove().get();
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to evaluate table: " + e.getCause(), e.getCause());
+        }
+
+        ByteBuffer bytes = chunk.bytes;
+        if (this.format.equals("csv")) {
+            while (bytes.hasRemaining()) channel.write(bytes);
+        } else {
+            // Each column's slice goes into that column's run of the file
+            for (int c = 0; c < this.columns.size(); c++) {
+                bytes.limit((c + 1) * chunk.count * 8).position(c * chunk.count * 8);
+                long position = dataStart + ((long) c * rows + chunk.first) * 8;
+                while (bytes.hasRemaining()) position += channel.write(bytes, position);
+            }
+        }
+        return chunk;
+    }
+
+    private long writeCsvHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.wrap((String.join(",", this.columns) + "\n")
+                .getBytes(StandardCharsets.UTF_8));
+        while (header.hasRemaining()) channel.write(header);
+        return channel.position();
+    }
+
+    private long writeBinaryHeader(FileChannel channel, long rows) throws IOException {
+        List<byte[]> names = new ArrayList<>();
+        int size = 4 + 2 + 2 + 4 + 8;
+        for (String column : this.columns) {
+            byte[] name = column.getBytes(StandardCharsets.UTF_8);
+            names.add(name);
+            size += 4 + name.length;
+        }
+        size = (size + 7) / 8 * 8;
+
+        ByteBuffer header = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC);
+        header.putShort(VERSION);
+        header.putShort((short) 0);
+        header.putInt(this.columns.size());
+        header.putLong(rows);
+        for (byte[] name : names) {
+            header.putInt(name.length);
+            header.put(name);
+        }
+        header.clear();
+        while (header.hasRemaining()) channel.write(header);
+        return size;
+    }
+
+    /**
+     * Values and encoded bytes for a run of rows, reused once written.
+     */
+    private static class Chunk {
+        // Row by row, CHUNK_ROWS rows of every column
+        final double[] values;
+        final StringBuilder text = new StringBuilder();
+        ByteBuffer bytes;
+        long first;
+        int count;
+
+        Chunk(int width) {
+            this.values = new double[CHUNK_ROWS * width];
+        }
+
+        /**
+         * Writes rows as CSV. Missing roots are left empty, and the values
+         * are printed exactly, so that reading them back gives the same
+         * doubles.
+         */
+        void encodeCsv(int width) {
+            StringBuilder text = this.text;
+            text.setLength(0);
+            for (int r = 0; r < this.count; r++) {
+                for (int c = 0; c < width; c++) {
+                    if (c > 0) text.append(',');
+                    double v = this.values[r * width + c];
+                    if (!Double.isNaN(v)) text.append(v);
+                }
+                text.append('\n');
+            }
+
+            // Only ASCII is ever written, so no charset encoder is needed
+            if (this.bytes == null || this.bytes.capacity() < text.length()) {
+                this.bytes = ByteBuffer.allocate(text.length() + text.length() / 4);
+            }
+            this.bytes.clear();
+            for (int i = 0; i < text.length(); i++) this.bytes.put((byte) text.charAt(i));
+            this.bytes.flip();
+        }
+
+        /**
+         * Writes rows column by column, for writeNext() to copy each column
+         * into place.
+         */
+        void encodeBinary(int width) {
+            if (this.bytes == null) {
+                this.bytes = ByteBuffer.allocate(this.values.length * 8).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            for (int c = 0; c < width; c++) {
+                int column = c * this.count * 8;
+                for (int r = 0; r < this.count; r++) {
+                    this.bytes.putDouble(column + r * 8, this.values[r * width + c]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Headless program entrypoint. Exits with a non-zero code if the
+     * arguments are invalid or the export failed.
+     *
+     * @param args See the class comment
+     */
+    public static void main(String[] args) {
+        double from = -10, to = 10, step = 0.01;
+        String format = "csv";
+        int threads = Runtime.getRuntime().availableProcessors();
+        File workspace = null, out = null;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (!arg.startsWith("--")) {
+                    if (workspace != null)
+                        throw new IllegalArgumentException("Only one workspace can be exported");
+                    workspace = new File(arg);
+                    continue;
+                }
+                if (i + 1 >= args.length)
+                    throw new IllegalArgumentException("Missing value for " + arg);
+                String value = args[++i];
+
+                switch (arg) {
+                    case "--from":
+                        from = Double.parseDouble(value);
+                        break;
+                    case "--to":
+                        to = Double.parseDouble(value);
+                        break;
+                    case "--step":
+                        step = Double.parseDouble(value);
+                        break;
+                    case "--format":
+                        format = value;
+                        break;
+                    case "--set":
+                        String[] assignment = value.split("=");
+                        if (assignment.length != 2 || !Parameters.isParameter(assignment[0]))
+                            throw new IllegalArgumentException("Expected NAME=VALUE, got " + value);
+                        Parameters.get().set(assignment[0], Double.parseDouble(assignment[1]));
+                        break;
+                    case "--out":
+                        out = new File(value);
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+            if (workspace == null)
+                throw new IllegalArgumentException("No workspace file given");
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: TableExporter [--from A] [--to B] [--step S] [--format csv|bin] " +
+                    "[--set NAME=VALUE] [--out FILE] [--threads N] workspace");
+            System.exit(2);
+            return;
+        }
+
+        try {
+            TableExporter exporter = new TableExporter(BatchRenderer.loadEquations(workspace));
+            exporter.setRange(from, to, step);
+            exporter.setFormat(format);
+            exporter.setThreads(threads);
+
+            if (out == null) {
+                String name = workspace.getName();
+                int dot = name.lastIndexOf('.');
+                if (dot > 0) name = name.substring(0, dot);
+                out = new File(name + "." + format.toLowerCase());
+            }
+
+            double rowsPerSecond = exporter.export(out);
+            long rows = exporter.getRowCount();
+            System.out.printf("Exported %d rows of %d columns to %s in %.3f s on %d threads (%.2f million rows/s)\n",
+                    rows, exporter.getColumns().size(), out.getPath(), rows / rowsPerSecond,
+                    exporter.threads, rowsPerSecond / 1e6);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
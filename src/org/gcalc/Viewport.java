@@ -0,0 +1,102 @@
+package org.gcalc;
+
+/**
+ * An immutable snapshot of the mapping between pixel and graph coordinates,
+ * for one output size, scale and offset. Everything the mapping needs is
+ * worked out up front, and results are returned as primitives or written
+ * into arrays passed in, so converting coordinates in the drawing loops
+ * doesn't create a Point per pixel.
+ *
+ * The arithmetic matches the old convertGraphToPixel() and
+ * convertPixelToGraph() exactly, so the same pixels are drawn.
+ */
+public final class Viewport {
+    public final int width, height;
+    public final double scale, offsetX, offsetY;
+
+    // Pixels per graph unit, and the pixel position of the offset point
+    private final double pixelsPerUnit;
+    private final double centreX, centreY;
+
+    /**
+     * @param width Width of the output in pixels
+     * @param height Height of the output in pixels
+     * @param scale Zoom level, where 1 is GraphRenderer.normInterval pixels
+     *              per graph unit
+     * @param offsetX Graph x coordinate at the centre of the output
+     * @param offsetY Graph y coordinate at the centre of the output
+     */
+    public Viewport(int width, int height, double scale, double offsetX, double offsetY) {
+        this.width = width;
+        this.height = height;
+        this.scale = scale;
+        this.offsetX = offsetX;
+        this.offsetY = offsetY;
+
+        this.pixelsPerUnit = GraphRenderer.normInterval * scale;
+        this.centreX = width / 2.0;
+        this.centreY = height / 2.0;
+    }
+
+    public double getPixelsPerUnit() {
+        return this.pixelsPerUnit;
+    }
+
+    public double toGraphX(int pixelX) {
+        return this.offsetX + (pixelX - this.centreX) / this.pixelsPerUnit;
+    }
+
+    public double toGraphY(int pixelY) {
+        return this.offsetY + (this.centreY - pixelY) / this.pixelsPerUnit;
+    }
+
+    public int toPixelX(double graphX) {
+        return (int) (this.centreX + (graphX - this.offsetX) * this.pixelsPerUnit);
+    }
+
+    public int toPixelY(double graphY) {
+        return (int) (this.centreY - (graphY - this.offsetY) * this.pixelsPerUnit);
+    }
+
+    /**
+     * Works out the graph x coordinate of each pixel column from 0.
+     *
+     * @param out Array to write the coordinates to
+     * @param count Number of columns
+     */
+    public void columnsToGraph(double[] out, int count) {
+        for (int pixelX = 0; pixelX < count; pixelX++) {
+            out[pixelX] = this.offsetX + (pixelX - this.centreX) / this.pixelsPerUnit;
+        }
+    }
+
+    /**
+     * Maps graph x coordinates to pixel columns, as toPixelX() would. NaN
+     * coordinates are passed through as NaN rather than becoming column 0.
+     *
+     * @param graphXs Graph x coordinates
+     * @param out Array to write the pixel coordinates to, which may be graphXs
+     * @param count Number of coordinates to map
+     */
+    public void toPixelXs(double[] graphXs, double[] out, int count) {
+        for (int i = 0; i < count; i++) {
+            double x = graphXs[i];
+            out[i] = Double.isNaN(x) ? Double.NaN : (int) (this.centreX + (x - this.offsetX) * this.pixelsPerUnit);
+        }
+    }
+
+    /**
+     * Maps graph y coordinates to pixel rows, as toPixelY() would. NaN
+     * coordinates are passed through as NaN rather than becoming row 0.
+     *
+     * @param graphYs Graph y coordinates
+     * @param out Array to write the pixel coordinates to, which may be graphYs
+     * @param count Number of coordinates to map
+     */
+    public void toPixelYs(double[] graphYs, double[] out, int count) {
+        for (int i = 0; i < count; i++) {
+            double y = graphYs[i];
+            out[i] = Double.isNaN(y) ? Double.NaN : (int) (this.centreY - (y - this.offsetY) * this.pixelsPerUnit);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package org.gcalc;
+
+import javax.swing.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Imports a text workspace in the background, so that large files don't
+ * freeze the window. The file is streamed a line at a time, and each line is
+ * parsed on a pool of worker threads. Parsed lines are handed to the sidebar
+ * in file order, in batches, so editors and curves appear progressively while
+ * the rest of the file is still being read.
+ *
+ * A line which fails to parse gets an editor marked invalid, holding its raw
+ * text, rather than aborting the import.
+ */
+public class WorkspaceImporter extends SwingWorker<Integer, WorkspaceImporter.ParsedLine> {
+    // Number of lines which may be read ahead of the oldest unfinished parse
+    private static final int READ_AHEAD = 256;
+
+    private final Sidebar sidebar;
+    private final File file;
+    private final ProgressMonitor monitor;
+    private int malformed = 0;
+
+    /**
+     * One non-blank line of the workspace.
+     */
+    public static class ParsedLine {
+        public final String text;
+        /** The parsed equation, or null if the line is malformed */
+        public final Equation equation;
+
+        ParsedLine(String text, Equation equation) {
+            this.text = text;
+            this.equation = equation;
+        }
+    }
+
+    /**
+     * @param sidebar The sidebar to add the equations to
+     * @param file The text workspace to import
+     */
+    public WorkspaceImporter(Sidebar sidebar, File file) {
+        this.sidebar = sidebar;
+        this.file = file;
+        this.monitor = new ProgressMonitor(sidebar, "Importing workspace", file.getName(), 0, 100);
+        this.monitor.setMillisToDecideToPopup(200);
+
+        this.addPropertyChangeListener(e -> {
+            if ("progress".equals(e.getPropertyName())) {
+                this.monitor.setProgress((Integer) e.getNewValue());
+                if (this.monitor.isCanceled()) this.cancel(true);
+            }
+        });
+    }
+
+    @Override
+    protected Integer doInBackground() throws Exception {
+        long size = Math.max(1, this.file.length());
+        long read = 0;
+        int count = 0;
+
+        ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+            Thread t = new Thread(r, "workspace-import");
+            t.setDaemon(true);
+            return t;
+        });
+        ArrayDeque<Future<ParsedLine>> pending = new ArrayDeque<>();
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(this.file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null && !this.isCancelled()) {
+                read += line.length() + 1;
+                line = line.trim();
+                if (line.isEmpty()) continue;
+
+                String text = line;
+                pending.add(pool.submit(() -> parse(text)));
+                count++;
+
+                // Publish whatever has finished at the front of the queue, so
+                // results stay in file order
+                while (!pending.isEmpty() && (pending.size() >= READ_AHEAD || pending.peek().isDone())) {
+                    this.publish(pending.poll().get());
+                }
+                this.setProgress((int) Math.min(99, read * 100 / size));
+            }
+
+            while (!pending.isEmpty() && !this.isCancelled()) {
+                this.publish(pending.poll().get());
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        return count;
+    }
+
+    /**
+     * Parses a single line, on a worker thread.
+     *
+     * @param text The trimmed line
+     * @return The line and its equation, which is null if it is malformed
+     */
+    private static ParsedLine parse(String text) {
+        long start = System.nanoTime();
+        try {
+            return new ParsedLine(text, new Equation(text));
+        } catch (Exception e) {
+            return new ParsedLine(text, null);
+        } finally {
+            RenderMetrics.get().record(RenderMetrics.Stage.PARSE, start);
+        }
+    }
+
+    @Override
+    protected void process(List<ParsedLine> chunk) {
+        // Chunks may still be delivered after the import is cancelled
+        if (this.isCancelled()) return;
+        for (ParsedLine p : chunk) {
+            if (p.equation == null) this.malformed++;
+        }
+        this.sidebar.appendEquations(new ArrayList<>(chunk));
+    }
+
+    @Override
+    protected void done() {
+        this.monitor.close();
+        try {
+            int count = this.get();
+            System.out.printf("Workspace loaded from %s (%d equations, %d malformed)\n",
+                    this.file.getAbsolutePath(), count, this.malformed);
+        } catch (java.util.concurrent.CancellationException e) {
+            System.out.println("Workspace import cancelled.");
+        } catch (InterruptedException | ExecutionException e) {
+            System.err.println("Error loading workspace: " + e.getMessage());
+            e.printStackTrace();
+        }
+        this.sidebar.workspaceImportFinished(this);
+    }
+}